@@ -45,6 +45,12 @@ public class AdvancedRouterSettingsActivity extends Activity {
             if (preferredUseSmartBrowser) {
                 smartBrowserButton.setText("ON");
             }
+
+            ToggleButton warmUpButton = (ToggleButton)findViewById(R.id.warm_up_connections_button);
+            warmUpButton.setChecked(AuthPreferences.loadWarmUpConnections());
+
+            ToggleButton prefetchButton = (ToggleButton)findViewById(R.id.prefetch_pages_button);
+            prefetchButton.setChecked(AuthPreferences.loadPrefetchPages());
 	        
 	        View.OnClickListener listener = new View.OnClickListener() {
 	            public void onClick(View view) {
@@ -84,6 +90,12 @@ public class AdvancedRouterSettingsActivity extends Activity {
                             if (temp.contentEquals("ON"))
                             	clearCookiesOn = true;
                             
+                            ToggleButton warmUpButton = (ToggleButton)findViewById(R.id.warm_up_connections_button);
+                            AuthPreferences.storeWarmUpConnections(warmUpButton.isChecked());
+
+                            ToggleButton prefetchButton = (ToggleButton)findViewById(R.id.prefetch_pages_button);
+                            AuthPreferences.storePrefetchPages(prefetchButton.isChecked());
+
                             Intent resultIntent = getIntent();
                             resultIntent.putExtra(EnterpriseBrowserActivity.CLOUD_CONNECTION_HOST_PREFIX, newRouterURL);
                             resultIntent.putExtra(EnterpriseBrowserActivity.EXTRAS_SMART_BROWSER_ON, smartBrowserOn);
@@ -11,12 +11,9 @@
 
 package com.msopentech.applicationgateway;
 
+import java.util.List;
 import java.util.Vector;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
@@ -67,7 +64,7 @@ public class AgentsActivity extends Activity implements OnOperationExecutionList
     public void onExecutionComplete(int operation, Object[] result) {
         try {
                 mIsWorkInProgress = false;
-            if(result == null) {
+            if(result == null || result[0] == null) {
                     AgentsActivity.this.runOnUiThread( new Runnable() {
                         @Override
                         public void run() {
@@ -76,23 +73,16 @@ public class AgentsActivity extends Activity implements OnOperationExecutionList
             }
                     });
                 } else {
-                JSONArray rawAgentsStorage = (JSONArray) result[0];
+                @SuppressWarnings("unchecked")
+                List<AgentEntity> agents = (List<AgentEntity>) result[0];
                 ConnectionTraits traits = (ConnectionTraits) result[1];
 
-            for (int i = 0; i < rawAgentsStorage.length(); i++) {
-                try {
-                    JSONObject item = rawAgentsStorage.getJSONObject(i);
-                    String agent_name = item.getString(Router.JSON_AGENT_DISPLAY_NAME_KEY);
-                    String agent_id = item.getString(Router.JSON_AGENT_ID_KEY);
-
-                        if (traits.agent.getAgentId().contentEquals(agent_id)) {
-                        agent_name = IN_USE_MARK + agent_name;
+            for (AgentEntity agent : agents) {
+                        if (traits.agent.getAgentId().contentEquals(agent.getAgentId())) {
+                        agent.setDisplayName(IN_USE_MARK + agent.getDisplayName());
                     }
 
-                    mAgentsDataStorage.add(new AgentEntity(agent_id, agent_name));
-                } catch (JSONException e) {
-                    continue;
-                }
+                    mAgentsDataStorage.add(agent);
             }
 
             int agentsNumber = mAgentsDataStorage.size();
@@ -196,6 +186,14 @@ public class AgentsActivity extends Activity implements OnOperationExecutionList
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        if (isFinishing()) {
+            Router.cancelRequests(AgentsActivity.this);
+        }
+        super.onDestroy();
+    }
+
     /**
      * Toggles between showing either progress indicator or a content pane with actual data.
      * 
@@ -55,6 +55,12 @@ public class BookmarksActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onPause() {
+        PersistenceManager.flush();
+        super.onPause();
+    }
+
     /**
      * Finishes activity and provides selected URL as {@link EnterpriseBrowserActivity#EXTRAS_URL_KEY} String item within intent extras.
      * 
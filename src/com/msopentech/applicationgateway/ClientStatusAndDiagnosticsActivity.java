@@ -11,21 +11,42 @@
 
 package com.msopentech.applicationgateway;
 
+import java.util.List;
+import java.util.Map;
+
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
 import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.view.View;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
+import com.msopentech.applicationgateway.connection.ConnectionWarmer;
+import com.msopentech.applicationgateway.connection.GatewayHttpClient;
+import com.msopentech.applicationgateway.connection.MetricsRegistry;
+import com.msopentech.applicationgateway.connection.Tracer;
+import com.msopentech.applicationgateway.data.LoadMetrics;
 import com.msopentech.applicationgateway.preferences.AuthPreferences;
+import com.msopentech.applicationgateway.preferences.PersistenceManager;
 import com.msopentech.applicationgateway.utils.Utility;
 
 /**
  * Implements Advanced Router Settings ability.
  */
 public class ClientStatusAndDiagnosticsActivity extends Activity {
+
+    /**
+     * Percentiles of the trace span durations shown on the screen.
+     */
+    private static final double[] TRACE_PERCENTILES = { 0.5, 0.9, 0.99 };
+
+    /**
+     * Number of sites with the most traffic shown on the screen.
+     */
+    private static final int TOP_SITES_COUNT = 5;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         try {
@@ -37,6 +58,8 @@ public class ClientStatusAndDiagnosticsActivity extends Activity {
             TextView agentTextView = (TextView) findViewById(R.id.client_status_agent_name);
             TextView agentIDTextView = (TextView) findViewById(R.id.client_status_agentid);
             TextView sessionIDTextView = (TextView) findViewById(R.id.client_status_sessionid);
+            TextView poolTextView = (TextView) findViewById(R.id.client_status_pool);
+            TextView warmUpTextView = (TextView) findViewById(R.id.client_status_warm_up);
 
             ImageButton accountStatus = (ImageButton) findViewById(R.id.client_status_orgid_status);
             ImageButton routerStatus = (ImageButton) findViewById(R.id.client_status_router_status);
@@ -81,6 +104,32 @@ public class ClientStatusAndDiagnosticsActivity extends Activity {
                 agentIDStatus.setImageResource(R.drawable.connection_red);
                 sessionIDStatus.setImageResource(R.drawable.connection_red);
             }
+
+            poolTextView.setText(getResources().getString(R.string.client_status_pool, GatewayHttpClient.getPoolHits(), GatewayHttpClient.getPoolMisses()));
+
+            if (AuthPreferences.loadWarmUpConnections()) {
+                warmUpTextView.setText(getResources().getString(R.string.client_status_warm_up, ConnectionWarmer.getDnsTime() + ConnectionWarmer.getConnectTime(),
+                        ConnectionWarmer.getDnsTime(), ConnectionWarmer.getConnectionCount(), ConnectionWarmer.getConnectTime()));
+            } else {
+                warmUpTextView.setText(R.string.client_status_warm_up_off);
+            }
+
+            showTrace((TextView) findViewById(R.id.client_status_trace_token), Tracer.SPAN_TOKEN);
+            showTrace((TextView) findViewById(R.id.client_status_trace_agents), Tracer.SPAN_AGENTS);
+            showTrace((TextView) findViewById(R.id.client_status_trace_session), Tracer.SPAN_SESSION);
+            showTrace((TextView) findViewById(R.id.client_status_trace_browser), Tracer.SPAN_BROWSER);
+
+            showMetrics((TextView) findViewById(R.id.client_status_metrics_page),
+                    (LoadMetrics) getIntent().getSerializableExtra(EnterpriseBrowserActivity.EXTRAS_PAGE_METRICS_KEY));
+            showMetrics((TextView) findViewById(R.id.client_status_metrics_tab),
+                    (LoadMetrics) getIntent().getSerializableExtra(EnterpriseBrowserActivity.EXTRAS_TAB_METRICS_KEY));
+            showMetrics((TextView) findViewById(R.id.client_status_metrics_total), MetricsRegistry.getTotal());
+            showTopSites((TextView) findViewById(R.id.client_status_metrics_sites));
+
+            long changes = PersistenceManager.getChangeCount();
+            long writes = PersistenceManager.getWriteCount();
+            ((TextView) findViewById(R.id.client_status_persistence)).setText(getResources().getString(R.string.client_status_persistence,
+                    changes, writes, Math.max(0, changes - writes)));
         } catch (final Exception e) {
             Utility.showAlertDialog(ClientStatusAndDiagnosticsActivity.class.getSimpleName() + ".onCreate(): Failed. " + e.toString(), ClientStatusAndDiagnosticsActivity.this);
         }
@@ -93,6 +142,78 @@ public class ClientStatusAndDiagnosticsActivity extends Activity {
 //        finish();
 //    }
 
+    /**
+     * Shows duration percentiles of the recorded trace spans.
+     * 
+     * @param textView View to show the percentiles in.
+     * @param name Span name.
+     */
+    private void showTrace(TextView textView, String name) {
+        long[] durations = Tracer.getPercentiles(name, TRACE_PERCENTILES);
+        if (durations == null) {
+            textView.setText(R.string.client_status_trace_none);
+        } else {
+            textView.setText(getResources().getString(R.string.client_status_trace, durations[0], durations[1], durations[2], Tracer.getCount(name)));
+        }
+    }
+
+    /**
+     * Shows request metrics collected in smart browser mode.
+     * 
+     * @param textView View to show the metrics in.
+     * @param metrics Metrics or <code>null</code> if there are none.
+     */
+    private void showMetrics(TextView textView, LoadMetrics metrics) {
+        if (metrics == null || metrics.getRequestCount() == 0) {
+            textView.setText(R.string.client_status_trace_none);
+        } else {
+            textView.setText(getResources().getString(R.string.client_status_metrics, metrics.getRequestCount(), metrics.getCacheHitRatio(),
+                    Formatter.formatShortFileSize(this, metrics.getNetworkBytes()),
+                    Formatter.formatShortFileSize(this, metrics.getDecodedBytes()), metrics.getAverageHeadersTime(),
+                    metrics.getAverageLastByteTime()));
+        }
+    }
+
+    /**
+     * Shows the sites with the most bytes received from the gateway.
+     * 
+     * @param textView View to show the sites in.
+     */
+    private void showTopSites(TextView textView) {
+        List<Map.Entry<String, LoadMetrics>> sites = MetricsRegistry.getTopSites(TOP_SITES_COUNT);
+        if (sites.isEmpty()) {
+            textView.setText(R.string.client_status_trace_none);
+            return;
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, LoadMetrics> site : sites) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(getResources().getString(R.string.client_status_metrics_site, site.getKey(),
+                    Formatter.formatShortFileSize(this, site.getValue().getNetworkBytes()), site.getValue().getRequestCount()));
+        }
+        textView.setText(text);
+    }
+
+    /**
+     * Shares recorded trace spans as JSON text.
+     * 
+     * @param view Clicked view.
+     */
+    public void onExportTracesClick(View view) {
+        try {
+            Intent shareIntent = new Intent(Intent.ACTION_SEND);
+            shareIntent.setType("text/plain");
+            shareIntent.putExtra(Intent.EXTRA_SUBJECT, getResources().getString(R.string.client_status_export_traces_subject));
+            shareIntent.putExtra(Intent.EXTRA_TEXT, Tracer.exportJSON());
+            startActivity(Intent.createChooser(shareIntent, getResources().getString(R.string.client_status_export_traces)));
+        } catch (final Exception e) {
+            Utility.showAlertDialog(ClientStatusAndDiagnosticsActivity.class.getSimpleName() + ".onExportTracesClick(): Failed. " + e.toString(), ClientStatusAndDiagnosticsActivity.this);
+        }
+    }
+
     public void onOKClick(View view) {
         Intent resultIntent = getIntent();
         setResult(RESULT_OK, resultIntent);
@@ -11,15 +11,18 @@
 
 package com.msopentech.applicationgateway;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.text.DateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.Vector;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.StatusLine;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicHttpResponse;
+import java.util.WeakHashMap;
 
 import android.app.Activity;
 import android.app.Dialog;
@@ -27,6 +30,7 @@ import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.TextUtils;
@@ -42,6 +46,7 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.Window;
 import android.webkit.CookieManager;
+import android.webkit.JsPromptResult;
 import android.webkit.WebChromeClient;
 import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
@@ -61,14 +66,25 @@ import android.widget.TabHost.TabSpec;
 import android.widget.TextView;
 
 import com.msopentech.applicationgateway.adapters.UrlAutoCompleteAdapter;
+import com.msopentech.applicationgateway.cache.ResponseCache;
+import com.msopentech.applicationgateway.cache.SnapshotStore;
+import com.msopentech.applicationgateway.connection.FetchEngine;
+import com.msopentech.applicationgateway.connection.MetricsRegistry;
 import com.msopentech.applicationgateway.connection.OnOperationExecutionListener;
+import com.msopentech.applicationgateway.connection.Prefetcher;
+import com.msopentech.applicationgateway.connection.RequestAccounting;
 import com.msopentech.applicationgateway.connection.Router;
+import com.msopentech.applicationgateway.connection.SessionManager;
+import com.msopentech.applicationgateway.data.AgentEntity;
 import com.msopentech.applicationgateway.data.ConnectionTraits;
+import com.msopentech.applicationgateway.data.LoadMetrics;
 import com.msopentech.applicationgateway.data.TabInfo;
 import com.msopentech.applicationgateway.data.URLInfo;
 import com.msopentech.applicationgateway.preferences.AuthPreferences;
 import com.msopentech.applicationgateway.preferences.PersistenceManager;
 import com.msopentech.applicationgateway.preferences.PersistenceManager.PersistenceObserver;
+import com.msopentech.applicationgateway.utils.BodyPipeline;
+import com.msopentech.applicationgateway.utils.UrlRewriter;
 import com.msopentech.applicationgateway.utils.Utility;
 
 /**
@@ -120,6 +136,11 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
      */
     static String CLOUD_BROWSER_URL = CLOUD_CONNECTION_HOST_PREFIX + CLOUD_CONNECTION_HOST_BROWSER_POSTFIX;
 
+    /**
+     * Rewrites URLs for the current router and browser mode. Replaced together with {@link #CLOUD_BROWSER_URL}.
+     */
+    private static volatile UrlRewriter sUrlRewriter = new UrlRewriter(CLOUD_CONNECTION_HOST_PREFIX, CLOUD_BROWSER_URL);
+
     /**
      * Attribute to check for when asserting session validity. Session is espired when it is present in the URL.
      */
@@ -174,6 +195,16 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
      * Extras key to clear cookies.
      */
     public static String EXTRAS_CLEAR_COOKIES_ON = "clear_cookies_on";
+
+    /**
+     * Extras key to pass request metrics of the current page load of the active tab.
+     */
+    public static String EXTRAS_PAGE_METRICS_KEY = "page_metrics";
+
+    /**
+     * Extras key to pass request metrics of the active tab.
+     */
+    public static String EXTRAS_TAB_METRICS_KEY = "tab_metrics";
     
     /**
      * Sign in indicator.
@@ -183,7 +214,32 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
     /**
      * Boolean to indicate if we are using smart browser.
      */
-    private boolean mUseSmartBrowser = false;    
+    private boolean mUseSmartBrowser = false;
+
+    /**
+     * Message of the JavaScript prompt the links of a finished page are passed in. Random, so that pages cannot pass fake links.
+     */
+    private final String mLinksPromptMessage = "appgateway-links:" + UUID.randomUUID();    
+
+    /**
+     * Message of the JavaScript prompt the document of a finished page is passed in. Random, so that pages cannot pass fake snapshots.
+     */
+    private final String mSnapshotPromptMessage = "appgateway-snapshot:" + UUID.randomUUID();
+
+    /**
+     * Resources collected for the snapshots of the pages being loaded, by WebView.
+     */
+    private final Map<WebView, SnapshotStore.Capture> mCaptures = Collections.synchronizedMap(new WeakHashMap<WebView, SnapshotStore.Capture>());
+
+    /**
+     * Request metrics of the current page load and of the tab, by WebView.
+     */
+    private final Map<WebView, LoadMetrics[]> mLoadMetrics = Collections.synchronizedMap(new WeakHashMap<WebView, LoadMetrics[]>());
+
+    /**
+     * WebViews showing stored snapshots instead of live pages.
+     */
+    private final Set<WebView> mOfflineViews = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<WebView, Boolean>()));
     
     /**
      * Current connection traits.
@@ -259,6 +315,32 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
          */
     String mOriginalUrl = null;
 
+    /**
+     * Receives token and session refreshed in background by {@link SessionManager}.
+     */
+    private OnOperationExecutionListener mSessionRefreshListener = new OnOperationExecutionListener() {
+        @Override
+        public void onExecutionComplete(int operation, Object[] result) {
+            ConnectionTraits traits = (ConnectionTraits) result[0];
+            if (mTraits == null || traits == null || traits.isError()) {
+                return;
+            }
+            mTraits.token = traits.token;
+            mTraits.tokenExpiry = traits.tokenExpiry;
+            if (traits.sessionID != null) {
+                if (!traits.sessionID.equals(mTraits.sessionID)) {
+                    // Pages loaded in advance belong to the previous session.
+                    Prefetcher.discard();
+                }
+                mTraits.sessionID = traits.sessionID;
+                mTraits.sessionExpiry = traits.sessionExpiry;
+            }
+        }
+
+        @Override
+        public void onBeforeExecution(int operation) {}
+    };
+
         /**
      * Custom web client to handle page loading requests.
      */
@@ -290,8 +372,10 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
                     				if(!traits.isError()) {
                     					// Updating connection traits after full auth is successful.
                     					mTraits = traits;
+                                        SessionManager.start(mTraits, mSessionRefreshListener, EnterpriseBrowserActivity.this);
                     					// Switch to agent specific stored data.
                     					PersistenceManager.initialize(mTraits.agent.getAgentId());
+                    					SnapshotStore.setNamespace(mTraits.agent.getAgentId());
                                         isInSessionExpiryRecovery = false;
                     					// Continue url load process started by the user.
                                         goToUrl(mOriginalUrl);
@@ -313,6 +397,8 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
                                     if(!traits.isError()) {
                                         // Updating session after successful session request.
                                         mTraits.setSession(traits.sessionID);
+                                        mTraits.sessionExpiry = traits.sessionExpiry;
+                                        SessionManager.start(mTraits, mSessionRefreshListener, EnterpriseBrowserActivity.this);
                                         isInSessionExpiryRecovery = false;
                                         goToUrl(mOriginalUrl);
                                     } else {
@@ -337,6 +423,20 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
                 }
                 
                 tab.setPageLoadingInProgress(true);
+                mLoadMetrics.put(view, new LoadMetrics[] { tab.startPageMetrics(), tab.getTabMetrics() });
+
+                if (mUseSmartBrowser && !mOfflineViews.contains(view)) {
+                    // Resources intercepted from now on make up the snapshot of the page.
+                    SnapshotStore.Capture capture = SnapshotStore.startCapture();
+                    if (capture == null) {
+                        discardCapture(view);
+                    } else {
+                        SnapshotStore.Capture previous = mCaptures.put(view, capture);
+                        if (previous != null) {
+                            SnapshotStore.discard(previous);
+                        }
+                    }
+                }
 
                 //We can change the toolbar here only if the current tab is active.
                 if(mCustomTabHost.isTabActive(tab)) {
@@ -355,6 +455,28 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
             }
         }
 
+        @Override
+        public boolean shouldOverrideUrlLoading(WebView view, String url) {
+            if (mOfflineViews.contains(view)) {
+                // Links on a snapshot lead to the live page if the session is back, otherwise to its snapshot.
+                goToUrl(view, convertCloudUrlToNormal(url));
+                return true;
+            }
+
+            // Page loaded in advance can be used for this navigation only.
+            Prefetcher.onNavigation(convertCloudUrlToNormal(url));
+
+            // Links on pages loaded before the session was refreshed still carry the previous session ID.
+            if (mTraits != null && mTraits.sessionID != null && url.startsWith(CLOUD_BROWSER_URL) && !url.startsWith(CLOUD_BROWSER_URL + mTraits.sessionID + "/")) {
+                String normalUrl = convertCloudUrlToNormal(url);
+                if (normalUrl != null && !normalUrl.startsWith(CLOUD_BROWSER_URL)) {
+                    view.loadUrl(convertNormalUrlToCloud(normalUrl, mTraits.sessionID, mUserOriginalURI));
+                    return true;
+                }
+            }
+            return false;
+        }
+
         @Override
         public void onPageFinished(WebView view, String url) {
             try {
@@ -380,48 +502,91 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
                     mReloadButtonView.setImageResource(R.drawable.reload_button);
                 }
 
+                // Snapshots are neither added to the history nor captured again.
+                if (mOfflineViews.contains(view)) {
+                    mProgressBarView.setProgress(0);
+                    return;
+                }
+
                 String realUrl = convertCloudUrlToNormal(url);
                 PersistenceManager.addRecord(PersistenceManager.ContentType.HISTORY, new URLInfo(realUrl, view.getTitle()));
                 mProgressBarView.setProgress(0);
+
+                if (mUseSmartBrowser && mTraits != null && mTraits.sessionID != null && AuthPreferences.loadPrefetchPages()) {
+                    // Links are passed back in a prompt handled by ProgressUpdater.onJsPrompt().
+                    view.loadUrl("javascript:(function(){var l=document.links,u=[];for(var i=0;i<l.length&&i<" + Prefetcher.MAX_LINKS
+                            + ";i++){u.push(l[i].href);}prompt('" + mLinksPromptMessage + "',u.join('\\n'));})()");
+                }
+
+                if (mCaptures.containsKey(view)) {
+                    // The document is passed back in a prompt handled by ProgressUpdater.onJsPrompt().
+                    view.loadUrl("javascript:(function(){var d=document.doctype;prompt('" + mSnapshotPromptMessage
+                            + "',(d?'<!DOCTYPE '+d.name+'>':'')+document.documentElement.outerHTML);})()");
+                }
             } catch (final Exception e) {
                 Utility.showAlertDialog(EnterpriseBrowserActivity.class.getSimpleName() + ".onPageFinished(): Failed. " + e.toString(), EnterpriseBrowserActivity.this);
             }
         }
 
+        @Override
+        public void onReceivedError(WebView view, int errorCode, String description, String failingUrl) {
+            // The gateway cannot be reached, the stored snapshot of the page is shown instead of the error page.
+            if (failingUrl != null && failingUrl.startsWith(CLOUD_BROWSER_URL) && showSnapshot(view, convertCloudUrlToNormal(failingUrl))) {
+                return;
+            }
+            super.onReceivedError(view, errorCode, description, failingUrl);
+        }
+
         @Override
         public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+            if (mOfflineViews.contains(view)) {
+                // Snapshots are read-only: everything comes from the snapshot store and nothing goes to the network.
+                String normalUrl = convertCloudUrlToNormal(url);
+                SnapshotStore.Resource resource = normalUrl == null ? null : SnapshotStore.getResource(ResponseCache.getKey(normalUrl));
+                SnapshotStore.Page page = resource == null && normalUrl != null ? SnapshotStore.getPage(normalUrl) : null;
+                InputStream stream = resource != null ? SnapshotStore.open(resource) : (page != null ? SnapshotStore.open(page) : null);
+                if (stream == null) {
+                    return new WebResourceResponse("text/plain", null, new ByteArrayInputStream(new byte[0]));
+                }
+                return resource != null ? new WebResourceResponse(resource.getMimeType(), resource.getEncoding(), stream)
+                        : new WebResourceResponse(page.getMimeType(), page.getEncoding(), stream);
+            }
+
         	if (!mUseSmartBrowser) {
         		return null;
         	} else if (url.startsWith(CLOUD_BROWSER_URL)) {
-            	return null;	
+                // Pages are loaded by WebView itself unless loaded in advance within the current session.
+                String sessionID = mTraits == null ? null : mTraits.sessionID;
+                String normalUrl = convertCloudUrlToNormal(url);
+                long start = SystemClock.elapsedRealtime();
+                FetchEngine.Result page = sessionID == null ? null : Prefetcher.take(normalUrl, sessionID);
+                if (page == null) {
+                    return null;
+                }
+                page = RequestAccounting.account(page, normalUrl, start, getLoadMetrics(view));
+                return new WebResourceResponse(page.getMimeType(), page.getEncoding(), page.getStream());
             } else if (url.contentEquals(CLOUD_CONNECTION_HOST_PREFIX + "system")) {
             	return null;
             } else {
             	try {
-                    HttpClient agentsClient = new DefaultHttpClient();
                     String fixupUrl = EnterpriseBrowserActivity.convertNormalUrlToCloud(url, mTraits.sessionID, mUserOriginalURI);
-                    HttpGet agentsRequest = new HttpGet(fixupUrl);
-                    BasicHttpResponse response = (BasicHttpResponse) agentsClient.execute(agentsRequest);
-
-                    StatusLine status = response.getStatusLine();
-                    if (status.getStatusCode() != 200 ||
-                  		response.getFirstHeader("Content-Type") == null	|| 
-                  		response.getFirstHeader("Transfer-Encoding") == null) {
-                    	return null;
-                    }
-                    
-                    HttpEntity entity = response.getEntity();
-                    if (entity == null) {
-                    	return null;
+
+                    // The fetch engine runs the request on its worker pool and hands over the body stream as soon as the headers arrive.
+                    // The connection returns to the pool once WebView reads the stream to the end and closes it.
+                    String normalUrl = EnterpriseBrowserActivity.convertCloudUrlToNormal(fixupUrl);
+                    FetchEngine.Result result = RequestAccounting.fetch(fixupUrl, normalUrl, view, getLoadMetrics(view));
+                    if (result == null) {
+                        // WebView will fetch the resource itself.
+                        return null;
                     }
-                    
-                    InputStream responseStream = entity.getContent();
-                    if (responseStream == null) {
-                    	return null;
+
+                    InputStream stream = result.getStream();
+                    SnapshotStore.Capture capture = mCaptures.get(view);
+                    if (capture != null) {
+                        stream = new BodyPipeline(stream).addStage(SnapshotStore.record(capture, ResponseCache.getKey(normalUrl),
+                                result.getMimeType(), result.getEncoding()));
                     }
-                    	
-                    return new WebResourceResponse(response.getFirstHeader("Content-Type").getValue().toString(), response.getFirstHeader("Transfer-Encoding").getValue().toString(), responseStream);
- 
+                    return new WebResourceResponse(result.getMimeType(), result.getEncoding(), stream);
     		} catch (Exception e) {
                     Utility.showAlertDialog(EnterpriseBrowserActivity.class.getSimpleName() + ".onPageFinished(): Failed. " + e.toString(), EnterpriseBrowserActivity.this);
                     return null;
@@ -430,6 +595,18 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
         }    
     }
 
+    /**
+     * Retrieves request metrics the requests of the WebView are accounted in.
+     * 
+     * @param view WebView making the requests.
+     * 
+     * @return Metrics of the current page load and of the tab. Empty if the WebView has not started a page load yet.
+     */
+    private LoadMetrics[] getLoadMetrics(WebView view) {
+        LoadMetrics[] metrics = mLoadMetrics.get(view);
+        return metrics == null ? new LoadMetrics[0] : metrics;
+    }
+
     /**
      * This delegate function is called each time a new item is added into the merged storage of PersistenceManager.
      */
@@ -450,34 +627,7 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
      */
     private static String convertNormalUrlToCloud(String url, String sessionID, String originalUrl) {
         try {
-            if (!url.startsWith(CLOUD_BROWSER_URL) && sessionID != null) {
-                boolean http = true;
-
-                if (url.startsWith(CLOUD_CONNECTION_HOST_PREFIX)) { // Special case for JS and other possible returned URLs which we need to fixup
-                	url = url.substring(CLOUD_CONNECTION_HOST_PREFIX.length());
-                	if (!originalUrl.endsWith("/"))
-                		url = originalUrl + '/' + url;
-                	else
-                		url = originalUrl + url;
-                }
-                
-                if (url.startsWith(HTTPS_PREFIX_ATTRIBUTE)) {
-                    http = false;
-                }
-
-                if (url.startsWith(HTTPS_PREFIX_ATTRIBUTE)) {
-                    url = url.substring(HTTPS_PREFIX_ATTRIBUTE.length());
-                } else if (url.startsWith(HTTP_PREFIX_ATTRIBUTE)) {
-                    url = url.substring(HTTP_PREFIX_ATTRIBUTE.length());
-                }
-
-                if (http) {
-                    url = CLOUD_BROWSER_URL + sessionID + "/" + HTTP_TOKEN_ATTRIBUTE + "/" + url;
-                } else {
-                    url = CLOUD_BROWSER_URL + sessionID + "/" + HTTPS_TOKEN_ATTRIBUTE + "/" + url;
-                }
-            }
-            return url;
+            return sUrlRewriter.toCloud(url, sessionID, originalUrl);
         } catch (final Exception e) {
             Log.d(EnterpriseBrowserActivity.class.getSimpleName() + ".convertNormalUrlToCloud()", "Failed.");
         }
@@ -492,26 +642,7 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
      */
     private static String convertCloudUrlToNormal(String url) {
         try {
-            if (!url.startsWith(CLOUD_BROWSER_URL)) {
-                return url;
-            }
-
-            int charactersToCutOff = CLOUD_BROWSER_URL.length() + 1;
-
-            String str = url.substring(charactersToCutOff);
-
-            int realAddressIndex = str.indexOf('/');
-            if (realAddressIndex == -1) {
-                return url;
-            }
-
-            realAddressIndex++;
-
-            if (realAddressIndex > str.length()) return null;
-
-            str = str.substring(realAddressIndex);
-
-            return str.replaceFirst("/", "://");
+            return sUrlRewriter.toNormal(url);
         } catch (final Exception e) {
             Utility.showAlertDialog(EnterpriseBrowserActivity.class.getSimpleName() + ".convertCloudUrlToNormal(): Failed. " + e.toString(), ApplicationGateway.getAppContext());            
         }
@@ -520,26 +651,80 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
     }
 
     /**
-     * Opens provided URL within {@linkplain WebView}
+     * Opens provided URL within active {@linkplain WebView}
      * 
      * @param normalUrl URL to be opened.
      * @return <code>True</code> if URL can be safely opened i.e. if we have a valid session ID, <code>false</code> otherwise (redirects
      *         user to perform sign-in operation).
      */
     private boolean goToUrl(String normalUrl) {
+        return goToUrl(mActiveWebView, normalUrl);
+    }
+
+    /**
+     * Opens provided URL within given {@linkplain WebView}
+     * 
+     * @param view WebView to open the URL in.
+     * @param normalUrl URL to be opened.
+     * @return <code>True</code> if URL can be safely opened i.e. if we have a valid session ID or the device is offline and the page
+     *         has a snapshot, <code>false</code> otherwise (redirects user to perform sign-in operation).
+     */
+    private boolean goToUrl(WebView view, String normalUrl) {
         Log.d(EnterpriseBrowserActivity.class.getSimpleName(), "goToUrl() for url = " + normalUrl);
         if (mTraits == null || mTraits.sessionID == null) {
             mIsSigninRequired = true;
+            // Signing in needs the network; until it is back the stored snapshot of the page is shown instead.
+            if (!Utility.isNetworkAvailable() && showSnapshot(view, normalUrl)) {
+                return true;
+            }
             //TODO:
             showSignIn(null, false);
             return false;
         } else {
+            if (mOfflineViews.remove(view)) {
+                view.getSettings().setJavaScriptEnabled(true);
+            }
             String fixupUrl = EnterpriseBrowserActivity.convertNormalUrlToCloud(normalUrl, mTraits.sessionID, mUserOriginalURI);
-            mActiveWebView.loadUrl(fixupUrl);
+            view.loadUrl(fixupUrl);
             return true;
         }
     }
 
+    /**
+     * Discards the resources collected for the page being loaded in the WebView, if any.
+     * 
+     * @param view WebView.
+     */
+    private void discardCapture(WebView view) {
+        SnapshotStore.Capture capture = mCaptures.remove(view);
+        if (capture != null) {
+            SnapshotStore.discard(capture);
+        }
+    }
+
+    /**
+     * Shows the stored snapshot of the page read-only. Scripts are disabled, so that the snapshot stays as it was captured.
+     * 
+     * @param view WebView to show the snapshot in.
+     * @param normalUrl URL of the page.
+     * @return <code>True</code> if the snapshot is shown, <code>false</code> if the page has no snapshot.
+     */
+    private boolean showSnapshot(WebView view, String normalUrl) {
+        SnapshotStore.Page page = normalUrl == null ? null : SnapshotStore.getPage(normalUrl);
+        String document = page == null ? null : SnapshotStore.readDocument(page);
+        if (document == null) {
+            return false;
+        }
+
+        discardCapture(view);
+        mOfflineViews.add(view);
+        view.getSettings().setJavaScriptEnabled(false);
+        view.loadDataWithBaseURL(normalUrl, document, page.getMimeType(), page.getEncoding(), normalUrl);
+        Utility.showToastNotification(getResources().getString(R.string.browser_offline_snapshot_notification,
+                DateFormat.getDateTimeInstance().format(new Date(page.getTime()))));
+        return true;
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         try {
@@ -548,6 +733,10 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
 
             setContentView(R.layout.main);
 
+            // Snapshots of the last agent can be shown before the user signs in.
+            AgentEntity preferredAgent = AuthPreferences.loadPreferredAgent();
+            SnapshotStore.setNamespace(preferredAgent == null ? null : preferredAgent.getAgentId());
+
             String preferredRouter = AuthPreferences.loadPreferredRouter();
             if (preferredRouter != null && !preferredRouter.isEmpty()) {
             	CLOUD_CONNECTION_HOST_PREFIX = preferredRouter;
@@ -559,6 +748,7 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
             } else {
             	CLOUD_BROWSER_URL = CLOUD_CONNECTION_HOST_PREFIX + CLOUD_CONNECTION_HOST_BROWSER_POSTFIX;
             }
+            sUrlRewriter = new UrlRewriter(CLOUD_CONNECTION_HOST_PREFIX, CLOUD_BROWSER_URL);
             
             mWebViewClient = new MyWebViewClient();
 
@@ -687,6 +877,9 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
                             }
 
                             // Clean up the session.
+                            SessionManager.stop();
+                            Prefetcher.discard();
+                            ResponseCache.clear();
                             mTraits.sessionID = null;
                             mTraits.token = null;
                             mTraits.agent = null;
@@ -710,6 +903,8 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
                             // Since it's the user's intention to sign out, his
                             // history must be dropped.
                             PersistenceManager.dropContent(PersistenceManager.ContentType.HISTORY);
+                            SnapshotStore.clear();
+                            MetricsRegistry.clearSites();
 
                             return true;
                         }
@@ -877,6 +1072,11 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
     public void showClientStatusAndDiagnostics(View v) {
         try {
             Intent intent = new Intent(this, ClientStatusAndDiagnosticsActivity.class);
+            TabInfo tab = mActiveWebView == null ? null : mCustomTabHost.getTabInfoForWebView(mActiveWebView);
+            if (tab != null) {
+                intent.putExtra(EXTRAS_PAGE_METRICS_KEY, tab.getPageMetrics());
+                intent.putExtra(EXTRAS_TAB_METRICS_KEY, tab.getTabMetrics());
+            }
             startActivityForResult(intent, ACTIVITY_CLIENT_STATUS_AND_DIAGNOSTICS);
         } catch (Exception e) {
             Utility.showAlertDialog(EnterpriseBrowserActivity.class.getSimpleName() + ".showClientStatusAndDiagnostics(): Failed. " + e.toString(), EnterpriseBrowserActivity.this);
@@ -918,6 +1118,8 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
                             }
                             // Switch to agent specific stored data.
                             PersistenceManager.initialize(mTraits.agent.getAgentId());
+                            SnapshotStore.setNamespace(mTraits.agent.getAgentId());
+                            SessionManager.start(mTraits, mSessionRefreshListener, this);
                         }
                     } else {
                         if(mTraits == null || mTraits.isError()) {
@@ -948,8 +1150,12 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
                         } else {
                             CLOUD_BROWSER_URL = CLOUD_BROWSER_URL + CLOUD_CONNECTION_HOST_BROWSER_POSTFIX;
                         }
+                        sUrlRewriter = new UrlRewriter(CLOUD_CONNECTION_HOST_PREFIX, CLOUD_BROWSER_URL);
                     
                         AuthPreferences.storePreferredRouter(url);
+                        SessionManager.stop();
+                        Prefetcher.discard();
+                        ResponseCache.clear();
                         mStatusButtonView.setImageResource(R.drawable.connection_red);
                         mCustomTabHost.clearAllHistory();
                         showSignIn(null, false);
@@ -981,6 +1187,8 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
 
                     if (traits != null && traits.sessionID != null) {
                         mTraits.sessionID = traits.sessionID;
+                        mTraits.sessionExpiry = traits.sessionExpiry;
+                        SessionManager.start(mTraits, mSessionRefreshListener, this);
                         mStatusButtonView.setImageResource(R.drawable.connection_green);
                         // Should never be null
                         if (traits.agent != null) {
@@ -989,6 +1197,7 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
                                 // Switch to agent specific stored data.
                                 PersistenceManager.dropContent(PersistenceManager.ContentType.HISTORY);
                                 PersistenceManager.initialize(mTraits.agent.getAgentId());                                
+                                SnapshotStore.setNamespace(mTraits.agent.getAgentId());
                             }
                             if (traits.agent.getDisplayName() != null) {
                                 mTraits.agent.setDisplayName(traits.agent.getDisplayName());
@@ -1011,6 +1220,38 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        SessionManager.resume();
+    }
+
+    @Override
+    protected void onPause() {
+        PersistenceManager.flush();
+        super.onPause();
+    }
+
+    @Override
+    protected void onStop() {
+        SessionManager.suspend();
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (isFinishing()) {
+            Router.cancelRequests(EnterpriseBrowserActivity.this);
+            synchronized (mCaptures) {
+                for (SnapshotStore.Capture capture : mCaptures.values()) {
+                    SnapshotStore.discard(capture);
+                }
+                mCaptures.clear();
+            }
+        }
+        super.onDestroy();
+    }
+
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         try {
@@ -1086,6 +1327,8 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
                 OnTabChangeListener listener = new OnTabChangeListener() {
                     public void onTabChanged(String tabId) {
                         mActiveWebView = (WebView) mTabHost.getCurrentView();
+                        // Requests of the visible tab go before those of the background tabs.
+                        FetchEngine.setForegroundGroup(mActiveWebView);
 
                         //Set the right condition for the back and forward buttons.
                         mForwardButtonView.setEnabled(mActiveWebView.canGoForward());
@@ -1137,6 +1380,7 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
 
                 LayoutInflater mInflater = LayoutInflater.from(EnterpriseBrowserActivity.this);
                 mActiveWebView = (WebView) mInflater.inflate(R.layout.web_view, null);
+                FetchEngine.setForegroundGroup(mActiveWebView);
 
                 mActiveWebView.setWebChromeClient(mProgressBar);
                 mActiveWebView.setWebViewClient(mWebViewClient);
@@ -1231,6 +1475,7 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
                     tabInfo = mTabStorage.elementAt(elementToDeleteIndex);
                     if(tabInfo.isPageLoadingInProgress())
                         tabInfo.getWebView().stopLoading();
+                    discardCapture(tabInfo.getWebView());
                     
                     //Now it is safe to remove the corresponding tabInfo from the storage.
                     mTabStorage.remove(elementToDeleteIndex);
@@ -1341,6 +1586,48 @@ public class EnterpriseBrowserActivity extends Activity implements PersistenceOb
          * Simple page loading progress handler.
          */
         private class ProgressUpdater extends WebChromeClient {
+            @Override
+            public boolean onJsPrompt(WebView view, String url, String message, String defaultValue, JsPromptResult result) {
+                if (mSnapshotPromptMessage.equals(message)) {
+                    result.confirm();
+                    SnapshotStore.Capture capture = mCaptures.remove(view);
+                    if (capture != null && !TextUtils.isEmpty(defaultValue)) {
+                        SnapshotStore.save(capture, convertCloudUrlToNormal(url), view.getTitle(), defaultValue);
+                    } else if (capture != null) {
+                        SnapshotStore.discard(capture);
+                    }
+                    return true;
+                }
+
+                if (!mLinksPromptMessage.equals(message)) {
+                    return super.onJsPrompt(view, url, message, defaultValue, result);
+                }
+
+                result.confirm();
+                try {
+                    if (mTraits == null || mTraits.sessionID == null || TextUtils.isEmpty(defaultValue)) {
+                        return true;
+                    }
+
+                    List<String> links = new Vector<String>();
+                    for (String link : defaultValue.split("\n")) {
+                        links.add(convertCloudUrlToNormal(link));
+                    }
+                    URLInfo[] history = PersistenceManager.getAllRecords(PersistenceManager.ContentType.HISTORY);
+                    List<String> selected = Prefetcher.selectLinks(links, history, convertCloudUrlToNormal(url), Prefetcher.MAX_PAGES);
+
+                    LinkedHashMap<String, String> pages = new LinkedHashMap<String, String>();
+                    for (String link : selected) {
+                        pages.put(link, convertNormalUrlToCloud(link, mTraits.sessionID, mUserOriginalURI));
+                    }
+                    Prefetcher.prefetch(pages, mTraits.sessionID);
+                } catch (final Exception e) {
+                    // Log.d() used intentionally, prefetch is optional.
+                    Log.d(ProgressUpdater.class.getSimpleName(), ".onJsPrompt(): Failed. " + e.toString());
+                }
+                return true;
+            }
+
             public void onProgressChanged(WebView view, int progress) {
                 try {
                     if (progress == 100) {
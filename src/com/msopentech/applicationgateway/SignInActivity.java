@@ -23,6 +23,7 @@ import android.view.View;
 import android.widget.EditText;
 import android.widget.TextView;
 
+import com.msopentech.applicationgateway.connection.ConnectionWarmer;
 import com.msopentech.applicationgateway.connection.OnOperationExecutionListener;
 import com.msopentech.applicationgateway.connection.Router;
 import com.msopentech.applicationgateway.data.ConnectionTraits;
@@ -58,6 +59,11 @@ public class SignInActivity extends Activity implements OnOperationExecutionList
 
             final boolean uiPrompt = Boolean.parseBoolean(getIntent().getStringExtra(UI_PROMPT));
 
+            if (AuthPreferences.loadWarmUpConnections()) {
+                // Resolve and connect to the hosts while the user is entering credentials.
+                ConnectionWarmer.start();
+            }
+
             Credentials loadedCredentials = AuthPreferences.loadCredentials();
 	        setContentView(R.layout.sign_in);
 	        
@@ -130,6 +136,14 @@ public class SignInActivity extends Activity implements OnOperationExecutionList
         super.onResume();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (isFinishing()) {
+            Router.cancelRequests(SignInActivity.this);
+        }
+        super.onDestroy();
+    }
+
     /**
      * Toggles between showing either progress indicator or a content pane with actual data.
      * 
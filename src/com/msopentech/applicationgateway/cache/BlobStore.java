@@ -0,0 +1,302 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.cache;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * Content-addressed store of bodies in a directory, shared by {@link ResponseCache} and {@link SnapshotStore}. Bodies are stored once
+ * per content in files named by the SHA-1 hash of the body and are reference-counted: a body is deleted once nothing refers to it.
+ * The store is not thread-safe, its owner calls it while holding its own index lock.
+ */
+class BlobStore {
+
+    /**
+     * Algorithm of the body hashes.
+     */
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    /**
+     * Algorithm of the key hashes used as file names.
+     */
+    private static final String KEY_HASH_ALGORITHM = "MD5";
+
+    /**
+     * Directory the bodies are stored in.
+     */
+    private final File mDirectory;
+
+    /**
+     * Suffix of body files.
+     */
+    private final String mSuffix;
+
+    /**
+     * Referenced bodies by hash.
+     */
+    private final HashMap<String, Blob> mBlobs = new HashMap<String, Blob>();
+
+    /**
+     * Size of referenced bodies. Shared bodies are counted once.
+     */
+    private long mSize;
+
+    /**
+     * Default constructor.
+     * 
+     * @param directory Directory the bodies are stored in.
+     * @param suffix Suffix of body files, distinguishing them from other files in the directory.
+     */
+    BlobStore(File directory, String suffix) {
+        mDirectory = directory;
+        mSuffix = suffix;
+    }
+
+    /**
+     * Returns the file of the body.
+     * 
+     * @param hash Body hash.
+     * 
+     * @return File in the store directory. It does not exist if the body is not stored.
+     */
+    File getFile(String hash) {
+        return new File(mDirectory, hash + mSuffix);
+    }
+
+    /**
+     * Checks whether the body is stored.
+     * 
+     * @param hash Body hash.
+     * 
+     * @return <code>true</code> if the body is referenced or its file exists.
+     */
+    boolean exists(String hash) {
+        return mBlobs.containsKey(hash) || getFile(hash).isFile();
+    }
+
+    /**
+     * Returns the size of the stored body.
+     * 
+     * @param hash Body hash.
+     * 
+     * @return Size in bytes or -1 if the body is not stored.
+     */
+    long getLength(String hash) {
+        Blob blob = mBlobs.get(hash);
+        if (blob != null) {
+            return blob.mLength;
+        }
+        File file = getFile(hash);
+        return file.isFile() ? file.length() : -1;
+    }
+
+    /**
+     * Returns the number of references to the body.
+     * 
+     * @param hash Body hash.
+     * 
+     * @return Reference count, 0 if the body is not referenced.
+     */
+    int getReferenceCount(String hash) {
+        Blob blob = mBlobs.get(hash);
+        return blob == null ? 0 : blob.mReferences;
+    }
+
+    /**
+     * Returns the size of referenced bodies.
+     * 
+     * @return Size in bytes. Bodies referred to several times are counted once.
+     */
+    long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Moves the body written to the temporary file to its place. The temporary file is deleted if the same body is already stored.
+     * The body is not referenced, see {@link #acquire(String)}.
+     * 
+     * @param temp Temporary file with the body, in the store directory.
+     * @param hash Body hash.
+     * 
+     * @return <code>true</code> if the body is stored.
+     */
+    boolean commit(File temp, String hash) {
+        if (exists(hash)) {
+            temp.delete();
+            return true;
+        }
+        if (!temp.renameTo(getFile(hash))) {
+            Log.d(BlobStore.class.getSimpleName(), "commit(): Failed to rename " + temp.getName());
+            temp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a reference to the stored body.
+     * 
+     * @param hash Body hash.
+     * 
+     * @return <code>true</code> if the body is referenced, <code>false</code> if it is not stored.
+     */
+    boolean acquire(String hash) {
+        Blob blob = mBlobs.get(hash);
+        if (blob == null) {
+            long length = getLength(hash);
+            if (length < 0) {
+                return false;
+            }
+            blob = new Blob(length);
+            mBlobs.put(hash, blob);
+            mSize += length;
+        }
+        blob.mReferences++;
+        return true;
+    }
+
+    /**
+     * Removes a reference to the body. The body is deleted once nothing refers to it.
+     * 
+     * @param hash Body hash.
+     * 
+     * @return <code>true</code> if the body has been deleted.
+     */
+    boolean release(String hash) {
+        Blob blob = mBlobs.get(hash);
+        if (blob == null || --blob.mReferences > 0) {
+            return false;
+        }
+        mBlobs.remove(hash);
+        mSize -= blob.mLength;
+        getFile(hash).delete();
+        return true;
+    }
+
+    /**
+     * Deletes the body files nothing refers to, e.g. left by a crash. Called once the references of the stored index are acquired.
+     * 
+     * @param files Files of the store directory.
+     */
+    void deleteUnreferenced(File[] files) {
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(mSuffix) && !mBlobs.containsKey(name.substring(0, name.length() - mSuffix.length()))) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Forgets all references. Files are left to the caller.
+     */
+    void clear() {
+        mBlobs.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Creates a digest computing body hashes.
+     * 
+     * @return Message digest.
+     */
+    static MessageDigest newDigest() {
+        return newDigest(HASH_ALGORITHM);
+    }
+
+    /**
+     * Computes the hash of the body.
+     * 
+     * @param body Body.
+     * 
+     * @return Body hash.
+     */
+    static String hash(byte[] body) {
+        return toHex(newDigest().digest(body));
+    }
+
+    /**
+     * Converts the key into a name for the files stored for it.
+     * 
+     * @param key Key, e.g. a cache key.
+     * 
+     * @return Lower-case hexadecimal hash of the key.
+     */
+    static String hashKey(String key) {
+        try {
+            return toHex(newDigest(KEY_HASH_ALGORITHM).digest(key.getBytes("UTF-8")));
+        } catch (final Exception e) {
+            // UTF-8 is always available.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Converts the digest into a hexadecimal string.
+     * 
+     * @param digest Digest bytes.
+     * 
+     * @return Lower-case hexadecimal string.
+     */
+    static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte value : digest) {
+            hex.append(Character.forDigit((value >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(value & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Creates a message digest.
+     * 
+     * @param algorithm Digest algorithm.
+     * 
+     * @return Message digest.
+     */
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (final Exception e) {
+            // MD5 and SHA-1 are always available.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reference count and size of a stored body.
+     */
+    private static class Blob {
+
+        /**
+         * Body size in bytes.
+         */
+        final long mLength;
+
+        /**
+         * Number of references to the body.
+         */
+        int mReferences;
+
+        /**
+         * Default constructor.
+         * 
+         * @param length Body size in bytes.
+         */
+        Blob(long length) {
+            mLength = length;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateUtils;
+
+import android.text.TextUtils;
+
+/**
+ * Describes a cached response: its key, the values needed to hand it to WebView, its validators and how long it stays fresh.
+ */
+public class CacheEntry {
+
+    /**
+     * Version of the stored metadata format.
+     */
+    static final int VERSION = 3;
+
+    /**
+     * Share of the time since the last modification a response without explicit lifetime is considered fresh for.
+     */
+    private static final double HEURISTIC_FRESHNESS_FACTOR = 0.1;
+
+    /**
+     * Maximum lifetime (in milliseconds) assigned to a response without explicit lifetime.
+     */
+    private static final long MAX_HEURISTIC_FRESHNESS = 24 * 60 * 60 * 1000;
+
+    /**
+     * Cache key.
+     */
+    private final String mKey;
+
+    /**
+     * MIME type passed to WebView.
+     */
+    private final String mMimeType;
+
+    /**
+     * Encoding passed to WebView.
+     */
+    private final String mEncoding;
+
+    /**
+     * Value of the ETag header or <code>null</code>.
+     */
+    private String mETag;
+
+    /**
+     * Value of the Last-Modified header or <code>null</code>.
+     */
+    private String mLastModified;
+
+    /**
+     * Time (in milliseconds since epoch) the response stops being fresh.
+     */
+    private long mExpiry;
+
+    /**
+     * Indicates whether the response must be revalidated before every use.
+     */
+    private boolean mNoCache;
+
+    /**
+     * Body length in bytes.
+     */
+    private long mLength;
+
+    /**
+     * SHA-1 hash of the body (hexadecimal). Entries of equal bodies share the stored body.
+     */
+    private String mHash;
+
+    /**
+     * Creates entry for the response received just now.
+     * 
+     * @param key Cache key.
+     * @param mimeType MIME type passed to WebView.
+     * @param encoding Encoding passed to WebView.
+     * @param response Response headers.
+     */
+    CacheEntry(String key, String mimeType, String encoding, HttpResponse response) {
+        mKey = key;
+        mMimeType = mimeType;
+        mEncoding = encoding;
+        update(response);
+    }
+
+    /**
+     * Creates entry with all fields given.
+     * 
+     * @param key Cache key.
+     * @param mimeType MIME type passed to WebView.
+     * @param encoding Encoding passed to WebView.
+     */
+    private CacheEntry(String key, String mimeType, String encoding) {
+        mKey = key;
+        mMimeType = mimeType;
+        mEncoding = encoding;
+    }
+
+    /**
+     * Returns the cache key.
+     * 
+     * @return Normalized URL.
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * Returns the MIME type passed to WebView.
+     * 
+     * @return MIME type.
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * Returns the encoding passed to WebView.
+     * 
+     * @return Encoding.
+     */
+    public String getEncoding() {
+        return mEncoding;
+    }
+
+    /**
+     * Returns the body length.
+     * 
+     * @return Length in bytes.
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Checks whether the entry can be used without revalidation.
+     * 
+     * @return <code>true</code> if the entry is fresh.
+     */
+    public boolean isFresh() {
+        return !mNoCache && System.currentTimeMillis() < mExpiry;
+    }
+
+    /**
+     * Checks whether the entry has a validator a conditional request can be made with.
+     * 
+     * @return <code>true</code> if ETag or Last-Modified is known.
+     */
+    public boolean hasValidators() {
+        return mETag != null || mLastModified != null;
+    }
+
+    /**
+     * Returns the value for the If-None-Match header.
+     * 
+     * @return ETag or <code>null</code>.
+     */
+    public String getETag() {
+        return mETag;
+    }
+
+    /**
+     * Returns the value for the If-Modified-Since header.
+     * 
+     * @return Last modification date or <code>null</code>.
+     */
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * Sets the body length.
+     * 
+     * @param length Length in bytes.
+     */
+    void setLength(long length) {
+        mLength = length;
+    }
+
+    /**
+     * Returns the hash the body is stored under.
+     * 
+     * @return SHA-1 hash (hexadecimal).
+     */
+    String getHash() {
+        return mHash;
+    }
+
+    /**
+     * Sets the hash the body is stored under.
+     * 
+     * @param hash SHA-1 hash (hexadecimal).
+     */
+    void setHash(String hash) {
+        mHash = hash;
+    }
+
+    /**
+     * Updates validators and freshness from the response headers. Called for the original response and for 304 (Not Modified)
+     * responses to revalidation requests.
+     * 
+     * @param response Response headers.
+     */
+    void update(HttpResponse response) {
+        long now = System.currentTimeMillis();
+
+        String eTag = getHeader(response, "ETag");
+        if (eTag != null) {
+            mETag = eTag;
+        }
+        String lastModified = getHeader(response, "Last-Modified");
+        if (lastModified != null) {
+            mLastModified = lastModified;
+        }
+
+        long maxAge = -1;
+        mNoCache = false;
+        for (Header header : response.getHeaders("Cache-Control")) {
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName();
+                if ("no-cache".equalsIgnoreCase(name)) {
+                    mNoCache = true;
+                } else if ("max-age".equalsIgnoreCase(name)) {
+                    maxAge = parseSeconds(element.getValue());
+                }
+            }
+        }
+        if (maxAge < 0 && "no-cache".equalsIgnoreCase(getHeader(response, "Pragma"))) {
+            mNoCache = true;
+        }
+
+        long age = Math.max(0, parseSeconds(getHeader(response, "Age")));
+        Date date = parseDate(getHeader(response, "Date"));
+        long serverNow = date == null ? now : date.getTime();
+
+        long lifetime = 0;
+        if (maxAge >= 0) {
+            lifetime = maxAge * 1000;
+        } else {
+            Date expires = parseDate(getHeader(response, "Expires"));
+            Date modified = parseDate(mLastModified);
+            if (expires != null) {
+                lifetime = expires.getTime() - serverNow;
+            } else if (modified != null) {
+                lifetime = Math.min(MAX_HEURISTIC_FRESHNESS, (long) ((serverNow - modified.getTime()) * HEURISTIC_FRESHNESS_FACTOR));
+            }
+        }
+
+        mExpiry = now + lifetime - age * 1000;
+    }
+
+    /**
+     * Writes metadata.
+     * 
+     * @param out Stream to write to.
+     * 
+     * @throws IOException If writing fails.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeUTF(mKey);
+        out.writeUTF(mMimeType == null ? "" : mMimeType);
+        out.writeUTF(mEncoding == null ? "" : mEncoding);
+        out.writeUTF(mETag == null ? "" : mETag);
+        out.writeUTF(mLastModified == null ? "" : mLastModified);
+        out.writeLong(mExpiry);
+        out.writeBoolean(mNoCache);
+        out.writeLong(mLength);
+        out.writeUTF(mHash);
+    }
+
+    /**
+     * Reads metadata written by {@link #write(DataOutputStream)}.
+     * 
+     * @param in Stream to read from.
+     * 
+     * @return Entry or <code>null</code> if the metadata has different version.
+     * 
+     * @throws IOException If reading fails.
+     */
+    static CacheEntry read(DataInputStream in) throws IOException {
+        if (in.readInt() != VERSION) {
+            return null;
+        }
+
+        String key = in.readUTF();
+        String mimeType = in.readUTF();
+        String encoding = in.readUTF();
+        CacheEntry entry = new CacheEntry(key, TextUtils.isEmpty(mimeType) ? null : mimeType, TextUtils.isEmpty(encoding) ? null : encoding);
+        String eTag = in.readUTF();
+        entry.mETag = TextUtils.isEmpty(eTag) ? null : eTag;
+        String lastModified = in.readUTF();
+        entry.mLastModified = TextUtils.isEmpty(lastModified) ? null : lastModified;
+        entry.mExpiry = in.readLong();
+        entry.mNoCache = in.readBoolean();
+        entry.mLength = in.readLong();
+        entry.mHash = in.readUTF();
+        return entry;
+    }
+
+    /**
+     * Returns the value of the first header with the name.
+     * 
+     * @param response Response.
+     * @param name Header name.
+     * 
+     * @return Header value or <code>null</code>.
+     */
+    static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * Parses a number of seconds.
+     * 
+     * @param value Header value.
+     * 
+     * @return Seconds or -1 if the value is missing or malformed.
+     */
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses an HTTP date.
+     * 
+     * @param value Header value.
+     * 
+     * @return Date or <code>null</code> if the value is missing or malformed.
+     */
+    private static Date parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return DateUtils.parseDate(value);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,722 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.msopentech.applicationgateway.ApplicationGateway;
+import com.msopentech.applicationgateway.utils.BodyPipeline;
+import com.msopentech.applicationgateway.utils.PooledOutputStream;
+
+/**
+ * Implements the HTTP cache of the resources loaded through the gateway in smart browser mode. Bodies are kept on disk in the
+ * application cache directory and the small ones also in memory, both evicted in the least recently used order when over budget.
+ * Entries are keyed by the regular (not 'cloudified') URL, so they survive session changes. Bodies are kept in a {@link BlobStore}
+ * by the hash of their content and entries only refer to them, so identical resources served under different URLs (e.g. the same script library with
+ * different query strings) are stored once.
+ */
+public class ResponseCache {
+
+    /**
+     * Default maximum size (in bytes) of bodies kept in memory.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 2 * 1024 * 1024;
+
+    /**
+     * Default maximum size (in bytes) of bodies kept on disk.
+     */
+    public static final long DEFAULT_DISK_BUDGET = 20 * 1024 * 1024;
+
+    /**
+     * Maximum size (in bytes) of a body to be kept in memory.
+     */
+    private static final int MAX_MEMORY_ENTRY_SIZE = 128 * 1024;
+
+    /**
+     * Name of the cache subdirectory.
+     */
+    private static final String DIRECTORY_NAME = "gateway-http";
+
+    /**
+     * Suffix of metadata files.
+     */
+    private static final String METADATA_SUFFIX = ".0";
+
+    /**
+     * Suffix of body files. Body files are named by the body hash.
+     */
+    private static final String BODY_SUFFIX = ".1";
+
+    /**
+     * Suffix of files being written.
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Entries stored on disk, least recently used first.
+     */
+    private static final LinkedHashMap<String, CacheEntry> sEntries = new LinkedHashMap<String, CacheEntry>(64, 0.75f, true);
+
+    /**
+     * Bodies stored on disk. Initialized lazily together with the index of stored entries.
+     */
+    private static BlobStore sBlobs;
+
+    /**
+     * Bodies kept in memory by hash, least recently used first.
+     */
+    private static final LinkedHashMap<String, byte[]> sBodies = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    /**
+     * Maximum size of bodies kept in memory.
+     */
+    private static long sMemoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    /**
+     * Maximum size of bodies kept on disk.
+     */
+    private static long sDiskBudget = DEFAULT_DISK_BUDGET;
+
+    /**
+     * Size of bodies kept in memory.
+     */
+    private static long sMemorySize;
+
+    /**
+     * Cache directory. Initialized lazily together with the index of stored entries.
+     */
+    private static File sDirectory;
+
+    /**
+     * Number of requests served from the cache without going to the gateway.
+     */
+    private static final AtomicLong sHits = new AtomicLong();
+
+    /**
+     * Number of requests served from the cache after a conditional request.
+     */
+    private static final AtomicLong sRevalidations = new AtomicLong();
+
+    /**
+     * Number of requests that had to be loaded from the gateway.
+     */
+    private static final AtomicLong sMisses = new AtomicLong();
+
+    /**
+     * Converts regular URL into cache key.
+     * 
+     * @param url Regular URL.
+     * 
+     * @return Key with fragment removed and scheme and host lower-cased.
+     */
+    public static String getKey(String url) {
+        int fragment = url.indexOf('#');
+        if (fragment >= 0) {
+            url = url.substring(0, fragment);
+        }
+
+        int hostStart = url.indexOf("://");
+        if (hostStart < 0) {
+            return url;
+        }
+        hostStart += 3;
+        int hostEnd = url.indexOf('/', hostStart);
+        if (hostEnd < 0) {
+            hostEnd = url.length();
+        }
+        return url.substring(0, hostEnd).toLowerCase() + url.substring(hostEnd);
+    }
+
+    /**
+     * Returns the entry stored for the key.
+     * 
+     * @param key Cache key (see {@link #getKey(String)}).
+     * 
+     * @return Entry or <code>null</code> if nothing is stored.
+     */
+    public static CacheEntry get(String key) {
+        synchronized (sEntries) {
+            ensureLoaded();
+            return sEntries.get(key);
+        }
+    }
+
+    /**
+     * Opens the body of the entry.
+     * 
+     * @param entry Entry returned by {@link #get(String)}.
+     * @param revalidated Indicates whether the entry has just been revalidated with the gateway.
+     * 
+     * @return Body stream or <code>null</code> if the body is not available any more.
+     */
+    public static InputStream open(CacheEntry entry, boolean revalidated) {
+        String key = entry.getKey();
+        byte[] body;
+        synchronized (sEntries) {
+            body = sBodies.get(entry.getHash());
+        }
+
+        InputStream stream = null;
+        if (body != null) {
+            stream = new ByteArrayInputStream(body);
+            getFile(key, METADATA_SUFFIX).setLastModified(System.currentTimeMillis());
+        } else {
+            try {
+                stream = new BufferedInputStream(new FileInputStream(sBlobs.getFile(entry.getHash())));
+                getFile(key, METADATA_SUFFIX).setLastModified(System.currentTimeMillis());
+            } catch (final Exception e) {
+                Log.d(ResponseCache.class.getSimpleName(), "open(): Failed. " + e.toString());
+                remove(key);
+                return null;
+            }
+        }
+
+        (revalidated ? sRevalidations : sHits).incrementAndGet();
+        return stream;
+    }
+
+    /**
+     * Adds validators of the entry to the request so that the gateway responds with 304 (Not Modified) if the entry is still valid.
+     * 
+     * @param request Request to the resource.
+     * @param entry Stored entry of the resource.
+     */
+    public static void addValidators(HttpUriRequest request, CacheEntry entry) {
+        if (entry.getETag() != null) {
+            request.addHeader("If-None-Match", entry.getETag());
+        }
+        if (entry.getLastModified() != null) {
+            request.addHeader("If-Modified-Since", entry.getLastModified());
+        }
+    }
+
+    /**
+     * Updates the entry with the headers of 304 (Not Modified) response.
+     * 
+     * @param entry Revalidated entry.
+     * @param response Response to the conditional request.
+     */
+    public static void update(CacheEntry entry, HttpResponse response) {
+        synchronized (sEntries) {
+            entry.update(response);
+            try {
+                writeMetadata(entry);
+            } catch (final Exception e) {
+                Log.d(ResponseCache.class.getSimpleName(), "update(): Failed. " + e.toString());
+            }
+        }
+    }
+
+    /**
+     * Checks whether the response can be stored.
+     * 
+     * @param response Response to GET request.
+     * 
+     * @return <code>true</code> if the response is successful and its headers allow storing it.
+     */
+    public static boolean isCacheable(HttpResponse response) {
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+            return false;
+        }
+
+        for (Header header : response.getHeaders("Cache-Control")) {
+            for (HeaderElement element : header.getElements()) {
+                if ("no-store".equalsIgnoreCase(element.getName())) {
+                    return false;
+                }
+            }
+        }
+
+        // Variants are not tracked, so only responses that do not depend on request headers are stored.
+        Header vary = response.getFirstHeader("Vary");
+        if (vary != null && !"Accept-Encoding".equalsIgnoreCase(vary.getValue().trim())) {
+            return false;
+        }
+
+        CacheEntry probe = new CacheEntry(null, null, null, response);
+        return probe.isFresh() || probe.hasValidators();
+    }
+
+    /**
+     * Creates a body pipeline stage storing the response body while it is read. The entry is added once the body is read to the end,
+     * it is discarded if the body is not read completely.
+     * 
+     * @param key Cache key (see {@link #getKey(String)}).
+     * @param mimeType MIME type passed to WebView.
+     * @param encoding Encoding passed to WebView.
+     * @param response Response the body belongs to. Must be cacheable (see {@link #isCacheable(HttpResponse)}).
+     * 
+     * @return Stage to attach to the body pipeline or <code>null</code> if the body cannot be stored.
+     */
+    public static BodyPipeline.Stage put(String key, String mimeType, String encoding, HttpResponse response) {
+        try {
+            synchronized (sEntries) {
+                ensureLoaded();
+            }
+            CacheEntry entry = new CacheEntry(key, mimeType, encoding, response);
+            File temp = File.createTempFile(getFile(key, "").getName(), TEMP_SUFFIX, sDirectory);
+            return new CachingStage(entry, temp);
+        } catch (final Exception e) {
+            Log.d(ResponseCache.class.getSimpleName(), "put(): Failed. " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Removes the entry stored for the key.
+     * 
+     * @param key Cache key.
+     */
+    public static void remove(String key) {
+        synchronized (sEntries) {
+            ensureLoaded();
+            CacheEntry entry = sEntries.remove(key);
+            if (entry != null) {
+                release(entry);
+                getFile(key, METADATA_SUFFIX).delete();
+            }
+        }
+    }
+
+    /**
+     * Removes all stored entries, e.g. when the user signs out.
+     */
+    public static void clear() {
+        synchronized (sEntries) {
+            ensureLoaded();
+            sEntries.clear();
+            sBlobs.clear();
+            sBodies.clear();
+            sMemorySize = 0;
+            File[] files = sDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes the cache budgets. Entries over the new budgets are evicted.
+     * 
+     * @param memoryBudget Maximum size (in bytes) of bodies kept in memory.
+     * @param diskBudget Maximum size (in bytes) of bodies kept on disk.
+     */
+    public static void setBudget(long memoryBudget, long diskBudget) {
+        if (memoryBudget < 0 || diskBudget < 0) {
+            throw new IllegalArgumentException("Cache budget must not be negative.");
+        }
+
+        synchronized (sEntries) {
+            sMemoryBudget = memoryBudget;
+            sDiskBudget = diskBudget;
+            if (sDirectory != null) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Returns the size of stored bodies. Bodies shared by several entries are counted once.
+     * 
+     * @return Size in bytes.
+     */
+    public static long getSize() {
+        synchronized (sEntries) {
+            return sBlobs == null ? 0 : sBlobs.getSize();
+        }
+    }
+
+    /**
+     * Returns the number of requests served from the cache without going to the gateway.
+     * 
+     * @return Hit count.
+     */
+    public static long getHitCount() {
+        return sHits.get();
+    }
+
+    /**
+     * Returns the number of requests served from the cache after the gateway confirmed the stored entry is still valid.
+     * 
+     * @return Revalidation count.
+     */
+    public static long getRevalidationCount() {
+        return sRevalidations.get();
+    }
+
+    /**
+     * Records a request that had to be loaded from the gateway.
+     */
+    public static void onMiss() {
+        sMisses.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of requests that had to be loaded from the gateway.
+     * 
+     * @return Miss count.
+     */
+    public static long getMissCount() {
+        return sMisses.get();
+    }
+
+    /**
+     * Adds the entry whose body has been written to the temporary file. If an equal body is stored already, the entry refers to it
+     * and the temporary file is deleted. Must not be called while holding the index lock.
+     * 
+     * @param entry Entry to add. Its hash and length must be set.
+     * @param temp Temporary file with the body.
+     * @param body Body if it is small enough to be kept in memory, otherwise <code>null</code>.
+     */
+    private static void commit(CacheEntry entry, File temp, byte[] body) {
+        String key = entry.getKey();
+        String hash = entry.getHash();
+        try {
+            synchronized (sEntries) {
+                if (!sBlobs.commit(temp, hash) || !sBlobs.acquire(hash)) {
+                    throw new IOException("Failed to store " + hash);
+                }
+                // Referred before the previous entry is released, so a body equal to the previous one is kept.
+                if (body != null && !sBodies.containsKey(hash)) {
+                    sBodies.put(hash, body);
+                    sMemorySize += body.length;
+                }
+
+                CacheEntry previous = sEntries.remove(key);
+                if (previous != null) {
+                    release(previous);
+                }
+
+                sEntries.put(key, entry);
+                writeMetadata(entry);
+                evict();
+            }
+        } catch (final Exception e) {
+            Log.d(ResponseCache.class.getSimpleName(), "commit(): Failed. " + e.toString());
+            temp.delete();
+            remove(key);
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until both budgets are met. Entries whose body is shared with other entries are evicted
+     * last: evicting them frees no space while the body stays, and shared bodies are the most useful ones. Must be called while
+     * holding the index lock.
+     */
+    private static void evict() {
+        Iterator<Map.Entry<String, byte[]>> bodies = sBodies.entrySet().iterator();
+        while (sMemorySize > sMemoryBudget && bodies.hasNext()) {
+            sMemorySize -= bodies.next().getValue().length;
+            bodies.remove();
+        }
+
+        for (int pass = 0; pass < 2 && sBlobs.getSize() > sDiskBudget; pass++) {
+            Iterator<Map.Entry<String, CacheEntry>> entries = sEntries.entrySet().iterator();
+            while (sBlobs.getSize() > sDiskBudget && entries.hasNext()) {
+                CacheEntry entry = entries.next().getValue();
+                if (pass == 0 && sBlobs.getReferenceCount(entry.getHash()) > 1) {
+                    continue;
+                }
+                entries.remove();
+                release(entry);
+                getFile(entry.getKey(), METADATA_SUFFIX).delete();
+            }
+        }
+    }
+
+    /**
+     * Drops the reference of the removed entry to its body. The body is deleted once no entry refers to it. Must be called while
+     * holding the index lock.
+     * 
+     * @param entry Entry removed from the index.
+     */
+    private static void release(CacheEntry entry) {
+        String hash = entry.getHash();
+        if (!sBlobs.release(hash)) {
+            return;
+        }
+
+        byte[] body = sBodies.remove(hash);
+        if (body != null) {
+            sMemorySize -= body.length;
+        }
+    }
+
+    /**
+     * Creates the cache directory and reads the index of stored entries on the first call. Must be called while holding the index
+     * lock.
+     */
+    private static void ensureLoaded() {
+        if (sDirectory != null) {
+            return;
+        }
+
+        Context context = ApplicationGateway.getAppContext();
+        sDirectory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        sBlobs = new BlobStore(sDirectory, BODY_SUFFIX);
+        if (!sDirectory.isDirectory() && !sDirectory.mkdirs()) {
+            Log.e(ResponseCache.class.getSimpleName(), "ensureLoaded(): Failed to create " + sDirectory);
+            return;
+        }
+
+        File[] files = sDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // Last access time is kept as the metadata file modification time, so oldest entries go first to restore the LRU order.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long difference = lhs.lastModified() - rhs.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(METADATA_SUFFIX)) {
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    file.delete();
+                }
+                continue;
+            }
+
+            CacheEntry entry = readMetadata(file);
+            if (entry == null || sBlobs.getLength(entry.getHash()) != entry.getLength() || !sBlobs.acquire(entry.getHash())) {
+                file.delete();
+                continue;
+            }
+            sEntries.put(entry.getKey(), entry);
+        }
+
+        // Bodies no entry refers to, e.g. left by a crash or stored in an older format.
+        sBlobs.deleteUnreferenced(files);
+        evict();
+    }
+
+    /**
+     * Writes the entry metadata file.
+     * 
+     * @param entry Entry.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private static void writeMetadata(CacheEntry entry) throws IOException {
+        File file = getFile(entry.getKey(), METADATA_SUFFIX);
+        File temp = new File(sDirectory, file.getName() + TEMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            entry.write(out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to rename " + temp.getName());
+        }
+    }
+
+    /**
+     * Reads the entry metadata file.
+     * 
+     * @param file Metadata file.
+     * 
+     * @return Entry or <code>null</code> if the file is missing or corrupt.
+     */
+    private static CacheEntry readMetadata(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return CacheEntry.read(in);
+        } catch (final Exception e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the file for the key. File names are hashes of keys.
+     * 
+     * @param key Cache key.
+     * @param suffix File name suffix.
+     * 
+     * @return File in the cache directory.
+     */
+    private static File getFile(String key, String suffix) {
+        return new File(sDirectory, BlobStore.hashKey(key) + suffix);
+    }
+
+    /**
+     * Body pipeline stage writing the body into the temporary file and computing its hash while it is read. Caching is silently
+     * abandoned if writing fails, reading goes on.
+     */
+    private static class CachingStage implements BodyPipeline.Stage {
+
+        /**
+         * Entry being stored.
+         */
+        private final CacheEntry mEntry;
+
+        /**
+         * Temporary file with the body.
+         */
+        private final File mTemp;
+
+        /**
+         * Stream writing the temporary file. <code>null</code> if caching is abandoned or finished.
+         */
+        private OutputStream mFileOut;
+
+        /**
+         * Copy of the body kept in memory. <code>null</code> once the body is too large.
+         */
+        private ByteArrayOutputStream mMemoryOut = new ByteArrayOutputStream();
+
+        /**
+         * Digest of the body read.
+         */
+        private final MessageDigest mDigest;
+
+        /**
+         * Number of bytes read.
+         */
+        private long mLength;
+
+        /**
+         * Default constructor.
+         * 
+         * @param entry Entry being stored.
+         * @param temp Temporary file to write the body to.
+         * 
+         * @throws IOException If the temporary file cannot be opened.
+         */
+        CachingStage(CacheEntry entry, File temp) throws IOException {
+            mEntry = entry;
+            mTemp = temp;
+            mDigest = BlobStore.newDigest();
+            mFileOut = new PooledOutputStream(new FileOutputStream(temp));
+        }
+
+        @Override
+        public void onData(byte[] buffer, int offset, int count) throws IOException {
+            if (mFileOut == null) {
+                return;
+            }
+
+            mLength += count;
+            if (mLength > sDiskBudget) {
+                onAbort();
+                return;
+            }
+
+            try {
+                mFileOut.write(buffer, offset, count);
+            } catch (final IOException e) {
+                onAbort();
+                throw e;
+            }
+            mDigest.update(buffer, offset, count);
+
+            if (mMemoryOut != null) {
+                if (mLength > MAX_MEMORY_ENTRY_SIZE) {
+                    mMemoryOut = null;
+                } else {
+                    mMemoryOut.write(buffer, offset, count);
+                }
+            }
+        }
+
+        @Override
+        public void onEnd() {
+            if (mFileOut == null) {
+                return;
+            }
+
+            try {
+                mFileOut.close();
+            } catch (final IOException e) {
+                Log.d(ResponseCache.class.getSimpleName(), "onEnd(): Failed. " + e.toString());
+                mFileOut = null;
+                mMemoryOut = null;
+                mTemp.delete();
+                return;
+            }
+            mFileOut = null;
+
+            mEntry.setLength(mLength);
+            mEntry.setHash(BlobStore.toHex(mDigest.digest()));
+            commit(mEntry, mTemp, mMemoryOut == null ? null : mMemoryOut.toByteArray());
+            mMemoryOut = null;
+        }
+
+        @Override
+        public void onAbort() {
+            if (mFileOut == null) {
+                return;
+            }
+
+            try {
+                mFileOut.close();
+            } catch (IOException e) {
+            }
+            mFileOut = null;
+            mMemoryOut = null;
+            mTemp.delete();
+        }
+
+        @Override
+        public boolean needsRemainder() {
+            return false;
+        }
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private ResponseCache() {
+    }
+}
@@ -0,0 +1,1091 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.msopentech.applicationgateway.ApplicationGateway;
+import com.msopentech.applicationgateway.utils.BodyPipeline;
+import com.msopentech.applicationgateway.utils.PooledOutputStream;
+
+/**
+ * Keeps read-only snapshots of the pages loaded in smart browser mode so that they can be shown while the gateway is unreachable. A
+ * snapshot consists of the page document and the resources intercepted while the page was loading. Bodies are kept in a
+ * {@link BlobStore}, once per content, and shared by all snapshots referring to them. Every agent has its own
+ * namespace in the application files directory, its snapshots are evicted in the least recently used order when over budget.
+ */
+public class SnapshotStore {
+
+    /**
+     * Default maximum size (in bytes) of bodies kept for one agent.
+     */
+    public static final long DEFAULT_BUDGET = 25 * 1024 * 1024;
+
+    /**
+     * Maximum size (in bytes) of a resource to be kept in a snapshot.
+     */
+    private static final int MAX_RESOURCE_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * Maximum number of resources kept in one snapshot.
+     */
+    private static final int MAX_PAGE_RESOURCES = 300;
+
+    /**
+     * Maximum length of a resource URL. Longer ones (e.g. data URLs) are not kept.
+     */
+    private static final int MAX_KEY_LENGTH = 2048;
+
+    /**
+     * Version of the stored snapshot format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * MIME type of page documents.
+     */
+    private static final String DOCUMENT_MIME_TYPE = "text/html";
+
+    /**
+     * Encoding of page documents.
+     */
+    private static final String DOCUMENT_ENCODING = "UTF-8";
+
+    /**
+     * Name of the subdirectory of the application files directory the namespaces are created in.
+     */
+    private static final String DIRECTORY_NAME = "snapshots";
+
+    /**
+     * Suffix of snapshot files.
+     */
+    private static final String PAGE_SUFFIX = ".page";
+
+    /**
+     * Suffix of body files.
+     */
+    private static final String BLOB_SUFFIX = ".blob";
+
+    /**
+     * Suffix of files being written.
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Stored snapshots by page key, least recently used first.
+     */
+    private static final LinkedHashMap<String, Page> sPages = new LinkedHashMap<String, Page>(32, 0.75f, true);
+
+    /**
+     * Latest stored version of every resource by its key.
+     */
+    private static final HashMap<String, Resource> sResources = new HashMap<String, Resource>();
+
+    /**
+     * Stored bodies of the current namespace. Initialized lazily together with the index of stored snapshots.
+     */
+    private static BlobStore sBlobs;
+
+    /**
+     * Thread snapshots are written on.
+     */
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, SnapshotStore.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Current namespace (agent ID) or <code>null</code> if snapshots are not kept.
+     */
+    private static String sNamespace;
+
+    /**
+     * Directory of the current namespace. Initialized lazily together with the index of stored snapshots.
+     */
+    private static File sDirectory;
+
+    /**
+     * Maximum size of bodies kept for one agent.
+     */
+    private static long sBudget = DEFAULT_BUDGET;
+
+    /**
+     * Incremented whenever the index is forgotten, so that captures started before do not release references they do not hold.
+     */
+    private static int sGeneration;
+
+    /**
+     * Switches to the snapshots of the agent. Called whenever agent specific stored data is switched.
+     * 
+     * @param agentId Agent ID or <code>null</code> to stop keeping snapshots.
+     */
+    public static void setNamespace(String agentId) {
+        synchronized (sPages) {
+            if (TextUtils.equals(sNamespace, agentId)) {
+                return;
+            }
+            sNamespace = TextUtils.isEmpty(agentId) ? null : agentId;
+            reset();
+        }
+    }
+
+    /**
+     * Starts collecting the resources of a page being loaded.
+     * 
+     * @return Capture to pass to {@link #record(Capture, String, String, String)} and
+     *         {@link #save(Capture, String, String, String)} or <code>null</code> if snapshots are not kept.
+     */
+    public static Capture startCapture() {
+        synchronized (sPages) {
+            return sNamespace == null ? null : new Capture(sNamespace, sGeneration);
+        }
+    }
+
+    /**
+     * Creates a body pipeline stage adding the resource to the capture once its body is read to the end. The resource is skipped if
+     * the body is not read completely or is too large.
+     * 
+     * @param capture Capture of the page the resource belongs to.
+     * @param key Resource key (see {@link ResponseCache#getKey(String)}).
+     * @param mimeType MIME type passed to WebView.
+     * @param encoding Encoding passed to WebView.
+     * 
+     * @return Stage to attach to the pipeline of the decoded body or <code>null</code> if the resource cannot be recorded.
+     */
+    public static BodyPipeline.Stage record(Capture capture, String key, String mimeType, String encoding) {
+        if (key.length() > MAX_KEY_LENGTH || capture.isFull()) {
+            return null;
+        }
+        try {
+            File directory;
+            synchronized (sPages) {
+                if (!capture.mNamespace.equals(sNamespace) || !ensureLoaded()) {
+                    return null;
+                }
+                directory = sDirectory;
+            }
+            File temp = File.createTempFile("resource", TEMP_SUFFIX, directory);
+            return new CapturingStage(capture, new Resource(key, mimeType, encoding), temp);
+        } catch (final Exception e) {
+            Log.d(SnapshotStore.class.getSimpleName(), "record(): Failed. " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the snapshot of a loaded page in the background. Replaces the previous snapshot of the page. The capture is discarded
+     * afterwards.
+     * 
+     * @param capture Capture of the resources loaded with the page.
+     * @param url Regular URL of the page.
+     * @param title Page title.
+     * @param document Serialized page document.
+     */
+    public static void save(final Capture capture, final String url, final String title, final String document) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] body = document.getBytes(DOCUMENT_ENCODING);
+                    String hash = writeBlob(capture.mNamespace, body);
+                    if (hash == null) {
+                        return;
+                    }
+                    Page page = new Page(ResponseCache.getKey(url), title == null ? "" : title, System.currentTimeMillis(), hash,
+                            capture.getResources());
+                    synchronized (sPages) {
+                        // The body may have been evicted together with another snapshot in the meantime.
+                        if (!capture.mNamespace.equals(sNamespace) || !ensureLoaded() || !sBlobs.exists(hash)) {
+                            return;
+                        }
+                        writePage(page);
+                        addPage(page);
+                        evict();
+                    }
+                } catch (final Exception e) {
+                    Log.d(SnapshotStore.class.getSimpleName(), "save(): Failed. " + e.toString());
+                } finally {
+                    // Bodies the snapshot refers to are kept by the snapshot now.
+                    discard(capture);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the bodies collected for a page whose snapshot is not saved, unless a stored snapshot refers to them. Resources
+     * recorded into the capture afterwards are not stored.
+     * 
+     * @param capture Capture returned by {@link #startCapture()}.
+     */
+    public static void discard(Capture capture) {
+        synchronized (sPages) {
+            if (capture.mIsDiscarded) {
+                return;
+            }
+            capture.mIsDiscarded = true;
+            if (capture.mGeneration == sGeneration && sBlobs != null) {
+                for (String hash : capture.mHashes) {
+                    sBlobs.release(hash);
+                }
+            }
+            capture.mHashes.clear();
+        }
+    }
+
+    /**
+     * Returns the snapshot of the page.
+     * 
+     * @param url Regular URL of the page.
+     * 
+     * @return Snapshot or <code>null</code> if the page has not been stored for the current agent.
+     */
+    public static Page getPage(String url) {
+        synchronized (sPages) {
+            if (!ensureLoaded()) {
+                return null;
+            }
+            Page page = sPages.get(ResponseCache.getKey(url));
+            if (page != null) {
+                getFile(page.mKey, PAGE_SUFFIX).setLastModified(System.currentTimeMillis());
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Reads the document of the snapshot.
+     * 
+     * @param page Snapshot returned by {@link #getPage(String)}.
+     * 
+     * @return Serialized page document or <code>null</code> if it is not available any more.
+     */
+    public static String readDocument(Page page) {
+        InputStream in = open(page);
+        if (in == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString(DOCUMENT_ENCODING);
+        } catch (final Exception e) {
+            Log.d(SnapshotStore.class.getSimpleName(), "readDocument(): Failed. " + e.toString());
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Opens the document of the snapshot.
+     * 
+     * @param page Snapshot returned by {@link #getPage(String)}.
+     * 
+     * @return Document stream or <code>null</code> if it is not available any more.
+     */
+    public static InputStream open(Page page) {
+        return open(page.mDocumentHash);
+    }
+
+    /**
+     * Returns the latest stored version of the resource.
+     * 
+     * @param key Resource key (see {@link ResponseCache#getKey(String)}).
+     * 
+     * @return Resource or <code>null</code> if it is not part of any snapshot of the current agent.
+     */
+    public static Resource getResource(String key) {
+        synchronized (sPages) {
+            return ensureLoaded() ? sResources.get(key) : null;
+        }
+    }
+
+    /**
+     * Opens the body of the resource.
+     * 
+     * @param resource Resource returned by {@link #getResource(String)}.
+     * 
+     * @return Body stream or <code>null</code> if the body is not available any more.
+     */
+    public static InputStream open(Resource resource) {
+        return open(resource.mHash);
+    }
+
+    /**
+     * Removes all snapshots of the current agent, e.g. when the user signs out.
+     */
+    public static void clear() {
+        synchronized (sPages) {
+            if (!ensureLoaded()) {
+                return;
+            }
+            File[] files = sDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            reset();
+        }
+    }
+
+    /**
+     * Changes the budget. Snapshots over the new budget are evicted.
+     * 
+     * @param budget Maximum size (in bytes) of bodies kept for one agent.
+     */
+    public static void setBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Snapshot budget must not be negative.");
+        }
+
+        synchronized (sPages) {
+            sBudget = budget;
+            if (sDirectory != null) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Returns the size of bodies kept for the current agent, including the bodies of captures not saved yet.
+     * 
+     * @return Size in bytes.
+     */
+    public static long getSize() {
+        synchronized (sPages) {
+            return sBlobs == null ? 0 : sBlobs.getSize();
+        }
+    }
+
+    /**
+     * Forgets the index of the current namespace so that it is read again on the next use. Must be called while holding the index
+     * lock.
+     */
+    private static void reset() {
+        sPages.clear();
+        sResources.clear();
+        sBlobs = null;
+        sDirectory = null;
+        sGeneration++;
+    }
+
+    /**
+     * Opens the stored body.
+     * 
+     * @param hash Body hash.
+     * 
+     * @return Body stream or <code>null</code> if the body is not stored.
+     */
+    private static InputStream open(String hash) {
+        File file;
+        synchronized (sPages) {
+            if (!ensureLoaded()) {
+                return null;
+            }
+            file = sBlobs.getFile(hash);
+        }
+        try {
+            return new BufferedInputStream(new FileInputStream(file));
+        } catch (final Exception e) {
+            Log.d(SnapshotStore.class.getSimpleName(), "open(): Failed. " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the body unless a body with the same content is already stored.
+     * 
+     * @param namespace Namespace the body belongs to.
+     * @param body Body.
+     * 
+     * @return Body hash or <code>null</code> if the namespace is not current any more or writing fails.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private static String writeBlob(String namespace, byte[] body) throws IOException {
+        File directory;
+        synchronized (sPages) {
+            if (!namespace.equals(sNamespace) || !ensureLoaded()) {
+                return null;
+            }
+            directory = sDirectory;
+        }
+
+        String hash = BlobStore.hash(body);
+        File temp = File.createTempFile("document", TEMP_SUFFIX, directory);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        return commitBlob(namespace, temp, hash) ? hash : null;
+    }
+
+    /**
+     * Moves the body written to the temporary file to its place. The temporary file is deleted if the same body is already stored.
+     * 
+     * @param namespace Namespace the body belongs to.
+     * @param temp Temporary file with the body.
+     * @param hash Body hash.
+     * 
+     * @return <code>true</code> if the body is stored.
+     */
+    private static boolean commitBlob(String namespace, File temp, String hash) {
+        synchronized (sPages) {
+            if (!namespace.equals(sNamespace) || sBlobs == null) {
+                temp.delete();
+                return false;
+            }
+            return sBlobs.commit(temp, hash);
+        }
+    }
+
+    /**
+     * Moves the body of a captured resource to its place and references it on behalf of the capture until the capture is saved or
+     * discarded, so that the body is counted in the size of the namespace.
+     * 
+     * @param capture Capture the resource belongs to.
+     * @param temp Temporary file with the body.
+     * @param hash Body hash.
+     * 
+     * @return <code>true</code> if the body is stored.
+     */
+    private static boolean commitResource(Capture capture, File temp, String hash) {
+        synchronized (sPages) {
+            if (capture.mIsDiscarded || capture.mGeneration != sGeneration) {
+                temp.delete();
+                return false;
+            }
+            if (!commitBlob(capture.mNamespace, temp, hash)) {
+                return false;
+            }
+            if (!capture.mHashes.contains(hash)) {
+                if (!sBlobs.acquire(hash)) {
+                    return false;
+                }
+                capture.mHashes.add(hash);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Adds the snapshot to the index, replacing the previous snapshot of the page. Resources whose bodies are gone are dropped. Must be
+     * called while holding the index lock.
+     * 
+     * @param page Snapshot to add.
+     */
+    private static void addPage(Page page) {
+        Page previous = sPages.get(page.mKey);
+
+        Iterator<Resource> resources = page.mResources.iterator();
+        while (resources.hasNext()) {
+            if (!sBlobs.exists(resources.next().mHash)) {
+                resources.remove();
+            }
+        }
+        for (String hash : page.getHashes()) {
+            sBlobs.acquire(hash);
+        }
+
+        // References are added first, so that the bodies shared with the previous snapshot are not deleted.
+        if (previous != null) {
+            removePage(previous);
+        }
+        sPages.put(page.mKey, page);
+        for (Resource resource : page.mResources) {
+            sResources.put(resource.mKey, resource);
+        }
+    }
+
+    /**
+     * Removes the snapshot and the bodies no other snapshot refers to. Must be called while holding the index lock.
+     * 
+     * @param page Snapshot to remove.
+     */
+    private static void removePage(Page page) {
+        sPages.remove(page.mKey);
+        getFile(page.mKey, PAGE_SUFFIX).delete();
+
+        for (String hash : page.getHashes()) {
+            sBlobs.release(hash);
+        }
+
+        // Other snapshots may have older versions of the removed resources. Newer snapshots come later and win.
+        Set<String> removed = new HashSet<String>();
+        for (Resource resource : page.mResources) {
+            if (sResources.get(resource.mKey) == resource) {
+                sResources.remove(resource.mKey);
+                removed.add(resource.mKey);
+            }
+        }
+        if (!removed.isEmpty()) {
+            for (Page other : sPages.values()) {
+                for (Resource resource : other.mResources) {
+                    if (removed.contains(resource.mKey)) {
+                        sResources.put(resource.mKey, resource);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used snapshots until the budget is met. Must be called while holding the index lock.
+     */
+    private static void evict() {
+        while (sBlobs.getSize() > sBudget && !sPages.isEmpty()) {
+            removePage(sPages.values().iterator().next());
+        }
+    }
+
+    /**
+     * Creates the namespace directory and reads the index of stored snapshots on the first call. Bodies no snapshot refers to are
+     * deleted. Must be called while holding the index lock.
+     * 
+     * @return <code>true</code> if snapshots are kept for the current agent.
+     */
+    private static boolean ensureLoaded() {
+        if (sDirectory != null) {
+            return true;
+        }
+        if (sNamespace == null) {
+            return false;
+        }
+
+        Context context = ApplicationGateway.getAppContext();
+        File directory = new File(new File(context.getFilesDir(), DIRECTORY_NAME), BlobStore.hashKey(sNamespace));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(SnapshotStore.class.getSimpleName(), "ensureLoaded(): Failed to create " + directory);
+            return false;
+        }
+        sDirectory = directory;
+        sBlobs = new BlobStore(directory, BLOB_SUFFIX);
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return true;
+        }
+
+        // Last access time is kept as the snapshot file modification time, so oldest snapshots go first to restore the LRU order.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long difference = lhs.lastModified() - rhs.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(PAGE_SUFFIX)) {
+                Page page = readPage(file);
+                if (page == null || !sBlobs.exists(page.mDocumentHash)) {
+                    file.delete();
+                } else {
+                    addPage(page);
+                }
+            } else if (!name.endsWith(BLOB_SUFFIX)) {
+                file.delete();
+            }
+        }
+
+        // Bodies no snapshot refers to, e.g. left by a crash.
+        sBlobs.deleteUnreferenced(files);
+        evict();
+        return true;
+    }
+
+    /**
+     * Writes the snapshot file.
+     * 
+     * @param page Snapshot.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private static void writePage(Page page) throws IOException {
+        File file = getFile(page.mKey, PAGE_SUFFIX);
+        File temp = new File(sDirectory, file.getName() + TEMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(page.mKey);
+            out.writeUTF(page.mTitle);
+            out.writeLong(page.mTime);
+            out.writeUTF(page.mDocumentHash);
+            out.writeInt(page.mResources.size());
+            for (Resource resource : page.mResources) {
+                out.writeUTF(resource.mKey);
+                out.writeUTF(resource.mMimeType == null ? "" : resource.mMimeType);
+                out.writeUTF(resource.mEncoding == null ? "" : resource.mEncoding);
+                out.writeUTF(resource.mHash);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to rename " + temp.getName());
+        }
+    }
+
+    /**
+     * Reads the snapshot file.
+     * 
+     * @param file Snapshot file.
+     * 
+     * @return Snapshot or <code>null</code> if the file is corrupt or has different version.
+     */
+    private static Page readPage(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            String key = in.readUTF();
+            String title = in.readUTF();
+            long time = in.readLong();
+            String documentHash = in.readUTF();
+            int count = in.readInt();
+            List<Resource> resources = new ArrayList<Resource>(count);
+            for (int i = 0; i < count; i++) {
+                String resourceKey = in.readUTF();
+                String mimeType = in.readUTF();
+                String encoding = in.readUTF();
+                Resource resource = new Resource(resourceKey, TextUtils.isEmpty(mimeType) ? null : mimeType, TextUtils.isEmpty(encoding)
+                        ? null : encoding);
+                resource.mHash = in.readUTF();
+                resources.add(resource);
+            }
+            return new Page(key, title, time, documentHash, resources);
+        } catch (final Exception e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the file for the key. File names are hashes of keys.
+     * 
+     * @param key Page key.
+     * @param suffix File name suffix.
+     * 
+     * @return File in the namespace directory.
+     */
+    private static File getFile(String key, String suffix) {
+        return new File(sDirectory, BlobStore.hashKey(key) + suffix);
+    }
+
+    /**
+     * Resource of a snapshot.
+     */
+    public static class Resource {
+
+        /**
+         * Resource key.
+         */
+        private final String mKey;
+
+        /**
+         * MIME type passed to WebView.
+         */
+        private final String mMimeType;
+
+        /**
+         * Encoding passed to WebView.
+         */
+        private final String mEncoding;
+
+        /**
+         * Body hash. Set once the body is stored.
+         */
+        private String mHash;
+
+        /**
+         * Default constructor.
+         * 
+         * @param key Resource key.
+         * @param mimeType MIME type passed to WebView.
+         * @param encoding Encoding passed to WebView.
+         */
+        Resource(String key, String mimeType, String encoding) {
+            mKey = key;
+            mMimeType = mimeType;
+            mEncoding = encoding;
+        }
+
+        /**
+         * Returns the MIME type passed to WebView.
+         * 
+         * @return MIME type.
+         */
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        /**
+         * Returns the encoding passed to WebView.
+         * 
+         * @return Encoding.
+         */
+        public String getEncoding() {
+            return mEncoding;
+        }
+    }
+
+    /**
+     * Snapshot of a page.
+     */
+    public static class Page {
+
+        /**
+         * Page key.
+         */
+        private final String mKey;
+
+        /**
+         * Page title.
+         */
+        private final String mTitle;
+
+        /**
+         * Time (in milliseconds since epoch) the snapshot was taken.
+         */
+        private final long mTime;
+
+        /**
+         * Hash of the document body.
+         */
+        private final String mDocumentHash;
+
+        /**
+         * Resources loaded with the page.
+         */
+        private final List<Resource> mResources;
+
+        /**
+         * Default constructor.
+         * 
+         * @param key Page key.
+         * @param title Page title.
+         * @param time Time the snapshot was taken.
+         * @param documentHash Hash of the document body.
+         * @param resources Resources loaded with the page.
+         */
+        Page(String key, String title, long time, String documentHash, List<Resource> resources) {
+            mKey = key;
+            mTitle = title;
+            mTime = time;
+            mDocumentHash = documentHash;
+            mResources = resources;
+        }
+
+        /**
+         * Returns the page title.
+         * 
+         * @return Title.
+         */
+        public String getTitle() {
+            return mTitle;
+        }
+
+        /**
+         * Returns the time the snapshot was taken.
+         * 
+         * @return Time in milliseconds since epoch.
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * Returns the MIME type of the document.
+         * 
+         * @return MIME type.
+         */
+        public String getMimeType() {
+            return DOCUMENT_MIME_TYPE;
+        }
+
+        /**
+         * Returns the encoding of the document.
+         * 
+         * @return Encoding.
+         */
+        public String getEncoding() {
+            return DOCUMENT_ENCODING;
+        }
+
+        /**
+         * Returns the hashes of all bodies the snapshot refers to.
+         * 
+         * @return Distinct hashes.
+         */
+        Set<String> getHashes() {
+            Set<String> hashes = new LinkedHashSet<String>();
+            hashes.add(mDocumentHash);
+            for (Resource resource : mResources) {
+                hashes.add(resource.mHash);
+            }
+            return hashes;
+        }
+    }
+
+    /**
+     * Resources collected while a page is loading.
+     */
+    public static class Capture {
+
+        /**
+         * Namespace the capture belongs to.
+         */
+        private final String mNamespace;
+
+        /**
+         * Generation of the index the capture has been started with.
+         */
+        private final int mGeneration;
+
+        /**
+         * Stored resources by key.
+         */
+        private final Map<String, Resource> mResources = new LinkedHashMap<String, Resource>();
+
+        /**
+         * Hashes of the bodies the capture holds references to. Guarded by the index lock.
+         */
+        private final Set<String> mHashes = new HashSet<String>();
+
+        /**
+         * Indicates whether the capture has been saved or discarded. Guarded by the index lock.
+         */
+        private boolean mIsDiscarded;
+
+        /**
+         * Default constructor.
+         * 
+         * @param namespace Namespace the capture belongs to.
+         * @param generation Generation of the index.
+         */
+        private Capture(String namespace, int generation) {
+            mNamespace = namespace;
+            mGeneration = generation;
+        }
+
+        /**
+         * Adds the resource whose body has been stored.
+         * 
+         * @param resource Resource.
+         */
+        synchronized void add(Resource resource) {
+            if (mResources.size() < MAX_PAGE_RESOURCES) {
+                mResources.put(resource.mKey, resource);
+            }
+        }
+
+        /**
+         * Checks whether no more resources can be added.
+         * 
+         * @return <code>true</code> if the capture is full.
+         */
+        synchronized boolean isFull() {
+            return mResources.size() >= MAX_PAGE_RESOURCES;
+        }
+
+        /**
+         * Returns the stored resources.
+         * 
+         * @return Copy of the resource list.
+         */
+        synchronized List<Resource> getResources() {
+            return new ArrayList<Resource>(mResources.values());
+        }
+    }
+
+    /**
+     * Body pipeline stage writing the body into the temporary file and computing its hash while it is read. Storing is silently
+     * abandoned if writing fails, reading goes on.
+     */
+    private static class CapturingStage implements BodyPipeline.Stage {
+
+        /**
+         * Capture the resource is added to.
+         */
+        private final Capture mCapture;
+
+        /**
+         * Resource being stored.
+         */
+        private final Resource mResource;
+
+        /**
+         * Temporary file with the body.
+         */
+        private final File mTemp;
+
+        /**
+         * Digest of the body.
+         */
+        private final MessageDigest mDigest = BlobStore.newDigest();
+
+        /**
+         * Stream writing the temporary file. <code>null</code> if storing is abandoned or finished.
+         */
+        private OutputStream mFileOut;
+
+        /**
+         * Number of bytes read.
+         */
+        private long mLength;
+
+        /**
+         * Default constructor.
+         * 
+         * @param capture Capture the resource is added to.
+         * @param resource Resource being stored.
+         * @param temp Temporary file to write the body to.
+         * 
+         * @throws IOException If the temporary file cannot be opened.
+         */
+        CapturingStage(Capture capture, Resource resource, File temp) throws IOException {
+            mCapture = capture;
+            mResource = resource;
+            mTemp = temp;
+            mFileOut = new PooledOutputStream(new FileOutputStream(temp));
+        }
+
+        @Override
+        public void onData(byte[] buffer, int offset, int count) throws IOException {
+            if (mFileOut == null) {
+                return;
+            }
+
+            mLength += count;
+            if (mLength > MAX_RESOURCE_SIZE) {
+                onAbort();
+                return;
+            }
+
+            try {
+                mFileOut.write(buffer, offset, count);
+            } catch (final IOException e) {
+                onAbort();
+                throw e;
+            }
+            mDigest.update(buffer, offset, count);
+        }
+
+        @Override
+        public void onEnd() {
+            if (mFileOut == null) {
+                return;
+            }
+
+            try {
+                mFileOut.close();
+            } catch (final IOException e) {
+                Log.d(SnapshotStore.class.getSimpleName(), "onEnd(): Failed. " + e.toString());
+                mFileOut = null;
+                mTemp.delete();
+                return;
+            }
+            mFileOut = null;
+
+            String hash = BlobStore.toHex(mDigest.digest());
+            if (commitResource(mCapture, mTemp, hash)) {
+                mResource.mHash = hash;
+                mCapture.add(mResource);
+            }
+        }
+
+        @Override
+        public void onAbort() {
+            if (mFileOut == null) {
+                return;
+            }
+
+            try {
+                mFileOut.close();
+            } catch (IOException e) {
+            }
+            mFileOut = null;
+            mTemp.delete();
+        }
+
+        @Override
+        public boolean needsRemainder() {
+            return false;
+        }
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private SnapshotStore() {
+    }
+}
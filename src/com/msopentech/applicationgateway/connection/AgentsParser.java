@@ -0,0 +1,151 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.msopentech.applicationgateway.data.AgentEntity;
+
+/**
+ * Implements streaming parser of the agents list response. Agents are created as they are read without building an intermediate
+ * JSON tree.
+ */
+public class AgentsParser {
+
+    /**
+     * Character set of the response.
+     */
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Parses agents list response.
+     * 
+     * @param stream Response stream. Is not closed.
+     * @param stopAt Agent to stop at. If an agent with the same ID and display name is read the rest of the response is not parsed
+     *        and this agent is the last one in the returned list. Can be <code>null</code> to read the whole list.
+     * 
+     * @return Agents in the order they were received or <code>null</code> if the response has no agents list. Agents without ID or
+     *         display name are skipped.
+     * 
+     * @throws IOException If the response can not be read or is not valid JSON.
+     */
+    public static List<AgentEntity> parse(InputStream stream, AgentEntity stopAt) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(stream, CHARSET));
+        List<AgentEntity> agents = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!Router.JSON_AGENTS_KEY.equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+
+            agents = new ArrayList<AgentEntity>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                AgentEntity agent = readAgent(reader);
+                if (agent == null) {
+                    continue;
+                }
+
+                agents.add(agent);
+                if (matches(agent, stopAt)) {
+                    return agents;
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+
+        return agents;
+    }
+
+    /**
+     * Checks whether the agent is the same as the reference one. Both ID and display name must be equal.
+     * 
+     * @param agent Agent to check.
+     * @param reference Reference agent. Can be <code>null</code>.
+     * 
+     * @return <code>true</code> if agents match.
+     */
+    public static boolean matches(AgentEntity agent, AgentEntity reference) {
+        return agent != null && reference != null && reference.getAgentId() != null && reference.getDisplayName() != null
+                && reference.getAgentId().contentEquals(agent.getAgentId()) && reference.getDisplayName().contentEquals(agent.getDisplayName());
+    }
+
+    /**
+     * Reads one agent object.
+     * 
+     * @param reader Reader positioned at the agent object.
+     * 
+     * @return Agent or <code>null</code> if the object is not an agent or misses ID or display name.
+     * 
+     * @throws IOException If the response can not be read or is not valid JSON.
+     */
+    private static AgentEntity readAgent(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+
+        String agentId = null;
+        String displayName = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (Router.JSON_AGENT_ID_KEY.equals(name)) {
+                agentId = readString(reader);
+            } else if (Router.JSON_AGENT_DISPLAY_NAME_KEY.equals(name)) {
+                displayName = readString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (agentId == null || displayName == null) {
+            return null;
+        }
+        return new AgentEntity(agentId, displayName);
+    }
+
+    /**
+     * Reads string value. Numbers are returned in their textual form.
+     * 
+     * @param reader Reader positioned at the value.
+     * 
+     * @return String value or <code>null</code> if the value is neither string nor number.
+     * 
+     * @throws IOException If the response can not be read or is not valid JSON.
+     */
+    private static String readString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private AgentsParser() {
+    }
+}
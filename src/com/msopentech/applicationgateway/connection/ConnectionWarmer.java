@@ -0,0 +1,183 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.msopentech.applicationgateway.EnterpriseBrowserActivity;
+
+/**
+ * Pre-resolves the security token service and router hosts and opens connections to them in the shared pool, so that sign-in does
+ * not pay for DNS resolution and TCP/TLS handshakes on its critical path. Keeps timings of the last warm-up.
+ */
+public class ConnectionWarmer {
+
+    /**
+     * Time out (in milliseconds) for connecting and waiting for a pooled connection.
+     */
+    private static final int WARM_UP_TIMEOUT = 10 * 1000;
+
+    /**
+     * Indicates whether warm-up is in progress.
+     */
+    private static boolean sIsRunning = false;
+
+    /**
+     * Time (in milliseconds) spent on DNS resolution during the last warm-up.
+     */
+    private static volatile long sDnsTime;
+
+    /**
+     * Time (in milliseconds) spent on TCP and TLS handshakes during the last warm-up.
+     */
+    private static volatile long sConnectTime;
+
+    /**
+     * Number of connections opened by the last warm-up.
+     */
+    private static volatile int sConnectionCount;
+
+    /**
+     * Starts warm-up in background unless it is already running. Hosts with an open pooled connection are not connected again.
+     */
+    public static void start() {
+        synchronized (ConnectionWarmer.class) {
+            if (sIsRunning) {
+                return;
+            }
+            sIsRunning = true;
+        }
+
+        final String[] urls = new String[] { Router.STS_URL, EnterpriseBrowserActivity.CLOUD_CONNECTION_HOST_PREFIX };
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long dnsTime = 0;
+                    long connectTime = 0;
+                    int connectionCount = 0;
+                    for (String url : urls) {
+                        long[] timings = warmUp(url);
+                        if (timings != null) {
+                            dnsTime += timings[0];
+                            connectTime += timings[1];
+                            connectionCount += timings[1] > 0 ? 1 : 0;
+                        }
+                    }
+                    sDnsTime = dnsTime;
+                    sConnectTime = connectTime;
+                    sConnectionCount = connectionCount;
+                } finally {
+                    synchronized (ConnectionWarmer.class) {
+                        sIsRunning = false;
+                    }
+                }
+            }
+        }, ConnectionWarmer.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Returns time spent on DNS resolution during the last warm-up.
+     * 
+     * @return Time in milliseconds.
+     */
+    public static long getDnsTime() {
+        return sDnsTime;
+    }
+
+    /**
+     * Returns time spent on TCP and TLS handshakes during the last warm-up.
+     * 
+     * @return Time in milliseconds.
+     */
+    public static long getConnectTime() {
+        return sConnectTime;
+    }
+
+    /**
+     * Returns number of connections opened by the last warm-up.
+     * 
+     * @return Connection count.
+     */
+    public static int getConnectionCount() {
+        return sConnectionCount;
+    }
+
+    /**
+     * Resolves the host of the URL and opens a pooled connection to it.
+     * 
+     * @param url URL to warm up.
+     * 
+     * @return Array of DNS resolution time and connect time in milliseconds, or <code>null</code> if warm-up failed.
+     */
+    private static long[] warmUp(String url) {
+        ManagedClientConnection connection = null;
+        ClientConnectionManager manager = null;
+        try {
+            URI uri = new URI(url);
+            // Same target as the client determines for requests to this URL, so the connection is found in the pool.
+            HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+
+            long start = SystemClock.elapsedRealtime();
+            InetAddress.getAllByName(target.getHostName());
+            long dnsTime = SystemClock.elapsedRealtime() - start;
+
+            DefaultHttpClient client = GatewayHttpClient.getClient();
+            manager = client.getConnectionManager();
+            HttpRoute route = new HttpRoute(target, null, manager.getSchemeRegistry().getScheme(target).isLayered());
+            connection = manager.requestConnection(route, null).getConnection(WARM_UP_TIMEOUT, TimeUnit.MILLISECONDS);
+
+            long connectTime = 0;
+            if (!connection.isOpen()) {
+                HttpParams params = client.getParams().copy();
+                HttpConnectionParams.setConnectionTimeout(params, WARM_UP_TIMEOUT);
+                HttpConnectionParams.setSoTimeout(params, WARM_UP_TIMEOUT);
+
+                start = SystemClock.elapsedRealtime();
+                connection.open(route, new BasicHttpContext(), params);
+                connectTime = SystemClock.elapsedRealtime() - start;
+            }
+            connection.markReusable();
+
+            return new long[] { dnsTime, connectTime };
+        } catch (final Exception e) {
+            Log.d(ConnectionWarmer.class.getSimpleName(), "warmUp(): Failed for " + url + ". " + e.toString());
+            return null;
+        } finally {
+            if (connection != null) {
+                manager.releaseConnection(connection, GatewayHttpClient.IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private ConnectionWarmer() {
+    }
+}
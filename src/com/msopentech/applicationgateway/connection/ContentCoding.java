@@ -0,0 +1,257 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.NameValuePair;
+
+import android.text.TextUtils;
+import android.webkit.MimeTypeMap;
+
+/**
+ * Handles content type and content coding of the responses handed to WebView: splits Content-Type into MIME type and charset and
+ * decompresses gzip and deflate bodies while they are read.
+ */
+class ContentCoding {
+
+    /**
+     * Value of the Accept-Encoding header listing the supported codings.
+     */
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /**
+     * MIME type used when neither the response nor the URL tell the type.
+     */
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+    /**
+     * Asks the server for a compressed body.
+     * 
+     * @param request Request.
+     */
+    static void acceptEncoding(HttpRequest request) {
+        request.setHeader("Accept-Encoding", ACCEPT_ENCODING);
+    }
+
+    /**
+     * Checks whether the body coding can be decoded.
+     * 
+     * @param entity Response entity.
+     * 
+     * @return <code>true</code> if the body is not encoded or is gzip or deflate encoded.
+     */
+    static boolean isSupported(HttpEntity entity) {
+        String coding = getCoding(entity);
+        return coding == null || "gzip".equals(coding) || "x-gzip".equals(coding) || "deflate".equals(coding);
+    }
+
+    /**
+     * Wraps the body stream into a decoding one. Decoding starts on the first read, so the wrapper returns without waiting for the body.
+     * 
+     * @param entity Response entity. The coding must be supported (see {@link #isSupported(HttpEntity)}).
+     * @param stream Body stream.
+     * 
+     * @return Decoded body stream.
+     */
+    static InputStream decode(HttpEntity entity, InputStream stream) {
+        String coding = getCoding(entity);
+        return coding == null ? stream : new DecodingInputStream(stream, coding);
+    }
+
+    /**
+     * Returns the MIME type of the body.
+     * 
+     * @param entity Response entity.
+     * @param url Regular URL of the resource. Used to guess the type if the response does not have Content-Type header.
+     * 
+     * @return MIME type without parameters.
+     */
+    static String getMimeType(HttpEntity entity, String url) {
+        HeaderElement element = getContentTypeElement(entity);
+        if (element != null && !TextUtils.isEmpty(element.getName())) {
+            return element.getName().toLowerCase();
+        }
+
+        String extension = MimeTypeMap.getFileExtensionFromUrl(url);
+        String mimeType = TextUtils.isEmpty(extension) ? null : MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension.toLowerCase());
+        return mimeType == null ? DEFAULT_MIME_TYPE : mimeType;
+    }
+
+    /**
+     * Returns the charset of the body.
+     * 
+     * @param entity Response entity.
+     * 
+     * @return Charset parameter of Content-Type header or <code>null</code> to let WebView detect it.
+     */
+    static String getCharset(HttpEntity entity) {
+        HeaderElement element = getContentTypeElement(entity);
+        if (element == null) {
+            return null;
+        }
+        NameValuePair charset = element.getParameterByName("charset");
+        if (charset == null || TextUtils.isEmpty(charset.getValue())) {
+            return null;
+        }
+        return charset.getValue().trim().replace("\"", "");
+    }
+
+    /**
+     * Returns the parsed Content-Type header.
+     * 
+     * @param entity Response entity.
+     * 
+     * @return First header element or <code>null</code>.
+     */
+    private static HeaderElement getContentTypeElement(HttpEntity entity) {
+        Header contentType = entity.getContentType();
+        if (contentType == null) {
+            return null;
+        }
+        HeaderElement[] elements = contentType.getElements();
+        return elements.length == 0 ? null : elements[0];
+    }
+
+    /**
+     * Returns the body coding.
+     * 
+     * @param entity Response entity.
+     * 
+     * @return Lower-cased coding or <code>null</code> for identity.
+     */
+    private static String getCoding(HttpEntity entity) {
+        Header contentEncoding = entity.getContentEncoding();
+        if (contentEncoding == null) {
+            return null;
+        }
+        String coding = contentEncoding.getValue().trim().toLowerCase();
+        return coding.length() == 0 || "identity".equals(coding) ? null : coding;
+    }
+
+    /**
+     * Stream creating the decoder on the first read.
+     */
+    private static class DecodingInputStream extends FilterInputStream {
+
+        /**
+         * Body coding.
+         */
+        private final String mCoding;
+
+        /**
+         * Inflater of deflate bodies. Ended on close.
+         */
+        private Inflater mInflater;
+
+        /**
+         * Indicates whether the decoder has been created.
+         */
+        private boolean mIsStarted;
+
+        /**
+         * Default constructor.
+         * 
+         * @param stream Encoded stream.
+         * @param coding Body coding.
+         */
+        DecodingInputStream(InputStream stream, String coding) {
+            super(stream);
+            mCoding = coding;
+        }
+
+        @Override
+        public int read() throws IOException {
+            start();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            start();
+            return super.read(buffer, offset, count);
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            start();
+            return super.skip(count);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mIsStarted ? super.available() : 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (mInflater != null) {
+                    mInflater.end();
+                }
+            }
+        }
+
+        /**
+         * Creates the decoder over the encoded stream.
+         * 
+         * @throws IOException If the body header cannot be read.
+         */
+        private void start() throws IOException {
+            if (mIsStarted) {
+                return;
+            }
+            mIsStarted = true;
+
+            if (mCoding.endsWith("gzip")) {
+                in = new GZIPInputStream(in);
+                return;
+            }
+
+            // Servers send deflate either as zlib stream (as the specification says) or as raw deflate data. Zlib header tells them apart.
+            PushbackInputStream pushback = new PushbackInputStream(in, 2);
+            int first = pushback.read();
+            int second = first < 0 ? -1 : pushback.read();
+            if (second >= 0) {
+                pushback.unread(second);
+            }
+            if (first >= 0) {
+                pushback.unread(first);
+            }
+            boolean isZlib = first >= 0 && second >= 0 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+            mInflater = new Inflater(!isZlib);
+            in = new InflaterInputStream(pushback, mInflater);
+        }
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private ContentCoding() {
+    }
+}
@@ -0,0 +1,1242 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+
+import android.util.Log;
+
+import com.msopentech.applicationgateway.cache.CacheEntry;
+import com.msopentech.applicationgateway.cache.ResponseCache;
+import com.msopentech.applicationgateway.utils.BodyPipeline;
+import com.msopentech.applicationgateway.utils.BufferPool;
+
+/**
+ * Fetches resources intercepted in smart browser mode. Requests run on a worker pool and the caller gets the body stream as soon as
+ * the response headers arrive. Requests to the same host are limited in number, and requests for a URL that is already being
+ * fetched share the body of the first one instead of going to the gateway again. Queued requests are ordered by priority: requests
+ * of the foreground group (the active tab) go before those of background groups, and render-blocking resources go before the rest.
+ */
+public class FetchEngine {
+
+    /**
+     * Default number of worker threads.
+     */
+    public static final int DEFAULT_WORKER_THREADS = GatewayHttpClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+
+    /**
+     * Default maximum number of responses from a single host open at the same time.
+     */
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+    /**
+     * Time (in milliseconds) to wait for the response headers.
+     */
+    private static final long HEADERS_TIMEOUT = 60 * 1000;
+
+    /**
+     * Maximum size (in bytes) of a body buffered for joined requests. Before anybody joins, the body is buffered up to this size for
+     * requests that might join later. Afterwards only the part not read by all joined requests yet is kept, and the reader of the
+     * body waits for them if it gets too far ahead.
+     */
+    private static final int COALESCING_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Time (in milliseconds) the reader of a body waits for a joined request that does not read its part, and a joined request waits
+     * for more of the body. The waiting side fails then.
+     */
+    private static final long FOLLOWER_STALL_TIMEOUT = 5 * 1000;
+
+    /**
+     * Rank of resources the page cannot be rendered without: documents, stylesheets, scripts and fonts. Resources not known to be
+     * media get this rank.
+     */
+    private static final int RANK_RENDER_BLOCKING = 0;
+
+    /**
+     * Rank of media resources: images, audio and video.
+     */
+    private static final int RANK_DEFERRABLE = 1;
+
+    /**
+     * Priority penalty of requests made by a background group. Background requests run only when no foreground request is queued.
+     */
+    private static final int BACKGROUND_PENALTY = 2;
+
+    /**
+     * File extensions of the deferrable media resources. Anything else, e.g. documents, styles, scripts, fonts and dynamic pages or
+     * handlers such as SharePoint's <code>ScriptResource.axd</code>, is treated as render-blocking.
+     */
+    private static final String[] DEFERRABLE_EXTENSIONS = { "png", "jpg", "jpeg", "gif", "webp", "bmp", "ico", "svg", "tif", "tiff",
+            "mp3", "mp4", "m4a", "m4v", "ogg", "ogv", "oga", "webm", "wav", "avi", "mov", "flv", "swf" };
+
+    /**
+     * Worker pool executing requests up to the response headers.
+     */
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(DEFAULT_WORKER_THREADS, DEFAULT_WORKER_THREADS, 30,
+            TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, FetchEngine.class.getSimpleName() + "-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Maximum number of responses from a single host open at the same time.
+     */
+    private static volatile int sMaxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+
+    /**
+     * Open responses and fetches waiting for a permit, by host. Hosts with neither are dropped. Guarded by the class lock.
+     */
+    private static final HashMap<String, Host> sHosts = new HashMap<String, Host>();
+
+    /**
+     * Fetches in progress, by cache key.
+     */
+    private static final ConcurrentHashMap<String, Fetch> sInFlight = new ConcurrentHashMap<String, Fetch>();
+
+    /**
+     * Group of the requests that go first, i.e. the active tab. <code>null</code> if all groups are equal.
+     */
+    private static volatile Object sForegroundGroup;
+
+    /**
+     * Submission counter keeping requests of equal priority in order.
+     */
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    /**
+     * Fetch result handed to WebView.
+     */
+    public static class Result {
+
+        /**
+         * MIME type.
+         */
+        private final String mMimeType;
+
+        /**
+         * Encoding.
+         */
+        private final String mEncoding;
+
+        /**
+         * Body stream.
+         */
+        private final InputStream mStream;
+
+        /**
+         * Indicates whether the response is served without going to the gateway.
+         */
+        private final boolean mIsFromCache;
+
+        /**
+         * Meter of the encoded body received from the gateway or <code>null</code> if the body is not received for this request.
+         */
+        private final RequestAccounting.NetworkMeter mNetworkMeter;
+
+        /**
+         * Default constructor.
+         * 
+         * @param mimeType MIME type.
+         * @param encoding Encoding.
+         * @param stream Body stream.
+         * @param fromCache Indicates whether the response is served without going to the gateway.
+         */
+        Result(String mimeType, String encoding, InputStream stream, boolean fromCache) {
+            this(mimeType, encoding, stream, fromCache, null);
+        }
+
+        /**
+         * Constructor of the result of a gateway response.
+         * 
+         * @param mimeType MIME type.
+         * @param encoding Encoding.
+         * @param stream Body stream.
+         * @param fromCache Indicates whether the response is served without going to the gateway.
+         * @param networkMeter Meter of the encoded body or <code>null</code> if the body is not received for this request.
+         */
+        Result(String mimeType, String encoding, InputStream stream, boolean fromCache, RequestAccounting.NetworkMeter networkMeter) {
+            mMimeType = mimeType;
+            mEncoding = encoding;
+            mStream = stream;
+            mIsFromCache = fromCache;
+            mNetworkMeter = networkMeter;
+        }
+
+        /**
+         * Returns the MIME type.
+         * 
+         * @return MIME type.
+         */
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        /**
+         * Returns the encoding.
+         * 
+         * @return Encoding.
+         */
+        public String getEncoding() {
+            return mEncoding;
+        }
+
+        /**
+         * Returns the body stream. The connection is released once the stream is read to the end or closed.
+         * 
+         * @return Body stream.
+         */
+        public InputStream getStream() {
+            return mStream;
+        }
+
+        /**
+         * Checks whether the response is served without going to the gateway, i.e. from the cache or loaded in advance. Revalidated
+         * cache entries count as served from the cache.
+         * 
+         * @return <code>true</code> if the body does not come from the gateway.
+         */
+        public boolean isFromCache() {
+            return mIsFromCache;
+        }
+
+        /**
+         * Returns the meter of the encoded body received from the gateway. Requests that joined another request for the same URL
+         * have none, the body is received once.
+         * 
+         * @return Meter or <code>null</code> if the body is not received from the gateway for this request.
+         */
+        RequestAccounting.NetworkMeter getNetworkMeter() {
+            return mNetworkMeter;
+        }
+    }
+
+    /**
+     * Fetches the resource through the gateway, using the response cache. Blocks until the response headers arrive.
+     * 
+     * @param cloudUrl 'Cloudified' URL of the resource.
+     * @param normalUrl Regular URL of the resource.
+     * 
+     * @return Result or <code>null</code> if the resource cannot be intercepted and WebView has to load it itself.
+     */
+    public static Result fetch(String cloudUrl, String normalUrl) {
+        return fetch(cloudUrl, normalUrl, null);
+    }
+
+    /**
+     * Fetches the resource through the gateway, using the response cache. Blocks until the response headers arrive.
+     * 
+     * @param cloudUrl 'Cloudified' URL of the resource.
+     * @param normalUrl Regular URL of the resource.
+     * @param group Group the request belongs to, e.g. the WebView of its tab (see {@link #setForegroundGroup(Object)}).
+     *            <code>null</code> to treat the request as a foreground one.
+     * 
+     * @return Result or <code>null</code> if the resource cannot be intercepted and WebView has to load it itself.
+     */
+    public static Result fetch(String cloudUrl, String normalUrl, Object group) {
+        String key = ResponseCache.getKey(normalUrl);
+        int rank = getResourceRank(normalUrl);
+
+        CacheEntry cacheEntry = ResponseCache.get(key);
+        if (cacheEntry != null && cacheEntry.isFresh()) {
+            TraceSpan span = Tracer.begin(Tracer.SPAN_BROWSER);
+            InputStream cachedStream = ResponseCache.open(cacheEntry, false);
+            Tracer.end(span, false);
+            if (cachedStream != null) {
+                return new Result(cacheEntry.getMimeType(), cacheEntry.getEncoding(), cachedStream, true);
+            }
+            cacheEntry = null;
+        }
+
+        Fetch inFlight = sInFlight.get(key);
+        if (inFlight != null) {
+            inFlight.raise(rank, group);
+            Result result = inFlight.join();
+            if (result != null) {
+                return result;
+            }
+        }
+
+        Fetch fetch = new Fetch(cloudUrl, key, cacheEntry, rank, group);
+        Fetch existing = sInFlight.putIfAbsent(key, fetch);
+        if (existing != null && !sInFlight.replace(key, existing, fetch)) {
+            // Another request for the same URL started meanwhile. Not joined for simplicity, runs on its own.
+            fetch.mIsCoalescing = false;
+        }
+        submit(fetch);
+        return fetch.getResult();
+    }
+
+    /**
+     * Makes the group go first, e.g. when the user switches to its tab. Queued requests are reordered.
+     * 
+     * @param group Group of the requests that go first or <code>null</code> to treat all groups as equal.
+     */
+    public static void setForegroundGroup(Object group) {
+        if (group == sForegroundGroup) {
+            return;
+        }
+        sForegroundGroup = group;
+
+        synchronized (FetchEngine.class) {
+            ArrayList<Runnable> queued = new ArrayList<Runnable>();
+            sExecutor.getQueue().drainTo(queued);
+            for (Runnable task : queued) {
+                ((PrioritizedTask) task).mPriority = ((PrioritizedTask) task).mFetch.getPriority();
+                sExecutor.execute(task);
+            }
+            for (Host host : sHosts.values()) {
+                ArrayList<PrioritizedTask> waiting = new ArrayList<PrioritizedTask>(host.mWaiting);
+                host.mWaiting.clear();
+                for (PrioritizedTask task : waiting) {
+                    task.mPriority = task.mFetch.getPriority();
+                    host.mWaiting.add(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes the concurrency limits.
+     * 
+     * @param workerThreads Number of requests executed at the same time up to the response headers.
+     * @param maxRequestsPerHost Maximum number of responses from a single host open at the same time.
+     */
+    public static synchronized void setConcurrency(int workerThreads, int maxRequestsPerHost) {
+        if (workerThreads <= 0 || maxRequestsPerHost <= 0) {
+            throw new IllegalArgumentException("Concurrency limits must be positive.");
+        }
+
+        if (workerThreads > sExecutor.getMaximumPoolSize()) {
+            sExecutor.setMaximumPoolSize(workerThreads);
+            sExecutor.setCorePoolSize(workerThreads);
+        } else {
+            sExecutor.setCorePoolSize(workerThreads);
+            sExecutor.setMaximumPoolSize(workerThreads);
+        }
+        sMaxRequestsPerHost = maxRequestsPerHost;
+        // Fetches waiting for a host get going at once if the limit is raised.
+        for (Host host : sHosts.values()) {
+            dispatchWaiting(host);
+        }
+    }
+
+    /**
+     * Classifies the resource by the extension of its path. Only known media types are deferrable.
+     * 
+     * @param url Regular URL of the resource.
+     * 
+     * @return {@link #RANK_RENDER_BLOCKING} or {@link #RANK_DEFERRABLE}.
+     */
+    private static int getResourceRank(String url) {
+        int hostStart = url.indexOf("://");
+        int pathStart = url.indexOf('/', hostStart < 0 ? 0 : hostStart + 3);
+        if (pathStart < 0) {
+            // No path, the URL of a site.
+            return RANK_RENDER_BLOCKING;
+        }
+        int pathEnd = url.length();
+        int query = url.indexOf('?');
+        if (query >= 0) {
+            pathEnd = query;
+        }
+        int fragment = url.indexOf('#');
+        if (fragment >= 0 && fragment < pathEnd) {
+            pathEnd = fragment;
+        }
+
+        if (pathEnd < pathStart) {
+            // The query or fragment follows the host directly.
+            return RANK_RENDER_BLOCKING;
+        }
+
+        String path = url.substring(pathStart, pathEnd);
+        int dot = path.lastIndexOf('.');
+        if (dot < path.lastIndexOf('/')) {
+            return RANK_RENDER_BLOCKING;
+        }
+        String extension = path.substring(dot + 1);
+        for (String deferrable : DEFERRABLE_EXTENSIONS) {
+            if (deferrable.equalsIgnoreCase(extension)) {
+                return RANK_DEFERRABLE;
+            }
+        }
+        return RANK_RENDER_BLOCKING;
+    }
+
+    /**
+     * Hands the fetch to a worker once its host has a permit. Until then the fetch waits in the queue of its host, so that workers
+     * are not blocked by requests to a busy host while requests to other hosts are queued.
+     * 
+     * @param fetch Fetch to execute.
+     */
+    private static synchronized void submit(Fetch fetch) {
+        String key = fetch.mKey;
+        int hostStart = key.indexOf("://");
+        hostStart = hostStart < 0 ? 0 : hostStart + 3;
+        int hostEnd = key.indexOf('/', hostStart);
+        String name = hostEnd < 0 ? key.substring(hostStart) : key.substring(hostStart, hostEnd);
+
+        Host host = sHosts.get(name);
+        if (host == null) {
+            host = new Host(name);
+            sHosts.put(name, host);
+        }
+        fetch.mHost = host;
+        host.mWaiting.add(fetch.mTask);
+        dispatchWaiting(host);
+    }
+
+    /**
+     * Hands the waiting fetches of the host to workers while the host has permits. Must be called while holding the class lock.
+     * 
+     * @param host Host.
+     */
+    private static void dispatchWaiting(Host host) {
+        while (host.mOpen < sMaxRequestsPerHost && !host.mWaiting.isEmpty()) {
+            PrioritizedTask task = host.mWaiting.poll();
+            host.mOpen++;
+            task.mFetch.mPermit = new Permit(host);
+            sExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Returns a permit of the host and hands the next waiting fetch to a worker.
+     * 
+     * @param host Host.
+     */
+    private static synchronized void release(Host host) {
+        host.mOpen--;
+        dispatchWaiting(host);
+        if (host.mOpen == 0 && host.mWaiting.isEmpty()) {
+            sHosts.remove(host.mName);
+        }
+    }
+
+    /**
+     * Single fetch of a resource. Executed on the worker pool up to the response headers, the body is then read by the caller.
+     */
+    private static class Fetch implements Callable<Result> {
+
+        /**
+         * 'Cloudified' URL.
+         */
+        private final String mUrl;
+
+        /**
+         * Cache key.
+         */
+        private final String mKey;
+
+        /**
+         * Stored entry to revalidate or <code>null</code>.
+         */
+        private final CacheEntry mCacheEntry;
+
+        /**
+         * Rank of the resource. Lowered if a request for a more important resource joins.
+         */
+        private volatile int mRank;
+
+        /**
+         * Group the fetch belongs to. Changed to a foreground group if a request of it joins.
+         */
+        private volatile Object mGroup;
+
+        /**
+         * Task executing the fetch.
+         */
+        final PrioritizedTask mTask = new PrioritizedTask(this);
+
+        /**
+         * Host the fetch goes to. Guarded by the class lock.
+         */
+        Host mHost;
+
+        /**
+         * Host permit. Set before the task is handed to a worker.
+         */
+        Permit mPermit;
+
+        /**
+         * Indicates whether requests for the same URL can join this fetch.
+         */
+        volatile boolean mIsCoalescing = true;
+
+        /**
+         * Request being executed.
+         */
+        private HttpGet mRequest;
+
+        /**
+         * Body buffered for joined requests. <code>null</code> until the headers arrive or if the response cannot be shared.
+         */
+        private SharedBody mSharedBody;
+
+        /**
+         * Result built on the worker thread. Only accessed under the object lock.
+         */
+        private Result mResult;
+
+        /**
+         * Indicates whether the caller stopped waiting. Only accessed under the object lock.
+         */
+        private boolean mIsAbandoned;
+
+        /**
+         * Default constructor.
+         * 
+         * @param url 'Cloudified' URL.
+         * @param key Cache key.
+         * @param cacheEntry Stored entry to revalidate or <code>null</code>.
+         * @param rank Rank of the resource.
+         * @param group Group the fetch belongs to or <code>null</code>.
+         */
+        Fetch(String url, String key, CacheEntry cacheEntry, int rank, Object group) {
+            mUrl = url;
+            mKey = key;
+            mCacheEntry = cacheEntry;
+            mRank = rank;
+            mGroup = group;
+            mTask.mPriority = getPriority();
+        }
+
+        /**
+         * Computes the priority of the fetch. Lower values go first.
+         * 
+         * @return Priority.
+         */
+        int getPriority() {
+            Object group = mGroup;
+            Object foregroundGroup = sForegroundGroup;
+            boolean isForeground = group == null || foregroundGroup == null || group == foregroundGroup;
+            return mRank + (isForeground ? 0 : BACKGROUND_PENALTY);
+        }
+
+        /**
+         * Raises the priority of the fetch to that of a request joining it. The fetch is requeued if it is still waiting.
+         * 
+         * @param rank Rank of the resource for the joining request.
+         * @param group Group of the joining request.
+         */
+        void raise(int rank, Object group) {
+            synchronized (this) {
+                mRank = Math.min(mRank, rank);
+                if (group == null || group == sForegroundGroup) {
+                    mGroup = group;
+                }
+            }
+
+            synchronized (FetchEngine.class) {
+                int priority = getPriority();
+                if (priority >= mTask.mPriority) {
+                    return;
+                }
+                if (sExecutor.remove(mTask)) {
+                    mTask.mPriority = priority;
+                    sExecutor.execute(mTask);
+                } else if (mHost != null && mHost.mWaiting.remove(mTask)) {
+                    mTask.mPriority = priority;
+                    mHost.mWaiting.add(mTask);
+                }
+            }
+        }
+
+        @Override
+        public Result call() throws Exception {
+            // The permit has been acquired before the fetch was handed to the worker.
+            Permit permit = mPermit;
+
+            TraceSpan span = Tracer.begin(Tracer.SPAN_BROWSER);
+            HttpResponse response = null;
+            Result result = null;
+            boolean isDelivered = false;
+            try {
+                HttpGet request = new HttpGet(mUrl);
+                ContentCoding.acceptEncoding(request);
+                if (mCacheEntry != null) {
+                    ResponseCache.addValidators(request, mCacheEntry);
+                }
+                synchronized (this) {
+                    if (mIsAbandoned) {
+                        return null;
+                    }
+                    mRequest = request;
+                }
+                response = GatewayHttpClient.execute(request);
+                result = handle(response, permit, span);
+            } finally {
+                synchronized (this) {
+                    if (!mIsAbandoned && result != null) {
+                        mResult = result;
+                        isDelivered = true;
+                    }
+                }
+                if (!isDelivered) {
+                    if (result != null) {
+                        result.getStream().close();
+                    } else {
+                        GatewayHttpClient.consume(response);
+                    }
+                    permit.release();
+                    sInFlight.remove(mKey, this);
+                    Tracer.end(span, result == null && response == null);
+                }
+            }
+            return isDelivered ? result : null;
+        }
+
+        /**
+         * Turns the response into the result. Must not leave the span open if the result is <code>null</code>.
+         * 
+         * @param response Response.
+         * @param permit Host permit to release when the body is done.
+         * @param span Span of the fetch.
+         * 
+         * @return Result or <code>null</code> if the resource cannot be intercepted.
+         * 
+         * @throws IOException If reading the response fails.
+         */
+        private Result handle(HttpResponse response, Permit permit, TraceSpan span) throws IOException {
+            int status = response.getStatusLine().getStatusCode();
+            if (mCacheEntry != null && status == HttpStatus.SC_NOT_MODIFIED) {
+                GatewayHttpClient.consume(response);
+                permit.release();
+                sInFlight.remove(mKey, this);
+                Tracer.end(span, false);
+                ResponseCache.update(mCacheEntry, response);
+                InputStream cachedStream = ResponseCache.open(mCacheEntry, true);
+                return cachedStream == null ? null : new Result(mCacheEntry.getMimeType(), mCacheEntry.getEncoding(), cachedStream, true);
+            }
+            ResponseCache.onMiss();
+
+            // WebResourceResponse cannot carry the status, so WebView fetches error responses itself to report them properly.
+            HttpEntity entity = response.getEntity();
+            if (status < 200 || status >= 300 || entity == null || !ContentCoding.isSupported(entity)) {
+                return null;
+            }
+
+            InputStream responseStream = entity.getContent();
+            if (responseStream == null) {
+                return null;
+            }
+
+            // Fixed-length, chunked and compressed bodies are all handed over, decompressed while WebView reads them.
+            String mimeType = ContentCoding.getMimeType(entity, mKey);
+            String encoding = ContentCoding.getCharset(entity);
+            // The body streams straight to WebView, the stages get every chunk as it passes. The network meter gets it before decoding,
+            // as it comes from the gateway.
+            RequestAccounting.NetworkMeter networkMeter = new RequestAccounting.NetworkMeter();
+            BodyPipeline pipeline = new BodyPipeline(ContentCoding.decode(entity, new BodyPipeline(responseStream).addStage(networkMeter)));
+            if (ResponseCache.isCacheable(response)) {
+                pipeline.addStage(ResponseCache.put(mKey, mimeType, encoding, response));
+            } else if (mCacheEntry != null) {
+                ResponseCache.remove(mKey);
+            }
+
+            if (mIsCoalescing) {
+                mSharedBody = new SharedBody(this, mimeType, encoding);
+                pipeline.addStage(mSharedBody);
+            } else {
+                sInFlight.remove(mKey, this);
+            }
+            pipeline.addStage(new CompletionStage(this, permit));
+
+            // The span is ended on the thread reading the body.
+            Tracer.detach(span);
+            return new Result(mimeType, encoding, Tracer.timeBody(pipeline, span), false, networkMeter);
+        }
+
+        /**
+         * Waits for the response headers as the request that started the fetch.
+         * 
+         * @return Result or <code>null</code> if the fetch failed or the resource cannot be intercepted.
+         */
+        Result getResult() {
+            try {
+                return mTask.get(HEADERS_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                Log.e(FetchEngine.class.getSimpleName(), "getResult(): Timed out " + mKey);
+                return abandon();
+            } catch (final ExecutionException e) {
+                Log.e(FetchEngine.class.getSimpleName(), "getResult(): Failed " + mKey + ". " + e.getCause());
+                return null;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return abandon();
+            }
+        }
+
+        /**
+         * Waits for the response headers as a request for the same URL and joins the fetch.
+         * 
+         * @return Result reading the shared body or <code>null</code> if the fetch cannot be joined.
+         */
+        Result join() {
+            try {
+                if (mTask.get(HEADERS_TIMEOUT, TimeUnit.MILLISECONDS) == null) {
+                    return null;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (final Exception e) {
+                return null;
+            }
+
+            SharedBody sharedBody = mSharedBody;
+            FollowerInputStream stream = sharedBody == null ? null : sharedBody.join();
+            if (stream == null) {
+                return null;
+            }
+            return new Result(sharedBody.mMimeType, sharedBody.mEncoding, stream, false);
+        }
+
+        /**
+         * Stops waiting for the headers. Aborts the request unless the result is ready already.
+         * 
+         * @return Result if it became ready meanwhile, otherwise <code>null</code>.
+         */
+        private Result abandon() {
+            HttpGet request;
+            synchronized (this) {
+                if (mResult != null) {
+                    return mResult;
+                }
+                mIsAbandoned = true;
+                request = mRequest;
+            }
+            if (request != null) {
+                request.abort();
+            }
+            synchronized (FetchEngine.class) {
+                // Still waiting for a permit, the fetch never starts.
+                if (mHost != null && mHost.mWaiting.remove(mTask)) {
+                    if (mHost.mOpen == 0 && mHost.mWaiting.isEmpty()) {
+                        sHosts.remove(mHost.mName);
+                    }
+                    sInFlight.remove(mKey, this);
+                    mTask.cancel(false);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Task executing a fetch. Queued tasks are ordered by priority and then by submission.
+     */
+    private static class PrioritizedTask extends FutureTask<Result> implements Comparable<PrioritizedTask> {
+
+        /**
+         * Fetch executed.
+         */
+        final Fetch mFetch;
+
+        /**
+         * Submission number.
+         */
+        private final long mSequence = sSequence.incrementAndGet();
+
+        /**
+         * Priority the task is queued with. Only changed while the task is not queued.
+         */
+        volatile int mPriority;
+
+        /**
+         * Default constructor.
+         * 
+         * @param fetch Fetch to execute.
+         */
+        PrioritizedTask(Fetch fetch) {
+            super(fetch);
+            mFetch = fetch;
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence > another.mSequence ? 1 : 0);
+        }
+    }
+
+    /**
+     * Host permit released at most once.
+     */
+    private static class Permit {
+
+        /**
+         * Host the permit has been acquired for.
+         */
+        private final Host mHost;
+
+        /**
+         * Indicates whether the permit has been released.
+         */
+        private final AtomicBoolean mIsReleased = new AtomicBoolean();
+
+        /**
+         * Default constructor.
+         * 
+         * @param host Host the permit has been acquired for.
+         */
+        Permit(Host host) {
+            mHost = host;
+        }
+
+        /**
+         * Returns the permit unless it has been returned already.
+         */
+        void release() {
+            if (mIsReleased.compareAndSet(false, true)) {
+                FetchEngine.release(mHost);
+            }
+        }
+    }
+
+    /**
+     * Host requests go to. Guarded by the class lock.
+     */
+    private static class Host {
+
+        /**
+         * Host name.
+         */
+        final String mName;
+
+        /**
+         * Fetches waiting for a permit, ordered like the worker queue.
+         */
+        final PriorityQueue<PrioritizedTask> mWaiting = new PriorityQueue<PrioritizedTask>();
+
+        /**
+         * Number of permits in use, i.e. requests executed or responses open.
+         */
+        int mOpen;
+
+        /**
+         * Default constructor.
+         * 
+         * @param name Host name.
+         */
+        Host(String name) {
+            mName = name;
+        }
+    }
+
+    /**
+     * Pipeline stage releasing the host permit and ending the fetch when the body is done.
+     */
+    private static class CompletionStage implements BodyPipeline.Stage {
+
+        /**
+         * Fetch the body belongs to.
+         */
+        private final Fetch mFetch;
+
+        /**
+         * Host permit.
+         */
+        private final Permit mPermit;
+
+        /**
+         * Default constructor.
+         * 
+         * @param fetch Fetch the body belongs to.
+         * @param permit Host permit.
+         */
+        CompletionStage(Fetch fetch, Permit permit) {
+            mFetch = fetch;
+            mPermit = permit;
+        }
+
+        @Override
+        public void onData(byte[] buffer, int offset, int count) {
+        }
+
+        @Override
+        public void onEnd() {
+            finish();
+        }
+
+        @Override
+        public void onAbort() {
+            finish();
+        }
+
+        @Override
+        public boolean needsRemainder() {
+            return false;
+        }
+
+        /**
+         * Releases the host permit and ends the fetch.
+         */
+        private void finish() {
+            mPermit.release();
+            sInFlight.remove(mFetch.mKey, mFetch);
+        }
+    }
+
+    /**
+     * Body of a fetch buffered for the requests that joined it. Requests can only join before the first body byte arrives, so a body
+     * nobody joined is never buffered. Kept in pooled chunks, the chunks read by all joined requests are returned to the pool.
+     */
+    private static class SharedBody implements BodyPipeline.Stage {
+
+        /**
+         * MIME type.
+         */
+        final String mMimeType;
+
+        /**
+         * Encoding.
+         */
+        final String mEncoding;
+
+        /**
+         * Fetch the body belongs to.
+         */
+        private final Fetch mFetch;
+
+        /**
+         * Buffered chunks, the first one starting at {@link #mBase}.
+         */
+        private final ArrayList<byte[]> mChunks = new ArrayList<byte[]>();
+
+        /**
+         * Joined requests still reading the body.
+         */
+        private final ArrayList<FollowerInputStream> mFollowers = new ArrayList<FollowerInputStream>();
+
+        /**
+         * Body position of the first buffered byte. A multiple of the chunk size.
+         */
+        private long mBase;
+
+        /**
+         * Number of bytes read by the request that started the fetch.
+         */
+        private long mLength;
+
+        /**
+         * Indicates whether more requests can join. Cleared when the first body byte arrives.
+         */
+        private boolean mIsJoinable = true;
+
+        /**
+         * Indicates whether buffering stopped since nobody joined or all joined requests left.
+         */
+        private boolean mIsStopped;
+
+        /**
+         * Indicates whether the body is complete.
+         */
+        private boolean mIsComplete;
+
+        /**
+         * Indicates whether reading the body failed.
+         */
+        private boolean mIsFailed;
+
+        /**
+         * Default constructor.
+         * 
+         * @param fetch Fetch the body belongs to.
+         * @param mimeType MIME type.
+         * @param encoding Encoding.
+         */
+        SharedBody(Fetch fetch, String mimeType, String encoding) {
+            mFetch = fetch;
+            mMimeType = mimeType;
+            mEncoding = encoding;
+        }
+
+        /**
+         * Joins a request.
+         * 
+         * @return Stream reading the body from the beginning or <code>null</code> if it is too late to join.
+         */
+        synchronized FollowerInputStream join() {
+            if (!mIsJoinable) {
+                return null;
+            }
+            FollowerInputStream follower = new FollowerInputStream(this);
+            mFollowers.add(follower);
+            return follower;
+        }
+
+        @Override
+        public synchronized void onData(byte[] buffer, int offset, int count) throws IOException {
+            if (mIsStopped) {
+                return;
+            }
+            if (mIsJoinable) {
+                // Later requests would need the bytes passed so far, so joining ends here. With nobody joined there is nothing to buffer
+                // and no reason to make the request that started the fetch read the rest of the body on close.
+                mIsJoinable = false;
+                if (mFollowers.isEmpty()) {
+                    stop();
+                    return;
+                }
+            }
+
+            // Back-pressure: rather than buffering the whole body, wait for the joined requests to read their part.
+            long deadline = System.currentTimeMillis() + FOLLOWER_STALL_TIMEOUT;
+            while (mLength > mBase && mLength + count - mBase > COALESCING_BUFFER_SIZE) {
+                if (mFollowers.isEmpty()) {
+                    stop();
+                    return;
+                }
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) {
+                    throw new IOException("Joined request stalled.");
+                }
+                try {
+                    wait(timeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted.");
+                }
+            }
+
+            while (count > 0) {
+                int chunkOffset = (int) ((mLength - mBase) % BufferPool.BUFFER_SIZE);
+                if (chunkOffset == 0) {
+                    mChunks.add(BufferPool.acquire());
+                }
+                int copied = Math.min(count, BufferPool.BUFFER_SIZE - chunkOffset);
+                System.arraycopy(buffer, offset, mChunks.get(mChunks.size() - 1), chunkOffset, copied);
+                offset += copied;
+                count -= copied;
+                mLength += copied;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void onEnd() {
+            finish(false);
+        }
+
+        @Override
+        public void onAbort() {
+            finish(true);
+        }
+
+        @Override
+        public synchronized boolean needsRemainder() {
+            return !mFollowers.isEmpty();
+        }
+
+        /**
+         * Reads buffered bytes, waiting for more if needed.
+         * 
+         * @param follower Joined request reading the body.
+         * @param buffer Buffer to read into.
+         * @param offset Offset in the buffer.
+         * @param count Maximum number of bytes.
+         * 
+         * @return Number of bytes read or -1 at the end of the body.
+         * 
+         * @throws IOException If reading the body failed or no data arrived in time.
+         */
+        synchronized int read(FollowerInputStream follower, byte[] buffer, int offset, int count) throws IOException {
+            if (!mFollowers.contains(follower)) {
+                throw new IOException("Shared response closed.");
+            }
+            long deadline = System.currentTimeMillis() + FOLLOWER_STALL_TIMEOUT;
+            while (follower.mPosition >= mLength && !mIsComplete) {
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) {
+                    // The request being joined stalled; do not keep the joined request hanging on it.
+                    leave(follower);
+                    throw new IOException("Shared response stalled.");
+                }
+                try {
+                    wait(timeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted.");
+                }
+            }
+            if (mIsFailed) {
+                throw new IOException("Shared response failed.");
+            }
+            if (follower.mPosition >= mLength) {
+                return -1;
+            }
+
+            long position = follower.mPosition - mBase;
+            int chunkOffset = (int) (position % BufferPool.BUFFER_SIZE);
+            int read = (int) Math.min(count, Math.min(BufferPool.BUFFER_SIZE - chunkOffset, mLength - follower.mPosition));
+            System.arraycopy(mChunks.get((int) (position / BufferPool.BUFFER_SIZE)), chunkOffset, buffer, offset, read);
+            follower.mPosition += read;
+            trim();
+            return read;
+        }
+
+        /**
+         * Detaches the joined request.
+         * 
+         * @param follower Joined request that stopped reading the body.
+         */
+        synchronized void leave(FollowerInputStream follower) {
+            if (mFollowers.remove(follower)) {
+                trim();
+            }
+        }
+
+        /**
+         * Returns the chunks read by all joined requests to the pool. Must be called while holding the object lock.
+         */
+        private void trim() {
+            if (mFollowers.isEmpty()) {
+                if (mIsComplete) {
+                    releaseChunks();
+                }
+                notifyAll();
+                return;
+            }
+
+            long position = Long.MAX_VALUE;
+            for (FollowerInputStream follower : mFollowers) {
+                position = Math.min(position, follower.mPosition);
+            }
+            while (!mChunks.isEmpty() && position - mBase >= BufferPool.BUFFER_SIZE) {
+                BufferPool.release(mChunks.remove(0));
+                mBase += BufferPool.BUFFER_SIZE;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Stops buffering since nobody joined or all joined requests left. Must be called while holding the object lock.
+         */
+        private void stop() {
+            mIsStopped = true;
+            mIsJoinable = false;
+            releaseChunks();
+            sInFlight.remove(mFetch.mKey, mFetch);
+        }
+
+        /**
+         * Marks the body complete.
+         * 
+         * @param failed Indicates whether reading the body failed.
+         */
+        private synchronized void finish(boolean failed) {
+            mIsJoinable = false;
+            mIsComplete = true;
+            mIsFailed = failed;
+            if (mFollowers.isEmpty()) {
+                releaseChunks();
+            }
+            notifyAll();
+        }
+
+        /**
+         * Returns all chunks to the pool. Must be called while holding the object lock.
+         */
+        private void releaseChunks() {
+            for (byte[] chunk : mChunks) {
+                BufferPool.release(chunk);
+            }
+            mChunks.clear();
+            mBase = mLength - mLength % BufferPool.BUFFER_SIZE;
+        }
+    }
+
+    /**
+     * Body stream of a request that joined a fetch.
+     */
+    private static class FollowerInputStream extends InputStream {
+
+        /**
+         * Shared body.
+         */
+        private final SharedBody mSharedBody;
+
+        /**
+         * Body position of the next byte to read. Only accessed under the shared body lock.
+         */
+        long mPosition;
+
+        /**
+         * Default constructor.
+         * 
+         * @param sharedBody Shared body.
+         */
+        FollowerInputStream(SharedBody sharedBody) {
+            mSharedBody = sharedBody;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            int read = read(buffer, 0, 1);
+            return read < 0 ? read : buffer[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            return mSharedBody.read(this, buffer, offset, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSharedBody.leave(this);
+        }
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private FetchEngine() {
+    }
+}
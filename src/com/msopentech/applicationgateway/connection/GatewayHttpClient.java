@@ -0,0 +1,297 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Implements the process-wide HTTP client shared by all gateway requests. Connections are kept alive in a thread-safe pool so
+ * consecutive requests to the same host skip repeated TCP and TLS handshakes.
+ */
+public class GatewayHttpClient {
+
+    /**
+     * Default maximum number of pooled connections.
+     */
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+
+    /**
+     * Default maximum number of pooled connections to a single host.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 6;
+
+    /**
+     * Time (in milliseconds) an idle connection stays in the pool before it is evicted.
+     */
+    public static final long IDLE_CONNECTION_TIMEOUT = 30 * 1000;
+
+    /**
+     * Interval (in milliseconds) between idle connection eviction runs.
+     */
+    private static final long EVICTION_INTERVAL = 10 * 1000;
+
+    /**
+     * Shared client instance. Created lazily.
+     */
+    private static DefaultHttpClient sClient;
+
+    /**
+     * Timer evicting idle and expired connections from the pool.
+     */
+    private static Timer sEvictionTimer;
+
+    /**
+     * Maximum number of pooled connections.
+     */
+    private static int sMaxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+
+    /**
+     * Maximum number of pooled connections to a single host.
+     */
+    private static int sMaxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+
+    /**
+     * Number of requests served by an already open pooled connection.
+     */
+    private static final AtomicLong sPoolHits = new AtomicLong();
+
+    /**
+     * Number of requests that required a new connection to be opened.
+     */
+    private static final AtomicLong sPoolMisses = new AtomicLong();
+
+    /**
+     * Returns the shared client, creating it on the first call.
+     * 
+     * @return Thread-safe pooled client.
+     */
+    public static synchronized DefaultHttpClient getClient() {
+        if (sClient == null) {
+            sClient = createClient();
+        }
+        return sClient;
+    }
+
+    /**
+     * Executes request with the shared client. Every call gets its own cookie store to keep requests as isolated as they were with a
+     * client per request. The caller must consume the response entity (see {@link #consume(HttpResponse)}) to return the connection
+     * to the pool. Time to the response headers is added to the span open on the calling thread (see {@link Tracer}).
+     * 
+     * @param request Request to execute.
+     * 
+     * @return Response.
+     * 
+     * @throws IOException If request fails.
+     */
+    public static HttpResponse execute(HttpUriRequest request) throws IOException {
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(ClientContext.COOKIE_STORE, new BasicCookieStore());
+
+        TraceSpan span = Tracer.current();
+        if (span == null) {
+            return getClient().execute(request, context);
+        }
+
+        long connectionTime = span.getConnectionTime();
+        long start = SystemClock.elapsedRealtime();
+        HttpResponse response = getClient().execute(request, context);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        span.addPhase(TraceSpan.PHASE_TTFB, Math.max(0, elapsed - (span.getConnectionTime() - connectionTime)));
+        span.setStatus(response.getStatusLine().getStatusCode());
+        return response;
+    }
+
+    /**
+     * Consumes the rest of the response entity so that its connection is released back to the pool. Never throws.
+     * 
+     * @param response Response to release. Can be <code>null</code>.
+     */
+    public static void consume(HttpResponse response) {
+        if (response == null) {
+            return;
+        }
+
+        try {
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                entity.consumeContent();
+            }
+        } catch (final Exception e) {
+            Log.d(GatewayHttpClient.class.getSimpleName(), "consume(): Failed. " + e.toString());
+        }
+    }
+
+    /**
+     * Changes the pool size. The current client is shut down and a new one is created on the next request.
+     * 
+     * @param maxTotalConnections Maximum number of pooled connections.
+     * @param maxConnectionsPerRoute Maximum number of pooled connections to a single host.
+     */
+    public static synchronized void setPoolSize(int maxTotalConnections, int maxConnectionsPerRoute) {
+        if (maxTotalConnections <= 0 || maxConnectionsPerRoute <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive.");
+        }
+
+        sMaxTotalConnections = maxTotalConnections;
+        sMaxConnectionsPerRoute = Math.min(maxConnectionsPerRoute, maxTotalConnections);
+        shutdown();
+    }
+
+    /**
+     * Closes all pooled connections and releases the shared client.
+     */
+    public static synchronized void shutdown() {
+        if (sEvictionTimer != null) {
+            sEvictionTimer.cancel();
+            sEvictionTimer = null;
+        }
+        if (sClient != null) {
+            sClient.getConnectionManager().shutdown();
+            sClient = null;
+        }
+    }
+
+    /**
+     * Returns the number of requests served by an already open pooled connection.
+     * 
+     * @return Pool hit count.
+     */
+    public static long getPoolHits() {
+        return sPoolHits.get();
+    }
+
+    /**
+     * Returns the number of requests that required a new connection to be opened.
+     * 
+     * @return Pool miss count.
+     */
+    public static long getPoolMisses() {
+        return sPoolMisses.get();
+    }
+
+    /**
+     * Creates a pooled client and starts idle connection eviction.
+     * 
+     * @return New client.
+     */
+    private static DefaultHttpClient createClient() {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        ConnManagerParams.setMaxTotalConnections(params, sMaxTotalConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(sMaxConnectionsPerRoute));
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", new TimingSocketFactory(PlainSocketFactory.getSocketFactory()), 80));
+        registry.register(new Scheme("https", new TimingSocketFactory(SSLSocketFactory.getSocketFactory()), 443));
+
+        final CountingConnectionManager manager = new CountingConnectionManager(params, registry);
+        DefaultHttpClient client = new DefaultHttpClient(manager, params);
+        client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? Math.min(duration, IDLE_CONNECTION_TIMEOUT) : IDLE_CONNECTION_TIMEOUT;
+            }
+        });
+
+        sEvictionTimer = new Timer(GatewayHttpClient.class.getSimpleName() + "-eviction", true);
+        sEvictionTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                manager.closeExpiredConnections();
+                manager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }, EVICTION_INTERVAL, EVICTION_INTERVAL);
+
+        return client;
+    }
+
+    /**
+     * Connection manager counting pool hits and misses. A connection leased in the open state is a reused one.
+     */
+    private static class CountingConnectionManager extends ThreadSafeClientConnManager {
+
+        /**
+         * Default constructor.
+         * 
+         * @param params Connection manager parameters.
+         * @param registry Supported schemes.
+         */
+        CountingConnectionManager(HttpParams params, SchemeRegistry registry) {
+            super(params, registry);
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit) throws InterruptedException,
+                        ConnectionPoolTimeoutException {
+                    ManagedClientConnection connection = request.getConnection(timeout, unit);
+                    if (connection.isOpen()) {
+                        sPoolHits.incrementAndGet();
+                    } else {
+                        sPoolMisses.incrementAndGet();
+                    }
+                    return connection;
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private GatewayHttpClient() {
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.msopentech.applicationgateway.data.LoadMetrics;
+
+/**
+ * Aggregates the metrics of the requests intercepted in smart browser mode for the whole application and by site. Updated without
+ * locking from the threads loading the resources.
+ */
+public class MetricsRegistry {
+
+    /**
+     * Maximum number of sites tracked separately. Requests to further sites only count in the totals.
+     */
+    private static final int MAX_SITES = 100;
+
+    /**
+     * Metrics of all requests.
+     */
+    private static final LoadMetrics sTotal = new LoadMetrics();
+
+    /**
+     * Metrics by host.
+     */
+    private static final ConcurrentHashMap<String, LoadMetrics> sSites = new ConcurrentHashMap<String, LoadMetrics>();
+
+    /**
+     * Returns the metrics of all requests.
+     * 
+     * @return Total metrics.
+     */
+    public static LoadMetrics getTotal() {
+        return sTotal;
+    }
+
+    /**
+     * Returns the metrics of the site the URL belongs to.
+     * 
+     * @param url Regular URL.
+     * 
+     * @return Site metrics or <code>null</code> if too many sites are tracked already.
+     */
+    public static LoadMetrics getSite(String url) {
+        String host = getHost(url);
+        LoadMetrics metrics = sSites.get(host);
+        if (metrics == null) {
+            if (sSites.size() >= MAX_SITES) {
+                return null;
+            }
+            LoadMetrics created = new LoadMetrics();
+            metrics = sSites.putIfAbsent(host, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the sites with the most bytes received from the gateway.
+     * 
+     * @param count Maximum number of sites.
+     * 
+     * @return Entries of host and metrics, largest first.
+     */
+    public static List<Map.Entry<String, LoadMetrics>> getTopSites(int count) {
+        List<Map.Entry<String, LoadMetrics>> sites = new ArrayList<Map.Entry<String, LoadMetrics>>(sSites.entrySet());
+        Collections.sort(sites, new Comparator<Map.Entry<String, LoadMetrics>>() {
+            @Override
+            public int compare(Map.Entry<String, LoadMetrics> lhs, Map.Entry<String, LoadMetrics> rhs) {
+                long difference = rhs.getValue().getNetworkBytes() - lhs.getValue().getNetworkBytes();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        return sites.size() > count ? sites.subList(0, count) : sites;
+    }
+
+    /**
+     * Forgets the metrics of all sites. Totals are kept for the lifetime of the application.
+     */
+    public static void clearSites() {
+        sSites.clear();
+    }
+
+    /**
+     * Returns the host of the URL.
+     * 
+     * @param url Regular URL.
+     * 
+     * @return Lower-cased host.
+     */
+    private static String getHost(String url) {
+        int hostStart = url.indexOf("://");
+        hostStart = hostStart < 0 ? 0 : hostStart + 3;
+        int hostEnd = hostStart;
+        while (hostEnd < url.length() && "/?#".indexOf(url.charAt(hostEnd)) < 0) {
+            hostEnd++;
+        }
+        return url.substring(hostStart, hostEnd).toLowerCase();
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private MetricsRegistry() {
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.msopentech.applicationgateway.cache.ResponseCache;
+import com.msopentech.applicationgateway.data.URLInfo;
+import com.msopentech.applicationgateway.utils.BodyPipeline;
+import com.msopentech.applicationgateway.utils.BufferPool;
+
+/**
+ * Loads pages the user is likely to open next while the current page is being read. Candidates are the links of the current page the
+ * user has visited before, most visited first. Loaded pages are kept for a short time and used once, for the navigation to them
+ * only, and only within the session they were loaded in.
+ */
+public class Prefetcher {
+
+    /**
+     * Maximum number of pages loaded after a page is finished.
+     */
+    public static final int MAX_PAGES = 3;
+
+    /**
+     * Maximum number of bytes loaded after a page is finished.
+     */
+    private static final int BATCH_BYTE_BUDGET = 1024 * 1024;
+
+    /**
+     * Maximum size (in bytes) of a loaded page.
+     */
+    private static final int MAX_PAGE_SIZE = 512 * 1024;
+
+    /**
+     * Maximum number of kept pages.
+     */
+    private static final int MAX_KEPT_PAGES = 2 * MAX_PAGES;
+
+    /**
+     * Time (in milliseconds) a loaded page can be used for.
+     */
+    private static final long PAGE_LIFETIME = 5 * 60 * 1000;
+
+    /**
+     * Maximum number of links of a page looked at.
+     */
+    public static final int MAX_LINKS = 200;
+
+    /**
+     * File extensions of the links that are loaded. Links without extension are loaded too.
+     */
+    private static final String[] PAGE_EXTENSIONS = { "htm", "html", "asp", "aspx", "php", "jsp" };
+
+    /**
+     * Single low priority thread loading pages one by one.
+     */
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, Prefetcher.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Loaded pages, by cache key, least recently loaded first.
+     */
+    private static final LinkedHashMap<String, Page> sPages = new LinkedHashMap<String, Page>();
+
+    /**
+     * Cache key of the page the user is navigating to, set by {@link #onNavigation(String)}.
+     */
+    private static String sNavigationKey;
+
+    /**
+     * Tasks of the current batch.
+     */
+    private static final List<Future<?>> sTasks = new ArrayList<Future<?>>();
+
+    /**
+     * Number of the current batch. Tasks of older batches stop.
+     */
+    private static final AtomicLong sBatch = new AtomicLong();
+
+    /**
+     * Number of pages used for navigation.
+     */
+    private static final AtomicLong sHits = new AtomicLong();
+
+    /**
+     * Number of pages loaded.
+     */
+    private static final AtomicLong sLoads = new AtomicLong();
+
+    /**
+     * Loaded page.
+     */
+    private static class Page {
+
+        /**
+         * MIME type.
+         */
+        final String mMimeType;
+
+        /**
+         * Charset or <code>null</code>.
+         */
+        final String mEncoding;
+
+        /**
+         * Decoded body.
+         */
+        final byte[] mBody;
+
+        /**
+         * Session the page has been loaded in.
+         */
+        final String mSessionID;
+
+        /**
+         * Time (in milliseconds since boot) the page has been loaded.
+         */
+        final long mLoadTime = SystemClock.elapsedRealtime();
+
+        /**
+         * Default constructor.
+         * 
+         * @param mimeType MIME type.
+         * @param encoding Charset or <code>null</code>.
+         * @param body Decoded body.
+         * @param sessionID Session the page has been loaded in.
+         */
+        Page(String mimeType, String encoding, byte[] body, String sessionID) {
+            mMimeType = mimeType;
+            mEncoding = encoding;
+            mBody = body;
+            mSessionID = sessionID;
+        }
+    }
+
+    /**
+     * Selects the links worth loading: links to pages the user has visited before, most visited first, links higher on the page first
+     * among equally visited.
+     * 
+     * @param links Regular URLs of the links of the current page.
+     * @param history Visited pages.
+     * @param currentUrl Regular URL of the current page, never selected.
+     * @param count Maximum number of links to select.
+     * 
+     * @return Selected regular URLs.
+     */
+    public static List<String> selectLinks(Collection<String> links, URLInfo[] history, String currentUrl, int count) {
+        final Map<String, Integer> visits = new HashMap<String, Integer>();
+        if (history != null) {
+            for (URLInfo info : history) {
+                if (info == null || info.getUrlAddress() == null) {
+                    continue;
+                }
+                // History keeps a URL once with its visit count, different URLs may still compare equal.
+                String address = getComparableUrl(info.getUrlAddress());
+                Integer visitCount = visits.get(address);
+                visits.put(address, (visitCount == null ? 0 : visitCount) + info.getVisitCount());
+            }
+        }
+
+        final Map<String, Integer> scores = new LinkedHashMap<String, Integer>();
+        String current = currentUrl == null ? null : getComparableUrl(currentUrl);
+        for (String link : links) {
+            if (link == null || !(link.startsWith("http://") || link.startsWith("https://")) || !isPage(link)) {
+                continue;
+            }
+            String comparable = getComparableUrl(link);
+            Integer visitCount = visits.get(comparable);
+            if (visitCount == null || comparable.equals(current)) {
+                continue;
+            }
+            String key = ResponseCache.getKey(link);
+            if (!scores.containsKey(key)) {
+                scores.put(key, visitCount);
+            }
+        }
+
+        // The sort is stable, so the order on the page is kept among equally visited links.
+        List<String> selected = new ArrayList<String>(scores.keySet());
+        Collections.sort(selected, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return scores.get(rhs) - scores.get(lhs);
+            }
+        });
+        return selected.size() > count ? selected.subList(0, count) : selected;
+    }
+
+    /**
+     * Starts loading pages in background. Loading started for a previous page is cancelled.
+     * 
+     * @param pages Regular URLs of the pages mapped to their 'cloudified' URLs, most likely first.
+     * @param sessionID Current session.
+     */
+    public static synchronized void prefetch(Map<String, String> pages, final String sessionID) {
+        cancel();
+        final long batch = sBatch.get();
+        final int[] budget = { BATCH_BYTE_BUDGET };
+
+        for (Map.Entry<String, String> page : pages.entrySet()) {
+            final String key = ResponseCache.getKey(page.getKey());
+            final String cloudUrl = page.getValue();
+            synchronized (sPages) {
+                Page loaded = sPages.get(key);
+                if (loaded != null && sessionID.equals(loaded.mSessionID) && !isExpired(loaded)) {
+                    continue;
+                }
+            }
+
+            sTasks.add(sExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (sBatch.get() != batch || budget[0] <= 0) {
+                        return;
+                    }
+                    Page loaded = load(cloudUrl, key, sessionID, Math.min(budget[0], MAX_PAGE_SIZE), batch);
+                    if (loaded == null) {
+                        return;
+                    }
+                    budget[0] -= loaded.mBody.length;
+                    sLoads.incrementAndGet();
+                    synchronized (sPages) {
+                        sPages.remove(key);
+                        sPages.put(key, loaded);
+                        Iterator<Page> pages = sPages.values().iterator();
+                        while (sPages.size() > MAX_KEPT_PAGES && pages.hasNext()) {
+                            pages.next();
+                            pages.remove();
+                        }
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Cancels loading pages. Pages already loaded are kept.
+     */
+    public static synchronized void cancel() {
+        sBatch.incrementAndGet();
+        for (Future<?> task : sTasks) {
+            task.cancel(false);
+        }
+        sTasks.clear();
+    }
+
+    /**
+     * Cancels loading pages and drops loaded ones, e.g. when the session changes.
+     */
+    public static void discard() {
+        cancel();
+        synchronized (sPages) {
+            sPages.clear();
+            sNavigationKey = null;
+        }
+    }
+
+    /**
+     * Tells that the user is navigating to the page, e.g. by following a link. Only the page of such navigation can be used, so that
+     * other requests to the same URL such as form submissions always go to the gateway.
+     * 
+     * @param normalUrl Regular URL of the page.
+     */
+    public static void onNavigation(String normalUrl) {
+        synchronized (sPages) {
+            sNavigationKey = normalUrl == null ? null : ResponseCache.getKey(normalUrl);
+        }
+    }
+
+    /**
+     * Takes the loaded page for the navigation announced by {@link #onNavigation(String)}. A page is used only once.
+     * 
+     * @param normalUrl Regular URL of the page.
+     * @param sessionID Current session.
+     * 
+     * @return Page data or <code>null</code> if the page is not loaded, is too old or has been loaded in other session.
+     */
+    public static FetchEngine.Result take(String normalUrl, String sessionID) {
+        String key = ResponseCache.getKey(normalUrl);
+        Page page;
+        synchronized (sPages) {
+            if (!key.equals(sNavigationKey)) {
+                return null;
+            }
+            sNavigationKey = null;
+            page = sPages.remove(key);
+        }
+
+        if (page == null || isExpired(page) || !page.mSessionID.equals(sessionID)) {
+            return null;
+        }
+        sHits.incrementAndGet();
+        return new FetchEngine.Result(page.mMimeType, page.mEncoding, new ByteArrayInputStream(page.mBody), true);
+    }
+
+    /**
+     * Returns the number of loaded pages used for navigation.
+     * 
+     * @return Hit count.
+     */
+    public static long getHitCount() {
+        return sHits.get();
+    }
+
+    /**
+     * Returns the number of loaded pages.
+     * 
+     * @return Load count.
+     */
+    public static long getLoadCount() {
+        return sLoads.get();
+    }
+
+    /**
+     * Loads the page. Runs on the prefetch thread.
+     * 
+     * @param cloudUrl 'Cloudified' URL of the page.
+     * @param key Cache key of the page.
+     * @param sessionID Session the URL belongs to.
+     * @param maxSize Maximum size of the decoded body.
+     * @param batch Batch the load belongs to.
+     * 
+     * @return Page or <code>null</code> if the page is not HTML, is too large or loading fails or is cancelled.
+     */
+    private static Page load(String cloudUrl, String key, String sessionID, int maxSize, long batch) {
+        HttpGet request = new HttpGet(cloudUrl);
+        ContentCoding.acceptEncoding(request);
+        HttpResponse response = null;
+        InputStream body = null;
+        try {
+            response = GatewayHttpClient.execute(request);
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if (status < 200 || status >= 300 || entity == null || !ContentCoding.isSupported(entity)) {
+                return null;
+            }
+
+            String mimeType = ContentCoding.getMimeType(entity, key);
+            if (!mimeType.startsWith("text/html") && !mimeType.equals("application/xhtml+xml")) {
+                return null;
+            }
+            String encoding = ContentCoding.getCharset(entity);
+
+            BodyPipeline pipeline = new BodyPipeline(ContentCoding.decode(entity, entity.getContent()));
+            if (ResponseCache.isCacheable(response)) {
+                pipeline.addStage(ResponseCache.put(key, mimeType, encoding, response));
+            }
+            body = pipeline;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = BufferPool.acquire();
+            try {
+                int read;
+                while ((read = body.read(buffer)) >= 0) {
+                    if (sBatch.get() != batch || out.size() + read > maxSize) {
+                        request.abort();
+                        return null;
+                    }
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+            return new Page(mimeType, encoding, out.toByteArray(), sessionID);
+        } catch (final Exception e) {
+            Log.d(Prefetcher.class.getSimpleName(), "load(): Failed. " + e.toString());
+            request.abort();
+            return null;
+        } finally {
+            if (body != null) {
+                try {
+                    // Discards the partially stored cache entry if the page has not been read to the end.
+                    body.close();
+                } catch (final Exception e) {
+                    Log.d(Prefetcher.class.getSimpleName(), "load(): Failed to close. " + e.toString());
+                }
+            }
+            GatewayHttpClient.consume(response);
+        }
+    }
+
+    /**
+     * Checks whether the page is too old to be used.
+     * 
+     * @param page Page.
+     * 
+     * @return <code>true</code> if the page has expired.
+     */
+    private static boolean isExpired(Page page) {
+        return SystemClock.elapsedRealtime() - page.mLoadTime > PAGE_LIFETIME;
+    }
+
+    /**
+     * Checks whether the link seems to point to a page rather than to a download.
+     * 
+     * @param url Regular URL.
+     * 
+     * @return <code>true</code> if the link path has no extension or a page one.
+     */
+    private static boolean isPage(String url) {
+        int end = url.length();
+        int query = url.indexOf('?');
+        if (query >= 0) {
+            end = query;
+        }
+        int fragment = url.indexOf('#');
+        if (fragment >= 0 && fragment < end) {
+            end = fragment;
+        }
+        String path = url.substring(0, end);
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        if (dot <= slash || slash < path.indexOf("://") + 3) {
+            return true;
+        }
+
+        String extension = path.substring(dot + 1).toLowerCase();
+        for (String pageExtension : PAGE_EXTENSIONS) {
+            if (pageExtension.equals(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Brings URL to the form links and history entries can be compared in: without scheme, "www." prefix, fragment and trailing slash.
+     * 
+     * @param url URL.
+     * 
+     * @return Comparable URL.
+     */
+    private static String getComparableUrl(String url) {
+        String comparable = ResponseCache.getKey(url);
+        int schemeEnd = comparable.indexOf("://");
+        if (schemeEnd >= 0) {
+            comparable = comparable.substring(schemeEnd + 3);
+        }
+        if (comparable.startsWith("www.")) {
+            comparable = comparable.substring(4);
+        }
+        if (comparable.endsWith("/")) {
+            comparable = comparable.substring(0, comparable.length() - 1);
+        }
+        return comparable;
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private Prefetcher() {
+    }
+}
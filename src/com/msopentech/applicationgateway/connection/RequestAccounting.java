@@ -0,0 +1,237 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.SystemClock;
+
+import com.msopentech.applicationgateway.data.LoadMetrics;
+import com.msopentech.applicationgateway.utils.BodyPipeline;
+
+/**
+ * Accounts the requests intercepted in smart browser mode: records the request count, the bytes and the time to the headers and to
+ * the last byte of every response into the metrics of its page load and tab, its site and the application totals. Network bytes are
+ * the encoded bytes of each gateway response, counted once even if several requests share the response; the decoded bytes handed to
+ * WebView are counted separately.
+ */
+public class RequestAccounting {
+
+    /**
+     * Fetches the resource through the fetch engine and accounts it.
+     * 
+     * @param cloudUrl 'Cloudified' URL of the resource.
+     * @param normalUrl Regular URL of the resource.
+     * @param group Group the request belongs to (see {@link FetchEngine#fetch(String, String, Object)}).
+     * @param scopes Metrics of the page load and the tab the request belongs to. <code>null</code> elements are skipped.
+     * 
+     * @return Result with the body accounted while it is read or <code>null</code> if WebView has to load the resource itself.
+     */
+    public static FetchEngine.Result fetch(String cloudUrl, String normalUrl, Object group, LoadMetrics... scopes) {
+        long start = SystemClock.elapsedRealtime();
+        FetchEngine.Result result = FetchEngine.fetch(cloudUrl, normalUrl, group);
+        return result == null ? null : account(result, normalUrl, start, scopes);
+    }
+
+    /**
+     * Accounts the result obtained in another way, e.g. a page loaded in advance.
+     * 
+     * @param result Result whose headers have just arrived.
+     * @param normalUrl Regular URL of the resource.
+     * @param start Time (see {@link SystemClock#elapsedRealtime()}) the request was made.
+     * @param scopes Metrics of the page load and the tab the request belongs to. <code>null</code> elements are skipped.
+     * 
+     * @return Result with the body accounted while it is read.
+     */
+    public static FetchEngine.Result account(FetchEngine.Result result, String normalUrl, long start, LoadMetrics... scopes) {
+        List<LoadMetrics> metrics = new ArrayList<LoadMetrics>(scopes.length + 2);
+        metrics.add(MetricsRegistry.getTotal());
+        LoadMetrics site = MetricsRegistry.getSite(normalUrl);
+        if (site != null) {
+            metrics.add(site);
+        }
+        for (LoadMetrics scope : scopes) {
+            if (scope != null) {
+                metrics.add(scope);
+            }
+        }
+
+        boolean fromCache = result.isFromCache();
+        long headersTime = SystemClock.elapsedRealtime() - start;
+        for (LoadMetrics scope : metrics) {
+            scope.onHeaders(fromCache, headersTime);
+        }
+
+        NetworkMeter networkMeter = result.getNetworkMeter();
+        if (networkMeter != null) {
+            networkMeter.attach(metrics);
+        }
+
+        BodyPipeline pipeline = new BodyPipeline(result.getStream()).addStage(new MeteringStage(metrics, fromCache, start));
+        return new FetchEngine.Result(result.getMimeType(), result.getEncoding(), pipeline, fromCache);
+    }
+
+    /**
+     * Pipeline stage counting the decoded body bytes and recording the body into the metrics once it is done.
+     */
+    private static class MeteringStage implements BodyPipeline.Stage {
+
+        /**
+         * Metrics to record into.
+         */
+        private final List<LoadMetrics> mMetrics;
+
+        /**
+         * Indicates whether the response is served without going to the gateway.
+         */
+        private final boolean mIsFromCache;
+
+        /**
+         * Time the request was made.
+         */
+        private final long mStart;
+
+        /**
+         * Number of bytes read.
+         */
+        private long mBytes;
+
+        /**
+         * Default constructor.
+         * 
+         * @param metrics Metrics to record into.
+         * @param fromCache Indicates whether the response is served without going to the gateway.
+         * @param start Time the request was made.
+         */
+        MeteringStage(List<LoadMetrics> metrics, boolean fromCache, long start) {
+            mMetrics = metrics;
+            mIsFromCache = fromCache;
+            mStart = start;
+        }
+
+        @Override
+        public void onData(byte[] buffer, int offset, int count) {
+            mBytes += count;
+        }
+
+        @Override
+        public void onEnd() {
+            record(SystemClock.elapsedRealtime() - mStart);
+        }
+
+        @Override
+        public void onAbort() {
+            record(-1);
+        }
+
+        @Override
+        public boolean needsRemainder() {
+            return false;
+        }
+
+        /**
+         * Records the body.
+         * 
+         * @param lastByteTime Time from the request to the last byte or -1 if the body has not been read to the end.
+         */
+        private void record(long lastByteTime) {
+            for (LoadMetrics scope : mMetrics) {
+                scope.onBody(mIsFromCache, mBytes, lastByteTime);
+            }
+        }
+    }
+
+    /**
+     * Pipeline stage counting the encoded body bytes of a gateway response as they come from the network and recording them into the
+     * metrics once the body is done.
+     */
+    static class NetworkMeter implements BodyPipeline.Stage {
+
+        /**
+         * Metrics to record into. <code>null</code> until the response is accounted.
+         */
+        private List<LoadMetrics> mMetrics;
+
+        /**
+         * Number of bytes read.
+         */
+        private long mBytes;
+
+        /**
+         * Indicates whether the body is done.
+         */
+        private boolean mIsDone;
+
+        /**
+         * Sets the metrics to record into. The bytes are recorded at once if the body is done already.
+         * 
+         * @param metrics Metrics to record into.
+         */
+        synchronized void attach(List<LoadMetrics> metrics) {
+            if (mMetrics != null) {
+                return;
+            }
+            mMetrics = metrics;
+            if (mIsDone) {
+                record();
+            }
+        }
+
+        @Override
+        public synchronized void onData(byte[] buffer, int offset, int count) {
+            mBytes += count;
+        }
+
+        @Override
+        public synchronized void onEnd() {
+            finish();
+        }
+
+        @Override
+        public synchronized void onAbort() {
+            finish();
+        }
+
+        @Override
+        public boolean needsRemainder() {
+            return false;
+        }
+
+        /**
+         * Records the bytes unless they are recorded already. Must be called while holding the object lock.
+         */
+        private void finish() {
+            if (mIsDone) {
+                return;
+            }
+            mIsDone = true;
+            if (mMetrics != null) {
+                record();
+            }
+        }
+
+        /**
+         * Records the bytes. Must be called while holding the object lock.
+         */
+        private void record() {
+            for (LoadMetrics scope : mMetrics) {
+                scope.onNetworkBody(mBytes);
+            }
+        }
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private RequestAccounting() {
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+/**
+ * Decides whether and when failed gateway requests are retried. Implements exponential backoff with jitter, a retry budget shared by
+ * all requests, per-attempt time out and latency tracking, per request kind, used to start a hedged request. Requests that are not
+ * idempotent are only retried if the failure guarantees the request did not reach the server. Can be subclassed and set with
+ * {@link Router#setRetryPolicy(RetryPolicy)}.
+ */
+public class RetryPolicy {
+
+    /**
+     * Policy that never retries nor hedges.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0, 0, false);
+
+    /**
+     * Default maximum number of attempts per request.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * Default delay (in milliseconds) before the first retry.
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF = 250;
+
+    /**
+     * Default maximum delay (in milliseconds) between retries.
+     */
+    public static final long DEFAULT_MAX_BACKOFF = 2 * 1000;
+
+    /**
+     * Default time out (in milliseconds) of a single attempt, applied to both connecting and waiting for data.
+     */
+    public static final int DEFAULT_ATTEMPT_TIMEOUT = 15 * 1000;
+
+    /**
+     * Default maximum number of retries the budget can hold.
+     */
+    public static final double DEFAULT_BUDGET = 10;
+
+    /**
+     * Part of a retry returned to the budget by each successful request.
+     */
+    private static final double BUDGET_REFILL = 0.1;
+
+    /**
+     * Latency percentile after which a hedged request is started.
+     */
+    private static final double HEDGE_PERCENTILE = 0.9;
+
+    /**
+     * Minimum delay (in milliseconds) before a hedged request is started.
+     */
+    private static final long MIN_HEDGE_DELAY = 200;
+
+    /**
+     * Number of latency samples kept per request kind.
+     */
+    private static final int LATENCY_SAMPLES = 50;
+
+    /**
+     * Minimum number of latency samples needed to start hedged requests.
+     */
+    private static final int MIN_LATENCY_SAMPLES = 10;
+
+    /**
+     * Maximum number of attempts per request.
+     */
+    private final int mMaxAttempts;
+
+    /**
+     * Delay (in milliseconds) before the first retry.
+     */
+    private final long mInitialBackoff;
+
+    /**
+     * Maximum delay (in milliseconds) between retries.
+     */
+    private final long mMaxBackoff;
+
+    /**
+     * Time out (in milliseconds) of a single attempt.
+     */
+    private final int mAttemptTimeout;
+
+    /**
+     * Maximum number of retries the budget can hold.
+     */
+    private final double mMaxBudget;
+
+    /**
+     * Indicates whether hedged requests are allowed.
+     */
+    private final boolean mIsHedgingEnabled;
+
+    /**
+     * Retries currently available.
+     */
+    private double mBudget;
+
+    /**
+     * Latency samples by request kind, so that fast requests do not skew the hedge delay of slow ones and vice versa.
+     */
+    private final Map<String, LatencyRing> mLatencies = new HashMap<String, LatencyRing>();
+
+    /**
+     * Jitter source.
+     */
+    private final Random mRandom = new Random();
+
+    /**
+     * Creates policy with default values.
+     */
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF, DEFAULT_ATTEMPT_TIMEOUT, DEFAULT_BUDGET, true);
+    }
+
+    /**
+     * Class constructor.
+     * 
+     * @param maxAttempts Maximum number of attempts per request, including the first one.
+     * @param initialBackoff Delay (in milliseconds) before the first retry. Doubles with every next retry.
+     * @param maxBackoff Maximum delay (in milliseconds) between retries.
+     * @param attemptTimeout Time out (in milliseconds) of a single attempt. Zero leaves client defaults.
+     * @param budget Maximum number of retries the budget can hold.
+     * @param isHedgingEnabled Whether idempotent requests may be hedged.
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, int attemptTimeout, double budget, boolean isHedgingEnabled) {
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mInitialBackoff = initialBackoff;
+        mMaxBackoff = maxBackoff;
+        mAttemptTimeout = attemptTimeout;
+        mMaxBudget = budget;
+        mBudget = budget;
+        mIsHedgingEnabled = isHedgingEnabled;
+    }
+
+    /**
+     * Returns maximum number of attempts per request.
+     * 
+     * @return Attempts count.
+     */
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Returns time out of a single attempt.
+     * 
+     * @return Time out in milliseconds. Zero if client defaults are used.
+     */
+    public int getAttemptTimeout() {
+        return mAttemptTimeout;
+    }
+
+    /**
+     * Checks whether the request failed with an exception can be retried.
+     * 
+     * @param e Failure.
+     * @param idempotent Whether the request can be safely repeated.
+     * 
+     * @return <code>true</code> if retry is allowed.
+     */
+    public boolean isRetriable(IOException e, boolean idempotent) {
+        if (e instanceof UnknownHostException || e instanceof ConnectException || e instanceof ConnectTimeoutException
+                || e instanceof ConnectionPoolTimeoutException) {
+            // Request has not been sent.
+            return true;
+        }
+        if (e instanceof SSLException || (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException))) {
+            // Certificate problems do not go away; interruption means the request was cancelled.
+            return false;
+        }
+        return idempotent;
+    }
+
+    /**
+     * Checks whether the request answered with the status can be retried.
+     * 
+     * @param status HTTP status code.
+     * @param idempotent Whether the request can be safely repeated.
+     * 
+     * @return <code>true</code> if retry is allowed.
+     */
+    public boolean isRetriable(int status, boolean idempotent) {
+        if (status == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+            return true;
+        }
+        return idempotent && (status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_GATEWAY_TIMEOUT);
+    }
+
+    /**
+     * Returns delay before the retry. Grows exponentially, half of it is random.
+     * 
+     * @param attempt Number of the failed attempt, starting with 1.
+     * 
+     * @return Delay in milliseconds.
+     */
+    public long getBackoff(int attempt) {
+        long backoff = mInitialBackoff << Math.min(attempt - 1, 16);
+        backoff = Math.min(backoff, mMaxBackoff);
+        if (backoff <= 1) {
+            return backoff;
+        }
+        synchronized (mRandom) {
+            return backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+        }
+    }
+
+    /**
+     * Takes one retry from the budget.
+     * 
+     * @return <code>true</code> if budget allowed the retry.
+     */
+    public synchronized boolean acquireRetry() {
+        if (mBudget < 1) {
+            return false;
+        }
+        mBudget -= 1;
+        return true;
+    }
+
+    /**
+     * Records successful request. Refills the budget and adds latency sample.
+     * 
+     * @param kind Request kind, e.g. the name of its trace span (see {@link Tracer}).
+     * @param latency Time (in milliseconds) until the response was received.
+     */
+    public synchronized void onSuccess(String kind, long latency) {
+        mBudget = Math.min(mMaxBudget, mBudget + BUDGET_REFILL);
+        LatencyRing ring = mLatencies.get(kind);
+        if (ring == null) {
+            ring = new LatencyRing();
+            mLatencies.put(kind, ring);
+        }
+        ring.mSamples[ring.mCount % LATENCY_SAMPLES] = latency;
+        ring.mCount++;
+    }
+
+    /**
+     * Returns the delay after which a hedged copy of an idempotent request is started. The delay is based on the latency of the
+     * requests of the same kind only.
+     * 
+     * @param kind Request kind passed to {@link #onSuccess(String, long)}.
+     * 
+     * @return Delay in milliseconds or negative value if the request must not be hedged.
+     */
+    public synchronized long getHedgeDelay(String kind) {
+        LatencyRing ring = mLatencies.get(kind);
+        if (!mIsHedgingEnabled || ring == null || ring.mCount < MIN_LATENCY_SAMPLES) {
+            return -1;
+        }
+        int count = Math.min(ring.mCount, LATENCY_SAMPLES);
+        long[] sorted = Arrays.copyOf(ring.mSamples, count);
+        Arrays.sort(sorted);
+        return Math.max(MIN_HEDGE_DELAY, sorted[(int) Math.min(count - 1, Math.floor(count * HEDGE_PERCENTILE))]);
+    }
+
+    /**
+     * Latency samples of one request kind.
+     */
+    private static class LatencyRing {
+
+        /**
+         * Samples ring.
+         */
+        final long[] mSamples = new long[LATENCY_SAMPLES];
+
+        /**
+         * Number of samples recorded.
+         */
+        int mCount;
+    }
+}
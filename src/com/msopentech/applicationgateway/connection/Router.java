@@ -11,48 +11,56 @@
 package com.msopentech.applicationgateway.connection;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Date;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.HttpEntity;
-import org.apache.http.client.HttpClient;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicHttpResponse;
-import org.apache.http.protocol.HTTP;
-import org.json.JSONArray;
-import org.json.JSONException;
+import org.apache.http.params.HttpConnectionParams;
 import org.json.JSONObject;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
 
 import android.app.Activity;
-import android.os.AsyncTask;
 import android.text.Html;
 import android.text.TextUtils;
 import android.text.method.LinkMovementMethod;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.TextView;
 
 import com.msopentech.applicationgateway.EnterpriseBrowserActivity;
-import com.msopentech.applicationgateway.ApplicationGateway;
 import com.msopentech.applicationgateway.R;
 import com.msopentech.applicationgateway.data.AgentEntity;
 import com.msopentech.applicationgateway.data.ConnectionTraits;
 import com.msopentech.applicationgateway.data.Credentials;
 import com.msopentech.applicationgateway.preferences.AuthPreferences;
-import com.msopentech.applicationgateway.utils.Utility;
-import com.msopentech.applicationgateway.utils.XmlUtility;
 
 /**
  * Implements helper class to perform authentication requests.
@@ -64,6 +72,11 @@ public class Router {
      */
     public static final String EXCEPTION_OCCURRED = "Exception occurred: ";
 
+    /**
+     * Security token service URL.
+     */
+    public static final String STS_URL = "https://login.microsoftonline.com/extSTS.srf";
+
     /**
      * Response JSON key to get agent id.
      */
@@ -99,6 +112,16 @@ public class Router {
      */
     private static String ERROR_AGENT = "Agent error - %s"; 
 
+    /**
+     * Request time out error string.
+     */
+    private static String ERROR_TIMEOUT = "Request timed out after %d ms.";
+
+    /**
+     * Request rejection error string.
+     */
+    private static String ERROR_REJECTED = "Too many pending requests.";
+
     /**
      * Action to obtain token.<br/>
      * <b>Input arguments</b>: Object[]{ {@link Credentials} }<br/>
@@ -109,7 +132,7 @@ public class Router {
     /**
      * Action to obtain agents list.<br/>
      * <b>Input arguments</b>: Object[]{ {@link ConnectionTraits} }<br/>
-     * <b>Output arguments</b>: Object[]{ {@link JSONArray}, {@link ConnectionTraits} };
+     * <b>Output arguments</b>: Object[]{ {@link List} of {@link AgentEntity}, {@link ConnectionTraits} };
      */
     public static final int ACTION_OBTAIN_AGENTS = 1;
 
@@ -128,12 +151,88 @@ public class Router {
     public static final int ACTION_OBTAIN_SESSION = 3;
 
     /**
-     * Action to obtain token.<br/>
+     * Action to obtain token, agent and session. If a preferred agent is stored the session for it is requested in parallel with
+     * the agents list.<br/>
      * <b>Input arguments</b>: Object[]{ {@link Credentials} }<br/>
      * <b>Output arguments</b>: Object[]{ {@link ConnectionTraits} };
      */
     public static final int ACTION_AUTHENTICATE = 4;    
 
+    /**
+     * Action to obtain a new token and a new session for the current agent using stored credentials.<br/>
+     * <b>Input arguments</b>: Object[]{ {@link ConnectionTraits} }<br/>
+     * <b>Output arguments</b>: Object[]{ {@link ConnectionTraits} };
+     */
+    public static final int ACTION_REFRESH = 5;
+
+    /**
+     * Action names used for trace spans, indexed by action code.
+     */
+    private static final String[] ACTION_NAMES = { "token", "agents", "agent", "session", "authenticate", "refresh" };
+
+    /**
+     * Token lifetime (in milliseconds) requested from the STS.
+     */
+    public static final long TOKEN_LIFETIME = 10 * 60 * 1000;
+
+    /**
+     * Assumed session lifetime (in milliseconds). The gateway does not report it, so session is considered to live as long as the
+     * token it was obtained with.
+     */
+    public static final long SESSION_LIFETIME = TOKEN_LIFETIME;
+
+    /**
+     * Default request time out (in milliseconds).
+     */
+    public static final long DEFAULT_REQUEST_TIMEOUT = 60 * 1000;
+
+    /**
+     * Number of threads in each request executor.
+     */
+    private static final int EXECUTOR_THREADS = 2;
+
+    /**
+     * Maximum number of requests waiting in each request executor queue.
+     */
+    private static final int EXECUTOR_QUEUE_CAPACITY = 16;
+
+    /**
+     * Executor for token, session and authentication requests. Kept apart from agent requests so that session recovery never waits
+     * behind an agents list refresh.
+     */
+    private static final ExecutorService sSessionExecutor = createExecutor("Router-session");
+
+    /**
+     * Executor for agents list requests.
+     */
+    private static final ExecutorService sAgentsExecutor = createExecutor("Router-agents");
+
+    /**
+     * Scheduler timing out requests.
+     */
+    private static final ScheduledExecutorService sTimeoutScheduler = Executors.newSingleThreadScheduledExecutor(new RouterThreadFactory("Router-timeout"));
+
+    /**
+     * Maximum number of threads running hedged requests.
+     */
+    private static final int HEDGE_THREADS = 4;
+
+    /**
+     * Executor for hedged requests. Does not queue: if it is busy the request is sent without a hedge.
+     */
+    private static final ExecutorService sHedgeExecutor = new ThreadPoolExecutor(0, HEDGE_THREADS, 30, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new RouterThreadFactory("Router-hedge"));
+
+    /**
+     * Current retry policy.
+     */
+    private static volatile RetryPolicy sRetryPolicy = new RetryPolicy();
+
+    /**
+     * Requests submitted and not yet done.
+     */
+    private static final List<RouterRequest> sPendingRequests = new ArrayList<RouterRequest>();
+
     /**
      * Template string to be used while composing requests.
      */
@@ -170,6 +269,21 @@ public class Router {
                "</s:Body> " +
              "</s:Envelope>";
 
+    /**
+     * Compiled {@link #requestTemplate}. Parameters are: created, expires, user, pass, resource.
+     */
+    private static final SoapTemplate sTokenRequestTemplate = new SoapTemplate(requestTemplate, new String[] { "created", "expires", "user", "pass", "resource" });
+
+    /**
+     * Per thread timestamp formatter for token requests. {@link SimpleDateFormat} is not thread-safe.
+     */
+    private static final ThreadLocal<DateFormat> sTimestampFormat = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.sssZ");
+        }
+    };
+
     /**
      * Performs <b>asynchronous</b> HTTP request and obtains requested data. If activity argument is not <code>null</code> listener methods
      * will be executed on UI thread that this activity is running on.
@@ -184,9 +298,435 @@ public class Router {
      * @see #ACTION_OBTAIN_AGENT 
      * @see #ACTION_OBTAIN_SESSION
      * @see #ACTION_AUTHENTICATE
+     * @see #ACTION_REFRESH
      */
     public static void performRequest(int request, Object[] arguments, OnOperationExecutionListener listener, Activity activity) {
-        new AgentsAsyncTask(request, listener, activity).execute(arguments);
+        submitRequest(request, arguments, DEFAULT_REQUEST_TIMEOUT, listener, activity);
+    }
+
+    /**
+     * Performs <b>asynchronous</b> HTTP request and obtains requested data. If activity argument is not <code>null</code> listener methods
+     * will be executed on UI thread that this activity is running on. If the request does not complete in time it is aborted and the
+     * listener receives a result with an error set in its {@link ConnectionTraits}. A request cancelled by the caller is not reported.
+     * 
+     * @param request Request type.
+     * @param arguments Request arguments.
+     * @param timeout Time out in milliseconds. Zero or negative value means no time out.
+     * @param listener Operation listener. Can be <code>null</code>.
+     * @param activity Activity to get the thread the delegate will run on.
+     * 
+     * @return Pending request that can be waited for or cancelled.
+     * 
+     * @see #performRequest(int, Object[], OnOperationExecutionListener, Activity)
+     * @see #cancelRequests(Activity)
+     */
+    public static RouterRequest submitRequest(final int request, final Object[] arguments, final long timeout, final OnOperationExecutionListener listener, Activity activity) {
+        final RouterRequest routerRequest = new RouterRequest(request, arguments, new Callable<Object[]>() {
+            @Override
+            public Object[] call() {
+                return dispatch(request, arguments);
+            }
+        }, listener, activity);
+
+        if (listener != null) {
+            if (activity == null) {
+                listener.onBeforeExecution(request);
+            } else {
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onBeforeExecution(request);
+                    }
+                });
+            }
+        }
+
+        synchronized (sPendingRequests) {
+            sPendingRequests.add(routerRequest);
+        }
+
+        try {
+            if (request == ACTION_OBTAIN_AGENTS || request == ACTION_OBTAIN_AGENT) {
+                sAgentsExecutor.execute(routerRequest);
+            } else {
+                sSessionExecutor.execute(routerRequest);
+            }
+        } catch (final RejectedExecutionException e) {
+            logError(e, Router.class.getSimpleName() + ".submitRequest() Failed");
+            routerRequest.fail(ERROR_REJECTED);
+            return routerRequest;
+        }
+
+        if (timeout > 0) {
+            routerRequest.setTimeout(sTimeoutScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    routerRequest.fail(String.format(ERROR_TIMEOUT, timeout));
+                }
+            }, timeout, TimeUnit.MILLISECONDS));
+        }
+
+        return routerRequest;
+    }
+
+    /**
+     * Cancels all pending requests made from the activity. Their listeners are not notified. Should be called when the activity
+     * goes away.
+     * 
+     * @param activity Activity the requests were made from.
+     */
+    public static void cancelRequests(Activity activity) {
+        List<RouterRequest> requests = new ArrayList<RouterRequest>();
+        synchronized (sPendingRequests) {
+            for (RouterRequest request : sPendingRequests) {
+                if (request.getActivity() == activity) {
+                    requests.add(request);
+                }
+            }
+        }
+        for (RouterRequest request : requests) {
+            request.cancel(true);
+        }
+    }
+
+    /**
+     * Removes the request from the pending list. Called by the request when it is done.
+     * 
+     * @param request Completed, failed or cancelled request.
+     */
+    static void onRequestDone(RouterRequest request) {
+        synchronized (sPendingRequests) {
+            sPendingRequests.remove(request);
+        }
+    }
+
+    /**
+     * Composes a result of the operation that reports an error in the same layout as the operation result.
+     * 
+     * @param operation Action code.
+     * @param arguments Request arguments.
+     * @param error Error description.
+     * 
+     * @return Result with {@link ConnectionTraits} containing the error.
+     */
+    static Object[] getErrorResult(int operation, Object[] arguments, String error) {
+        switch (operation) {
+            case ACTION_OBTAIN_AGENTS:
+            case ACTION_OBTAIN_AGENT:
+            case ACTION_OBTAIN_SESSION: {
+                ConnectionTraits traits = arguments != null && arguments.length > 0 && arguments[0] instanceof ConnectionTraits ? (ConnectionTraits) arguments[0] : new ConnectionTraits();
+                return new Object[]{ null, traits.setError(error) };
+            }
+            case ACTION_OBTAIN_TOKEN: {
+                return new Object[]{ null, new ConnectionTraits(error) };
+            }
+            default: {
+                return new Object[]{ new ConnectionTraits(error) };
+            }
+        }
+    }
+
+    /**
+     * Performs requested operation on the calling thread within a trace span named after the action.
+     * 
+     * @param operation Action code.
+     * @param arguments Request arguments.
+     * 
+     * @return Operation result.
+     */
+    private static Object[] dispatch(int operation, Object[] arguments) {
+        TraceSpan span = Tracer.begin(Tracer.SPAN_ACTION_PREFIX + ACTION_NAMES[operation]);
+        Object[] result = null;
+        try {
+            result = perform(operation, arguments);
+            return result;
+        } finally {
+            Tracer.end(span, isFailed(result));
+        }
+    }
+
+    /**
+     * Checks whether operation result reports a failure.
+     * 
+     * @param result Operation result.
+     * 
+     * @return <code>true</code> if there is no result or any of the traits in it has an error.
+     */
+    private static boolean isFailed(Object[] result) {
+        if (result == null) {
+            return true;
+        }
+        for (Object item : result) {
+            if (item instanceof ConnectionTraits && ((ConnectionTraits) item).isError()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Performs requested operation on the calling thread.
+     * 
+     * @param operation Action code.
+     * @param arguments Request arguments.
+     * 
+     * @return Operation result.
+     */
+    private static Object[] perform(int operation, Object[] arguments) {
+        Object[] result = null;
+        try {
+            switch (operation) {
+                case ACTION_OBTAIN_TOKEN: {
+                    Credentials credentials = (Credentials)arguments[0];
+                    ConnectionTraits traits = Router.obtainToken(credentials);
+                    result = new Object[]{ traits.token, traits };
+                    break;
+                }                    
+                case ACTION_OBTAIN_AGENTS: {
+                    ConnectionTraits traits = (ConnectionTraits)arguments[0];
+                    result = new Object[]{ Router.obtainAgents(traits, null), traits};
+                    break;
+                }
+                case ACTION_OBTAIN_AGENT: {
+                    ConnectionTraits traits = (ConnectionTraits)arguments[0];
+                    result = new Object[]{ Router.obtainAgent(traits), traits};
+                    break;
+                }
+                case ACTION_OBTAIN_SESSION: {
+                    ConnectionTraits traits = (ConnectionTraits)arguments[0];
+                    result = new Object[]{ Router.obtainSession(traits, traits.agent.getAgentIdJSON()), traits};
+                    break;
+                }
+                case ACTION_REFRESH: {
+                    ConnectionTraits traits = (ConnectionTraits)arguments[0];
+                    result = new Object[]{ Router.refreshTraits(traits) };
+                    break;
+                }
+                case ACTION_AUTHENTICATE: {
+                    SpeculativeSession speculativeSession = null;
+                    try {
+                        Credentials credentials = (Credentials) arguments[0];
+
+                        ConnectionTraits traits = Router.obtainToken(credentials);
+                        if (traits.isError()) return new Object[]{traits};
+
+                        // Session for the preferred agent is requested while the agents list is still being fetched.
+                        speculativeSession = Router.startSpeculativeSession(traits.token);
+
+                        AgentEntity agent = Router.obtainAgent(traits);
+                        if (traits.isError()) return new Object[]{traits};
+
+                        String session = speculativeSession == null ? null : speculativeSession.confirm(agent, traits);
+                        if (session == null) {
+                            session = Router.obtainSession(traits, agent.getAgentIdJSON());
+                            if (traits.isError()) return new Object[]{traits};
+                        }
+
+                        traits.sessionID = session;
+                        traits.agent = agent;
+
+                        AuthPreferences.storeCredentials(credentials);
+                        result = new Object[]{traits};
+                    } finally {
+                        // Does nothing if the speculative session has been used.
+                        if (speculativeSession != null) speculativeSession.discard();
+                    }
+                    break;
+                }                    
+            }
+            return result;
+        } catch (Exception e) {
+            logError(e, Router.class.getSimpleName() + ".perform() Failed");
+            return getErrorResult(operation, arguments, e.toString());
+        }
+    }
+
+    /**
+     * Sets the policy used to retry and hedge gateway requests.
+     * 
+     * @param policy Retry policy. <code>null</code> disables retries.
+     */
+    public static void setRetryPolicy(RetryPolicy policy) {
+        sRetryPolicy = policy == null ? RetryPolicy.NONE : policy;
+    }
+
+    /**
+     * Returns the policy used to retry and hedge gateway requests.
+     * 
+     * @return Retry policy.
+     */
+    public static RetryPolicy getRetryPolicy() {
+        return sRetryPolicy;
+    }
+
+    /**
+     * Executes HTTP request with the shared client, retrying it as the current {@link RetryPolicy} allows. The request is aborted if
+     * the router request it is sent for is cancelled.
+     * 
+     * @param request HTTP request. Its entity, if any, must be repeatable.
+     * @param kind Request kind latency is recorded for, the name of its trace span.
+     * @param idempotent Whether the request can be safely repeated after it reached the server.
+     * @param hedged Whether a copy of the request can be sent if the response is late. Only for GET requests.
+     * 
+     * @return Response. Must be consumed by the caller.
+     * 
+     * @throws IOException If the last attempt fails.
+     */
+    private static HttpResponse execute(HttpUriRequest request, String kind, boolean idempotent, boolean hedged) throws IOException {
+        RetryPolicy policy = sRetryPolicy;
+        if (policy.getAttemptTimeout() > 0) {
+            HttpConnectionParams.setConnectionTimeout(request.getParams(), policy.getAttemptTimeout());
+            HttpConnectionParams.setSoTimeout(request.getParams(), policy.getAttemptTimeout());
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            boolean isLastAttempt = attempt >= policy.getMaxAttempts();
+            HttpResponse response;
+            try {
+                long hedgeDelay = hedged ? policy.getHedgeDelay(kind) : -1;
+                if (hedgeDelay >= 0) {
+                    response = executeHedged(request, kind, hedgeDelay, policy);
+                } else {
+                    RouterRequest.track(request);
+                    long start = SystemClock.elapsedRealtime();
+                    response = GatewayHttpClient.execute(request);
+                    if (response.getStatusLine().getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                        policy.onSuccess(kind, SystemClock.elapsedRealtime() - start);
+                    }
+                }
+            } catch (final IOException e) {
+                if (isLastAttempt || request.isAborted() || !policy.isRetriable(e, idempotent) || !policy.acquireRetry()) {
+                    throw e;
+                }
+                logError(e, Router.class.getSimpleName() + ".execute(): Attempt " + attempt + " failed, retrying");
+                backOff(policy, attempt);
+                continue;
+            }
+
+            int status = response.getStatusLine().getStatusCode();
+            if (!isLastAttempt && policy.isRetriable(status, idempotent) && policy.acquireRetry()) {
+                GatewayHttpClient.consume(response);
+                Log.d(Router.class.getSimpleName(), "execute(): Attempt " + attempt + " returned " + status + ", retrying");
+                backOff(policy, attempt);
+                continue;
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Executes a copy of the GET request and, if it does not respond in time, one more copy in parallel. The first successful
+     * response is returned, the other request is aborted.
+     * 
+     * @param request GET request to copy.
+     * @param kind Request kind latency is recorded for.
+     * @param delay Time (in milliseconds) to wait for the first response before sending the second request.
+     * @param policy Policy to record latency in.
+     * 
+     * @return Response. Must be consumed by the caller.
+     * 
+     * @throws IOException If both requests fail.
+     */
+    private static HttpResponse executeHedged(HttpUriRequest request, String kind, long delay, RetryPolicy policy) throws IOException {
+        HedgeAttempt primary = new HedgeAttempt(copyGetRequest(request));
+        HedgeAttempt secondary = null;
+        CompletionService<HttpResponse> completion = new ExecutorCompletionService<HttpResponse>(sHedgeExecutor);
+
+        Future<HttpResponse> primaryFuture;
+        try {
+            primaryFuture = completion.submit(primary);
+        } catch (final RejectedExecutionException e) {
+            RouterRequest.track(primary.mRequest);
+            return primary.call();
+        }
+
+        try {
+            int running = 1;
+            Future<HttpResponse> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                try {
+                    secondary = new HedgeAttempt(copyGetRequest(request));
+                    completion.submit(secondary);
+                    running++;
+                    Log.d(Router.class.getSimpleName(), "executeHedged(): No response in " + delay + " ms, hedging " + request.getURI());
+                } catch (final RejectedExecutionException e) {
+                    secondary = null;
+                }
+                done = completion.take();
+            }
+
+            IOException failure = null;
+            while (true) {
+                running--;
+                HedgeAttempt winner = done == primaryFuture ? primary : secondary;
+                HedgeAttempt loser = done == primaryFuture ? secondary : primary;
+                try {
+                    HttpResponse response = done.get();
+                    if (loser != null) {
+                        loser.abandon();
+                    }
+                    RouterRequest.track(winner.mRequest);
+                    if (response.getStatusLine().getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                        policy.onSuccess(kind, winner.mLatency);
+                    }
+                    return response;
+                } catch (final ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause().toString());
+                }
+                if (running == 0) {
+                    throw failure;
+                }
+                done = completion.take();
+            }
+        } catch (final InterruptedException e) {
+            primary.abandon();
+            if (secondary != null) {
+                secondary.abandon();
+            }
+            throw new InterruptedIOException("Request cancelled.");
+        }
+    }
+
+    /**
+     * Creates a copy of GET request with the same headers and parameters.
+     * 
+     * @param request Request to copy.
+     * 
+     * @return New request.
+     */
+    private static HttpUriRequest copyGetRequest(HttpUriRequest request) {
+        HttpGet copy = new HttpGet(request.getURI());
+        copy.setHeaders(request.getAllHeaders());
+        copy.setParams(request.getParams());
+        return copy;
+    }
+
+    /**
+     * Waits before the next attempt.
+     * 
+     * @param policy Retry policy.
+     * @param attempt Number of the failed attempt.
+     * 
+     * @throws InterruptedIOException If the request is cancelled while waiting.
+     */
+    private static void backOff(RetryPolicy policy, int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(policy.getBackoff(attempt));
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException("Request cancelled.");
+        }
+    }
+
+    /**
+     * Creates bounded request executor.
+     * 
+     * @param name Name of the executor threads.
+     * 
+     * @return New executor.
+     */
+    private static ExecutorService createExecutor(String name) {
+        return new ThreadPoolExecutor(EXECUTOR_THREADS, EXECUTOR_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(EXECUTOR_QUEUE_CAPACITY), new RouterThreadFactory(name));
     }
     
     /**
@@ -199,110 +739,61 @@ public class Router {
      */
     private static ConnectionTraits obtainToken(Credentials credentials) {
         ConnectionTraits connection = new ConnectionTraits();
+        HttpResponse response = null;
+        TraceSpan span = Tracer.begin(Tracer.SPAN_TOKEN);
 
         try {
-            HttpClient client = new DefaultHttpClient();
-            HttpPost request = new HttpPost("https://login.microsoftonline.com/extSTS.srf");
+            HttpPost request = new HttpPost(STS_URL);
 
             request.addHeader("SOAPAction", "http://docs.oasis-open.org/ws-sx/ws-trust/200512/RST/Issue");
             request.addHeader("Content-Type", "application/soap+xml; charset=utf-8");
 
             Date now = new Date();
-            DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.sssZ");
+            DateFormat df = sTimestampFormat.get();
             String nowAsString = df.format(now);
-            Calendar calendar = Calendar.getInstance();
-            calendar.setTime(now);
-            calendar.add(Calendar.SECOND, 10 * 60);
-            Date expires = calendar.getTime();
-            String expirationAsString = df.format(expires);
+            String expirationAsString = df.format(new Date(now.getTime() + TOKEN_LIFETIME));
 
-            String message = requestTemplate;
-
-            message = message.replace("#{user}", credentials.getUsername());
-            message = message.replace("#{pass}", credentials.getPassword());
-            message = message.replace("#{created}", nowAsString);
-            message = message.replace("#{expires}", expirationAsString);
-            message = message.replace("#{resource}", "appgportal.cloudapp.net");
-
-            StringEntity requestBody = new StringEntity(message, HTTP.UTF_8);
+            AbstractHttpEntity requestBody = sTokenRequestTemplate.createEntity(new String[] { nowAsString, expirationAsString,
+                    credentials.getUsername(), credentials.getPassword(), "appgportal.cloudapp.net" });
             requestBody.setContentType("text/xml");
             request.setEntity(requestBody);
 
-            BasicHttpResponse response = null;
-            response = (BasicHttpResponse) client.execute(request);
+            response = execute(request, Tracer.SPAN_TOKEN, true, false);
 
             HttpEntity entity = response.getEntity();
-            InputStream inputStream = null;
-            String token = null;
-
-            inputStream = entity.getContent();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-            String line;
-            StringBuffer actualResponse = new StringBuffer();
-            while ((line = reader.readLine()) != null) {
-                actualResponse.append(line);
-                actualResponse.append('\r');
-            }
-            token = actualResponse.toString();
-
-            String start = "<wst:RequestedSecurityToken>";
-
-            int index = token.indexOf(start);
-
-            if (-1 == index) {
-                DocumentBuilderFactory documentFactory = DocumentBuilderFactory.newInstance();
-                DocumentBuilder documentBuilder = documentFactory.newDocumentBuilder();
-                InputStream errorInputStream = new ByteArrayInputStream(token.getBytes());
-                Document currentDoc = documentBuilder.parse(errorInputStream);
-
-                if (currentDoc == null) {
-                    return null;
-                }
+            long parseMark = Tracer.beginParse();
+            TokenResponse tokenResponse = TokenResponse.parse(Tracer.timeBody(entity.getContent()), entity.getContentLength());
+            Tracer.endParse(parseMark);
+            String token = tokenResponse.getToken();
 
-                String errorReason = null;
-                String errorExplained = null;
-                Node rootNode = null;
-                if ((rootNode = currentDoc.getFirstChild()) != null && /* <S:Envelope> */
-                        (rootNode = XmlUtility.getChildNode(rootNode, "S:Body")) != null &&
-                        (rootNode = XmlUtility.getChildNode(rootNode, "S:Fault")) != null) {
-                    Node node = null;
-                    if ((node = XmlUtility.getChildNode(rootNode, "S:Reason")) != null) {
-                        errorReason = XmlUtility.getChildNodeValue(node, "S:Text");
-                    }
-                    if ((node = XmlUtility.getChildNode(rootNode, "S:Detail")) != null 
-                            && (node = XmlUtility.getChildNode(node, "psf:error")) != null
-                            && (node = XmlUtility.getChildNode(node, "psf:internalerror")) != null) {
-                        errorExplained = XmlUtility.getChildNodeValue(node, "psf:text");
-                    }
-                }
+            if (token == null) {
+                String errorReason = tokenResponse.getFaultReason();
+                String errorExplained = tokenResponse.getFaultDetail();
 
                 if (!TextUtils.isEmpty(errorReason) && !TextUtils.isEmpty(errorExplained)) {
                     logError(null, Router.class.getSimpleName() + ".obtainToken(): " + errorReason + " - " + errorExplained);
                     connection.setError(String.format(ERROR_TOKEN, errorReason + ": " + errorExplained));
                     return connection;
                 }
-            } else {
-                token = token.substring(index);
-
-                String end = "</wst:RequestedSecurityToken>";
-
-                index = token.indexOf(end) + end.length();
-                token = token.substring(0, index);
-
-                if (!TextUtils.isEmpty(token)) {
-                    connection.setToken(token);
-                    return connection;
-                }
+            } else if (!TextUtils.isEmpty(token)) {
+                connection.setToken(token);
+                connection.tokenExpiry = now.getTime() + TOKEN_LIFETIME;
+                return connection;
             }
         } catch (final Exception e) {
             logError(e, Router.class.getSimpleName() + ".obtainToken() Failed");
             return connection.setError(String.format(ERROR_TOKEN, "Token retrieval failed with exception."));
+        } finally {
+            GatewayHttpClient.consume(response);
+            Tracer.end(span, connection.isError() || TextUtils.isEmpty(connection.token));
         }
         return connection.setError(String.format(ERROR_TOKEN, "Token retrieval failed."));
     }
 
     /**
-     * Performs HTTP GET request and retrieves proxy agents list. One agent is chosen from it and returned as a result.
+     * Performs HTTP GET request and retrieves proxy agents list. One agent is chosen from it and returned as a result: the preferred
+     * agent stored in {@link AuthPreferences} if it is in the list, the first agent otherwise. The list is not read past the
+     * preferred agent.
      * 
      * @param traits Connection traits.
      * 
@@ -310,53 +801,18 @@ public class Router {
      */
     private static AgentEntity obtainAgent(ConnectionTraits traits) {
         try {
-            JSONArray json = obtainAgents(traits);
-            if(traits.isError()) return null;
-            
-            traits.agent = new AgentEntity();
-
-            JSONObject item = null;
-            String agentId = null;
-            String agentDisplayName = null;
-            boolean preferredAgentFound = false;
-            AgentEntity agent = new AgentEntity();
-
             AgentEntity preferredAgent = AuthPreferences.loadPreferredAgent();
 
-            for (int i = 0; i < json.length(); i++) {
-                try {
-                    item = json.getJSONObject(i);
-                    agentId = item.getString(JSON_AGENT_ID_KEY);
-                    agentDisplayName = item.getString(JSON_AGENT_DISPLAY_NAME_KEY);
-
-                    if (preferredAgent != null && preferredAgent.getAgentId() != null && preferredAgent.getAgentId().contentEquals(agentId) && preferredAgent.getDisplayName() != null
-                        && preferredAgent.getDisplayName().contentEquals(agentDisplayName)) 
-                    	preferredAgentFound = true;
-
-                    if (i == 0 || preferredAgentFound) {
-                        agent = new AgentEntity();
-                        agent.setAgentId(agentId);
-                        agent.setDisplayName(agentDisplayName);
-                        item = new JSONObject();
-                        item.put(JSON_AGENT_ID_KEY, agentId);
-                        agent.setAgentIdJSON(item.toString());
-
-                        traits.setAgent(agent);
-
-                        if (preferredAgentFound) {
-                            if (!agent.getAgentId().isEmpty()) {
-                                return agent;
-                            } else {
-                                traits.setError(String.format(ERROR_AGENT, "Connector ID is empty."));
-                            }
-                        }
-                    }
-                } catch (JSONException e) {
-                    traits.setError(String.format(ERROR_AGENT, "Connectors list parsing failed."));
-                    return null;
-                }
+            List<AgentEntity> agents = obtainAgents(traits, preferredAgent);
+            if(traits.isError()) return null;
+
+            AgentEntity agent = agents.get(agents.size() - 1);
+            if (!AgentsParser.matches(agent, preferredAgent)) {
+                agent = agents.get(0);
             }
-            if(agent == null || TextUtils.isEmpty(agent.getAgentId())) {
+            traits.setAgent(agent);
+
+            if(TextUtils.isEmpty(agent.getAgentId())) {
                 traits.setError(String.format(ERROR_AGENT, "Connector ID is null or empty."));
             } else {
                 return agent;
@@ -370,13 +826,16 @@ public class Router {
     }
 
     /**
-     * Performs HTTP GET request and retrieves proxy agents list.
+     * Performs HTTP GET request and retrieves proxy agents list. The response is parsed as it is received.
      * 
      * @param traits Connection traits.
+     * @param stopAt Agent to stop reading the list at or <code>null</code> to read the whole list.
      * 
-     * @return {@link JSONArray} containing agents list. Returns <code>null</code> if exception is caught. Always provides error description if error occurs.
+     * @return Agents list. Returns <code>null</code> if exception is caught. Always provides error description if error occurs.
      */
-    private static JSONArray obtainAgents(ConnectionTraits traits) {
+    private static List<AgentEntity> obtainAgents(ConnectionTraits traits, AgentEntity stopAt) {
+        HttpResponse response = null;
+        TraceSpan span = Tracer.begin(Tracer.SPAN_AGENTS);
         try {
             if (traits == null || TextUtils.isEmpty(traits.token)) {
                 String errorText = String.format(ERROR_AGENT, "Traits argument is null or does not contain valid token.");
@@ -388,39 +847,29 @@ public class Router {
                 return null;                
             }
 
-            HttpClient agentsClient = new DefaultHttpClient();
             HttpGet agentsRequest = new HttpGet(EnterpriseBrowserActivity.CLOUD_CONNECTION_HOST_PREFIX + "user/agents");
 
             agentsRequest.addHeader("X-Bhut-AuthN-Token", traits.token);
 
-            BasicHttpResponse response = null;
-            response = (BasicHttpResponse) agentsClient.execute(agentsRequest);
-
-            HttpEntity responseEntity = response.getEntity();
-            InputStream responseStream = null;
-            JSONObject responseObject = null;
-            JSONArray agentsArray = null;
-
-            responseStream = responseEntity.getContent();
-            BufferedReader responseReader = new BufferedReader(new InputStreamReader(responseStream));
-            String line;
-            StringBuffer actualResponse = new StringBuffer();
-            while ((line = responseReader.readLine()) != null) {
-                actualResponse.append(line);
-                actualResponse.append('\r');
-            }
+            response = execute(agentsRequest, Tracer.SPAN_AGENTS, true, true);
 
-            responseObject = new JSONObject(actualResponse.toString());
-            agentsArray = responseObject.getJSONArray(JSON_AGENTS_KEY);
+            long parseMark = Tracer.beginParse();
+            List<AgentEntity> agents = AgentsParser.parse(Tracer.timeBody(response.getEntity().getContent()), stopAt);
+            Tracer.endParse(parseMark);
 
-            if(agentsArray == null || agentsArray.length() <= 0) {
+            if (agents == null) {
+                traits.setError(String.format(ERROR_AGENT, "Connectors retrieval failed."));
+            } else if (agents.isEmpty()) {
                 traits.setError(String.format(ERROR_AGENT, "No connectors found."));
             } else {
-                return agentsArray;
+                return agents;
             }            
         } catch (final Exception e) {
             logError(e, Router.class.getSimpleName() + ".obtainConnectors() Failed");
             traits.setError(String.format(ERROR_AGENT, "Connectors retrieval failed."));
+        } finally {
+            GatewayHttpClient.consume(response);
+            Tracer.end(span, traits.isError());
         }
 
         return null;
@@ -435,6 +884,8 @@ public class Router {
      * @return Session ID. Returns <code>null</code> if exception is caught. Always provides error description if error occurs.
      */
     private static String obtainSession(ConnectionTraits traits, String agentIdJSON) {
+        HttpResponse response = null;
+        TraceSpan span = Tracer.begin(Tracer.SPAN_SESSION);
         try {
             if (traits == null || TextUtils.isEmpty(traits.token)) {
                 String errorText = String.format(ERROR_SESSION, "Traits argument is null or does not contain valid token.");
@@ -446,7 +897,6 @@ public class Router {
                 return null;
             }
 
-            HttpClient sessionClient = new DefaultHttpClient();
             HttpPost sessionRequest = new HttpPost(EnterpriseBrowserActivity.CLOUD_CONNECTION_HOST_PREFIX + "user/session");
 
             sessionRequest.addHeader("x-bhut-authN-token", traits.token);
@@ -457,14 +907,14 @@ public class Router {
             requestBody.setContentType("application/json");
             sessionRequest.setEntity(requestBody);
 
-            BasicHttpResponse response = null;
-            response = (BasicHttpResponse) sessionClient.execute(sessionRequest);
+            response = execute(sessionRequest, Tracer.SPAN_SESSION, false, false);
 
             HttpEntity responseEntity = response.getEntity();
             InputStream responseStream = null;
             String result = null;
 
-            responseStream = responseEntity.getContent();
+            responseStream = Tracer.timeBody(responseEntity.getContent());
+            long parseMark = Tracer.beginParse();
             BufferedReader responseReader = new BufferedReader(new InputStreamReader(responseStream));
             String line;
             StringBuffer actualResponse = new StringBuffer();
@@ -477,20 +927,63 @@ public class Router {
             JSONObject session = null;
             session = new JSONObject(result);
             result = session.getString(JSON_SESSION_ID_KEY);
+            Tracer.endParse(parseMark);
             
             if(TextUtils.isEmpty(result)) {
                 traits.setError(String.format(ERROR_SESSION, "Session is null or empty."));
             } else {
                 traits.setSession(result);
+                traits.sessionExpiry = System.currentTimeMillis() + SESSION_LIFETIME;
                 return result;
             }
         } catch (final Exception e) {
             logError(e, Router.class.getSimpleName() + ".obtainSession() Failed");
             traits.setError(String.format(ERROR_SESSION, "Session retrieval failed."));
+        } finally {
+            GatewayHttpClient.consume(response);
+            Tracer.end(span, traits.isError());
         }
         return null;
     }
 
+    /**
+     * Obtains a new token with stored credentials and a new session for the agent of the given traits.
+     * 
+     * @param traits Current connection traits.
+     * 
+     * @return New {@link ConnectionTraits} with valid token and session OR with an error message. Does NOT return <code>null</code>.
+     */
+    static ConnectionTraits refreshTraits(ConnectionTraits traits) {
+        Credentials credentials = AuthPreferences.loadCredentials();
+        if (credentials == null || TextUtils.isEmpty(credentials.getUsername()) || TextUtils.isEmpty(credentials.getPassword())) {
+            return new ConnectionTraits(String.format(ERROR_TOKEN, "No stored credentials."));
+        }
+
+        ConnectionTraits refreshed = obtainToken(credentials);
+        if (refreshed.isError() || traits.agent == null) {
+            return refreshed;
+        }
+
+        refreshed.setAgent(traits.agent);
+        obtainSession(refreshed, traits.agent.getAgentIdJSON());
+        return refreshed;
+    }
+
+    /**
+     * Starts session request for the preferred agent stored in {@link AuthPreferences} without waiting for the agents list.
+     * 
+     * @param token Valid authentication token.
+     * 
+     * @return Started session request or <code>null</code> if there is no preferred agent.
+     */
+    private static SpeculativeSession startSpeculativeSession(String token) {
+        AgentEntity preferredAgent = AuthPreferences.loadPreferredAgent();
+        if (preferredAgent == null || TextUtils.isEmpty(preferredAgent.getAgentId())) {
+            return null;
+        }
+        return new SpeculativeSession(token, preferredAgent);
+    }
+
     /**
      * Logs error to the provided string object.
      * 
@@ -505,128 +998,186 @@ public class Router {
     }
 
     /**
-     * Implements asynchronous calls to authentication operations.
+     * Session request started for the preferred agent before the agents list is received. The result is used only if the agent
+     * chosen from the list turns out to be the same one, otherwise it is discarded: the request is run as a {@link RouterRequest} so
+     * that its HTTP request is aborted, and a session it has already obtained is dropped.
      */
-    private static class AgentsAsyncTask extends AsyncTask<Object, Void, Object> {
+    private static class SpeculativeSession {
 
         /**
-         * Action code, performed by the task.
+         * Agent the session is requested for.
          */
-        private int mOperation;
+        private final AgentEntity mAgent;
 
         /**
-         * Operation listener delegate.
+         * Connection traits owned by the speculative request.
          */
-        private OnOperationExecutionListener mListener; 
+        private final ConnectionTraits mTraits;
 
         /**
-         * Activity to reach the thread to run the delegate on.
+         * Session request task. Its result is the session ID or <code>null</code>.
          */
-        private Activity mActivity;
-        
+        private final RouterRequest mTask;
+
         /**
-         * Default constructor.
-         * 
-         * @param operation Action type to be processed.
-         * @param listener Operation listener.
+         * Indicates whether the session has been used.
+         */
+        private boolean mIsConfirmed;
+
+        /**
+         * Default constructor. Queues session request to the session executor.
          * 
-         * @see #ACTION_OBTAIN_AGENTS
-         * @see #ACTION_OBTAIN_AGENT
-         * @see #ACTION_OBTAIN_SESSION
-         * @see #ACTION_OBTAIN_TOKEN
+         * @param token Valid authentication token.
+         * @param agent Agent to request session for.
          */
-        AgentsAsyncTask(int operation, OnOperationExecutionListener listener, Activity activity) {
-            super();
-            mOperation = operation;
-            mListener = listener;
-            mActivity = activity;
+        SpeculativeSession(String token, AgentEntity agent) {
+            mAgent = agent;
+            mTraits = new ConnectionTraits().setToken(token).setAgent(agent);
+            mTask = new RouterRequest(ACTION_OBTAIN_SESSION, new Object[] { mTraits }, new Callable<Object[]>() {
+                @Override
+                public Object[] call() {
+                    return new Object[] { obtainSession(mTraits, mAgent.getAgentIdJSON()), mTraits };
+                }
+            }, null, null);
+
+            try {
+                sSessionExecutor.execute(mTask);
+            } catch (final RejectedExecutionException e) {
+                // Will run on the confirming thread instead.
+            }
         }
 
-        @Override
-        protected void onPreExecute() {
-            super.onPreExecute();
-            if(mActivity == null) {
-            mListener.onBeforeExecution(mOperation);
-            } else {
-                mActivity.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        mListener.onBeforeExecution(mOperation);
-                    }
-                });
+        /**
+         * Waits for the session if it was requested for the given agent and stores it in the traits, discards it otherwise.
+         * 
+         * @param agent Agent chosen from the agents list.
+         * @param traits Connection traits to store the session in.
+         * 
+         * @return Session ID or <code>null</code> if session request failed or was made for another agent.
+         */
+        String confirm(AgentEntity agent, ConnectionTraits traits) {
+            if (agent == null || !mAgent.getAgentId().equals(agent.getAgentId())) {
+                discard();
+                return null;
+            }
+
+            try {
+                // Runs the request on this thread if the executor has not started it yet.
+                mTask.run();
+                String session = (String) mTask.get()[0];
+                if (mTraits.isError()) {
+                    return null;
+                }
+                mIsConfirmed = true;
+                traits.setSession(session);
+                traits.sessionExpiry = mTraits.sessionExpiry;
+                return session;
+            } catch (final Exception e) {
+                logError(e, Router.class.getSimpleName() + ".SpeculativeSession.confirm() Failed");
             }
+            return null;
         }
 
-        @Override
-        protected Object doInBackground(Object... arguments) {
-            Object result = null;
+        /**
+         * Drops the session request unless its session has been used: the request is aborted if it is still running, a session it
+         * has already obtained is forgotten. The gateway has no call ending a session, so a session created before the abort expires
+         * on its own.
+         */
+        void discard() {
+            if (mIsConfirmed || mTask.cancel(true) || mTask.isCancelled()) {
+                return;
+            }
             try {
-                switch (mOperation) {
-                    case ACTION_OBTAIN_TOKEN: {
-                        Credentials credentials = (Credentials)arguments[0];
-                        result = Router.obtainToken(credentials);
-                        break;
-                    }                    
-                    case ACTION_OBTAIN_AGENTS: {
-                        ConnectionTraits traits = (ConnectionTraits)arguments[0];
-                        result = new Object[]{ Router.obtainAgents(traits), traits};
-                        break;
-                    }
-                    case ACTION_OBTAIN_AGENT: {
-                        ConnectionTraits traits = (ConnectionTraits)arguments[0];
-                        result = new Object[]{ Router.obtainAgent(traits), traits};
-                        break;
-                    }
-                    case ACTION_OBTAIN_SESSION: {
-                        ConnectionTraits traits = (ConnectionTraits)arguments[0];
-                        result = new Object[]{ Router.obtainSession(traits, traits.agent.getAgentIdJSON()), traits};
-                        break;
-                    }
-                    case ACTION_AUTHENTICATE: {
-                        try {
-                            Credentials credentials = (Credentials) arguments[0];
+                String session = (String) mTask.get()[0];
+                if (session != null) {
+                    Log.d(Router.class.getSimpleName(), "SpeculativeSession.discard(): Dropped unused session of agent "
+                            + mAgent.getAgentId());
+                    mTraits.setSession(null);
+                }
+            } catch (final Exception e) {
+                logError(e, Router.class.getSimpleName() + ".SpeculativeSession.discard() Failed");
+            }
+        }
+    }
 
-                            ConnectionTraits traits = Router.obtainToken(credentials);
-                            if (traits.isError()) return new Object[]{traits};
+    /**
+     * One of the parallel copies of a hedged request.
+     */
+    private static class HedgeAttempt implements Callable<HttpResponse> {
 
-                            AgentEntity agent = Router.obtainAgent(traits);
-                            if (traits.isError()) return new Object[]{traits};
+        /**
+         * Request sent by this attempt.
+         */
+        private final HttpUriRequest mRequest;
 
-                            String session = Router.obtainSession(traits, agent.getAgentIdJSON());
-                            if (traits.isError()) return new Object[]{traits};
+        /**
+         * Time (in milliseconds) until the response was received.
+         */
+        private volatile long mLatency;
 
-                            traits.sessionID = session;
-                            traits.agent = agent;
+        /**
+         * Indicates whether the other attempt won and the response of this one is not needed.
+         */
+        private volatile boolean mIsAbandoned;
 
-                            AuthPreferences.storeCredentials(credentials);
-                            result = new Object[]{traits};
-                        } catch (Exception ex) {}
-                        break;
-                    }                    
-                }
-                return result;
-            } catch (Exception e) {
-                Utility.showAlertDialog(e.toString(), ApplicationGateway.getAppContext());
-                return null;
-            }
+        /**
+         * Default constructor.
+         * 
+         * @param request Request to send.
+         */
+        HedgeAttempt(HttpUriRequest request) {
+            mRequest = request;
         }
 
         @Override
-        protected void onPostExecute(final Object result) {
-            try {
-                if(mActivity == null) { 
-                mListener.onExecutionComplete(mOperation, (Object[])result);
-                } else {
-                    mActivity.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mListener.onExecutionComplete(mOperation, (Object[])result);
-                        }
-                    });
-                }                
-            } catch (final Exception e) {
-                Utility.showAlertDialog(Router.class.getSimpleName() + ".onPostExecute(): Failed. " + e.toString(), ApplicationGateway.getAppContext());
+        public HttpResponse call() throws IOException {
+            long start = SystemClock.elapsedRealtime();
+            HttpResponse response = GatewayHttpClient.execute(mRequest);
+            mLatency = SystemClock.elapsedRealtime() - start;
+            if (mIsAbandoned) {
+                GatewayHttpClient.consume(response);
             }
+            return response;
         }
-    }    
+
+        /**
+         * Aborts the request. Its connection is closed and released.
+         */
+        void abandon() {
+            mIsAbandoned = true;
+            mRequest.abort();
+        }
+    }
+
+    /**
+     * Creates named daemon threads for request executors.
+     */
+    private static class RouterThreadFactory implements ThreadFactory {
+
+        /**
+         * Name prefix of the created threads.
+         */
+        private final String mName;
+
+        /**
+         * Number of created threads.
+         */
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        /**
+         * Default constructor.
+         * 
+         * @param name Name prefix of the created threads.
+         */
+        RouterThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
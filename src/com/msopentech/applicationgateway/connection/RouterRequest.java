@@ -0,0 +1,234 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import android.app.Activity;
+
+/**
+ * Pending {@link Router} request. Can be waited for or cancelled. The listener is notified when the request completes, times out or
+ * is rejected, but never after the request was cancelled by the caller.
+ */
+public class RouterRequest extends FutureTask<Object[]> {
+
+    /**
+     * Request being executed on the current thread.
+     */
+    private static final ThreadLocal<RouterRequest> sCurrent = new ThreadLocal<RouterRequest>();
+
+    /**
+     * Action code, performed by the request.
+     */
+    private final int mOperation;
+
+    /**
+     * Request arguments.
+     */
+    private final Object[] mArguments;
+
+    /**
+     * Operation listener delegate.
+     */
+    private final OnOperationExecutionListener mListener;
+
+    /**
+     * Activity to reach the thread to run the delegate on.
+     */
+    private final Activity mActivity;
+
+    /**
+     * HTTP request currently sent on behalf of this request.
+     */
+    private volatile HttpUriRequest mHttpRequest;
+
+    /**
+     * Request that was running on the thread when this one was run on it, e.g. the sign-in running a speculative session request
+     * itself. <code>null</code> if none.
+     */
+    private volatile RouterRequest mParent;
+
+    /**
+     * Reason the request was failed by the router (time out or rejection). <code>null</code> if it was not.
+     */
+    private volatile String mError;
+
+    /**
+     * Pending time out of the request.
+     */
+    private volatile ScheduledFuture<?> mTimeout;
+
+    /**
+     * Default constructor.
+     * 
+     * @param operation Action type to be processed.
+     * @param arguments Request arguments.
+     * @param callable Request body.
+     * @param listener Operation listener.
+     * @param activity Activity to get the thread the delegate will run on.
+     */
+    RouterRequest(int operation, Object[] arguments, Callable<Object[]> callable, OnOperationExecutionListener listener, Activity activity) {
+        super(callable);
+        mOperation = operation;
+        mArguments = arguments;
+        mListener = listener;
+        mActivity = activity;
+    }
+
+    /**
+     * Returns the action code performed by the request.
+     * 
+     * @return Action code.
+     */
+    public int getOperation() {
+        return mOperation;
+    }
+
+    /**
+     * Returns the activity the request was made from.
+     * 
+     * @return Activity or <code>null</code>.
+     */
+    Activity getActivity() {
+        return mActivity;
+    }
+
+    /**
+     * Indicates whether the request was failed by the router because it timed out or could not be queued.
+     * 
+     * @return <code>true</code> if request failed.
+     */
+    public boolean isFailed() {
+        return mError != null;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled && mayInterruptIfRunning) {
+            abortHttpRequest();
+        }
+        return cancelled;
+    }
+
+    @Override
+    public void run() {
+        mParent = sCurrent.get();
+        sCurrent.set(this);
+        try {
+            super.run();
+        } finally {
+            if (mParent == null) {
+                sCurrent.remove();
+            } else {
+                sCurrent.set(mParent);
+            }
+            mParent = null;
+            mHttpRequest = null;
+        }
+    }
+
+    /**
+     * Ends the request with an error delivered to the listener instead of the result.
+     * 
+     * @param error Error description.
+     */
+    void fail(String error) {
+        if (isDone()) {
+            return;
+        }
+        mError = error;
+        cancel(true);
+    }
+
+    /**
+     * Sets the pending time out of the request. It is cancelled once the request is done.
+     * 
+     * @param timeout Scheduled time out.
+     */
+    void setTimeout(ScheduledFuture<?> timeout) {
+        mTimeout = timeout;
+        if (isDone()) {
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Notifies the request running on the current thread of the HTTP request it sends, so that the HTTP request can be aborted if
+     * the router request, or the request it is run by, is cancelled. Does nothing if the current thread does not run a router
+     * request.
+     * 
+     * @param request HTTP request about to be executed.
+     */
+    static void track(HttpUriRequest request) {
+        for (RouterRequest current = sCurrent.get(); current != null; current = current.mParent) {
+            current.mHttpRequest = request;
+            if (current.isCancelled()) {
+                current.abortHttpRequest();
+            }
+        }
+    }
+
+    @Override
+    protected void done() {
+        ScheduledFuture<?> timeout = mTimeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        Router.onRequestDone(this);
+
+        if (mListener == null || (isCancelled() && mError == null)) {
+            return;
+        }
+
+        Object[] result;
+        if (mError != null) {
+            result = Router.getErrorResult(mOperation, mArguments, mError);
+        } else {
+            try {
+                result = get();
+            } catch (final Exception e) {
+                result = Router.getErrorResult(mOperation, mArguments, e.toString());
+            }
+        }
+
+        final Object[] completeResult = result;
+        if (mActivity == null) {
+            mListener.onExecutionComplete(mOperation, completeResult);
+        } else {
+            mActivity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onExecutionComplete(mOperation, completeResult);
+                }
+            });
+        }
+    }
+
+    /**
+     * Aborts HTTP request in progress if any so that a blocked socket read returns immediately.
+     */
+    private void abortHttpRequest() {
+        HttpUriRequest request = mHttpRequest;
+        if (request == null) {
+            return;
+        }
+        try {
+            request.abort();
+        } catch (final UnsupportedOperationException e) {
+            // Request can not be aborted, it will end on its own.
+        }
+    }
+}
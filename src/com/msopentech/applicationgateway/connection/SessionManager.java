@@ -0,0 +1,235 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Activity;
+import android.util.Log;
+
+import com.msopentech.applicationgateway.data.ConnectionTraits;
+
+/**
+ * Tracks expiry of the token and session of the current {@link ConnectionTraits} and refreshes them in background before they lapse.
+ * Refreshed traits are delivered to the listener as a result of {@link Router#ACTION_REFRESH} operation.
+ */
+public class SessionManager {
+
+    /**
+     * Time (in milliseconds) before expiry when refresh starts.
+     */
+    public static final long REFRESH_MARGIN = 60 * 1000;
+
+    /**
+     * Delay (in milliseconds) before the next attempt if refresh fails.
+     */
+    private static final long RETRY_INTERVAL = 30 * 1000;
+
+    /**
+     * Scheduler running refresh operations.
+     */
+    private static final ScheduledExecutorService sScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, SessionManager.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Tracked connection traits.
+     */
+    private static ConnectionTraits sTraits;
+
+    /**
+     * Listener notified of refreshed traits.
+     */
+    private static OnOperationExecutionListener sListener;
+
+    /**
+     * Activity to reach the thread to run the listener on or <code>null</code> if the listener runs on the refresh thread. Weak, so
+     * that a destroyed activity is not kept alive by the refresh.
+     */
+    private static WeakReference<Activity> sActivity;
+
+    /**
+     * Pending refresh operation.
+     */
+    private static ScheduledFuture<?> sRefreshTask;
+
+    /**
+     * Indicates whether refresh is paused by {@link #suspend()}.
+     */
+    private static boolean sIsSuspended;
+
+    /**
+     * Refresh operation.
+     */
+    private static final Runnable sRefresh = new Runnable() {
+        @Override
+        public void run() {
+            ConnectionTraits current;
+            synchronized (SessionManager.class) {
+                current = sTraits;
+            }
+            if (current == null) {
+                return;
+            }
+
+            final ConnectionTraits refreshed = Router.refreshTraits(current);
+
+            final OnOperationExecutionListener listener;
+            final Activity activity;
+            synchronized (SessionManager.class) {
+                if (sTraits != current) {
+                    // Stopped or restarted with other traits while refreshing.
+                    return;
+                }
+                activity = sActivity == null ? null : sActivity.get();
+                if (sActivity != null && activity == null) {
+                    // The activity the listener belongs to is gone.
+                    stop();
+                    return;
+                }
+                if (refreshed.isError()) {
+                    Log.e(SessionManager.class.getSimpleName(), "Refresh failed: " + refreshed.error);
+                    // Suspended while refreshing: resume() schedules the next attempt.
+                    if (!sIsSuspended) {
+                        cancel();
+                        schedule(RETRY_INTERVAL);
+                    }
+                    return;
+                }
+                sTraits = refreshed;
+                if (!sIsSuspended) {
+                    cancel();
+                    schedule(getRefreshDelay(refreshed));
+                }
+                listener = sListener;
+            }
+
+            if (listener == null) {
+                return;
+            }
+            if (activity == null) {
+                listener.onExecutionComplete(Router.ACTION_REFRESH, new Object[] { refreshed });
+            } else {
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onExecutionComplete(Router.ACTION_REFRESH, new Object[] { refreshed });
+                    }
+                });
+            }
+        }
+    };
+
+    /**
+     * Starts tracking connection traits. Replaces previously tracked traits if any. If activity argument is not <code>null</code>
+     * listener methods will be executed on UI thread that this activity is running on.
+     * 
+     * @param traits Connection traits with token and session expiry set.
+     * @param listener Listener to deliver refreshed traits to.
+     * @param activity Activity to get the thread the listener will run on.
+     */
+    public static synchronized void start(ConnectionTraits traits, OnOperationExecutionListener listener, Activity activity) {
+        cancel();
+        sTraits = traits;
+        sListener = listener;
+        sActivity = activity == null ? null : new WeakReference<Activity>(activity);
+        sIsSuspended = false;
+        schedule(getRefreshDelay(traits));
+    }
+
+    /**
+     * Stops tracking connection traits.
+     */
+    public static synchronized void stop() {
+        cancel();
+        sTraits = null;
+        sListener = null;
+        sActivity = null;
+        sIsSuspended = false;
+    }
+
+    /**
+     * Pauses refresh, e.g. while the application is in background. Tracked traits are kept. A refresh already running completes but
+     * does not schedule the next one.
+     */
+    public static synchronized void suspend() {
+        sIsSuspended = true;
+        cancel();
+    }
+
+    /**
+     * Resumes refresh paused by {@link #suspend()}. Refreshes immediately if the traits are about to expire.
+     */
+    public static synchronized void resume() {
+        sIsSuspended = false;
+        if (sTraits != null && sRefreshTask == null) {
+            schedule(getRefreshDelay(sTraits));
+        }
+    }
+
+    /**
+     * Calculates the time left until the traits must be refreshed.
+     * 
+     * @param traits Connection traits.
+     * 
+     * @return Delay in milliseconds or negative value if traits expiry is unknown.
+     */
+    private static long getRefreshDelay(ConnectionTraits traits) {
+        if (traits == null) {
+            return -1;
+        }
+
+        long expiry = traits.tokenExpiry;
+        if (traits.sessionExpiry > 0 && (expiry <= 0 || traits.sessionExpiry < expiry)) {
+            expiry = traits.sessionExpiry;
+        }
+        if (expiry <= 0) {
+            return -1;
+        }
+
+        return Math.max(0, expiry - REFRESH_MARGIN - System.currentTimeMillis());
+    }
+
+    /**
+     * Schedules refresh. Must be called while holding the class lock.
+     * 
+     * @param delay Delay in milliseconds. Nothing is scheduled if negative.
+     */
+    private static void schedule(long delay) {
+        sRefreshTask = delay < 0 ? null : sScheduler.schedule(sRefresh, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels pending refresh. Must be called while holding the class lock.
+     */
+    private static void cancel() {
+        if (sRefreshTask != null) {
+            sRefreshTask.cancel(false);
+            sRefreshTask = null;
+        }
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private SessionManager() {
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Implements precompiled request template. The template is split once into static UTF-8 encoded segments and parameter slots
+ * written as <code>#{name}</code>. Request entities stream the segments and XML escaped parameter values without composing the
+ * whole request as a string.
+ */
+public class SoapTemplate {
+
+    /**
+     * Character set of the requests.
+     */
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Parameter slot opening.
+     */
+    private static final String SLOT_START = "#{";
+
+    /**
+     * Parameter slot closing.
+     */
+    private static final String SLOT_END = "}";
+
+    /**
+     * Static segments. Segment <code>i</code> is written before slot <code>i</code>; the last segment follows the last slot.
+     */
+    private final byte[][] mSegments;
+
+    /**
+     * Index of the parameter written to each slot.
+     */
+    private final int[] mSlots;
+
+    /**
+     * Total length of the static segments.
+     */
+    private final int mStaticLength;
+
+    /**
+     * Compiles the template.
+     * 
+     * @param template Template text.
+     * @param parameters Parameter names. Values are passed to {@link #createEntity(String[])} in the same order.
+     * 
+     * @throws IllegalArgumentException If the template refers to an unknown parameter or has an unclosed slot.
+     */
+    public SoapTemplate(String template, String[] parameters) {
+        List<byte[]> segments = new ArrayList<byte[]>();
+        List<Integer> slots = new ArrayList<Integer>();
+        int staticLength = 0;
+
+        int position = 0;
+        int start;
+        while ((start = template.indexOf(SLOT_START, position)) != -1) {
+            int end = template.indexOf(SLOT_END, start + SLOT_START.length());
+            if (end == -1) {
+                throw new IllegalArgumentException("Unclosed template slot at " + start + ".");
+            }
+
+            String name = template.substring(start + SLOT_START.length(), end);
+            int index = indexOf(parameters, name);
+            if (index == -1) {
+                throw new IllegalArgumentException("Unknown template parameter: " + name + ".");
+            }
+
+            byte[] segment = encode(template.substring(position, start));
+            segments.add(segment);
+            staticLength += segment.length;
+            slots.add(index);
+            position = end + SLOT_END.length();
+        }
+        byte[] segment = encode(template.substring(position));
+        segments.add(segment);
+        staticLength += segment.length;
+
+        mSegments = segments.toArray(new byte[segments.size()][]);
+        mSlots = new int[slots.size()];
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = slots.get(i);
+        }
+        mStaticLength = staticLength;
+    }
+
+    /**
+     * Creates request entity with the given parameter values.
+     * 
+     * @param values Parameter values in the order of the names passed to the constructor. Values are XML escaped. <code>null</code>
+     *        is written as an empty string.
+     * 
+     * @return Repeatable entity with known content length.
+     */
+    public AbstractHttpEntity createEntity(String[] values) {
+        byte[][] encodedValues = new byte[values.length][];
+        int length = mStaticLength;
+        for (int i = 0; i < values.length; i++) {
+            encodedValues[i] = encode(escape(values[i]));
+        }
+        for (int slot : mSlots) {
+            length += encodedValues[slot].length;
+        }
+        return new TemplateEntity(encodedValues, length);
+    }
+
+    /**
+     * Escapes XML markup characters.
+     * 
+     * @param value Value to escape. Can be <code>null</code>.
+     * 
+     * @return Escaped value. The value itself if it has nothing to escape.
+     */
+    public static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement;
+            switch (c) {
+                case '&': replacement = "&amp;"; break;
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '"': replacement = "&quot;"; break;
+                case '\'': replacement = "&apos;"; break;
+                default: replacement = null; break;
+            }
+
+            if (replacement != null) {
+                if (escaped == null) {
+                    escaped = new StringBuilder(value.length() + 16);
+                    escaped.append(value, 0, i);
+                }
+                escaped.append(replacement);
+            } else if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return escaped == null ? value : escaped.toString();
+    }
+
+    /**
+     * Encodes text to UTF-8.
+     * 
+     * @param text Text to encode.
+     * 
+     * @return Encoded bytes.
+     */
+    private static byte[] encode(String text) {
+        try {
+            return text.getBytes(CHARSET);
+        } catch (final UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /**
+     * Finds the name in the array.
+     * 
+     * @param names Names to search.
+     * @param name Name to look for.
+     * 
+     * @return Index of the name or -1 if not found.
+     */
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Request entity writing the template segments interleaved with parameter values.
+     */
+    private class TemplateEntity extends AbstractHttpEntity {
+
+        /**
+         * Encoded parameter values.
+         */
+        private final byte[][] mValues;
+
+        /**
+         * Content length.
+         */
+        private final int mLength;
+
+        /**
+         * Default constructor.
+         * 
+         * @param values Encoded parameter values.
+         * @param length Content length.
+         */
+        TemplateEntity(byte[][] values, int length) {
+            mValues = values;
+            mLength = length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            ByteArrayOutputStream content = new ByteArrayOutputStream(mLength);
+            writeTo(content);
+            return new ByteArrayInputStream(content.toByteArray());
+        }
+
+        @Override
+        public void writeTo(OutputStream stream) throws IOException {
+            if (stream == null) {
+                throw new IllegalArgumentException("Output stream may not be null");
+            }
+            for (int i = 0; i < mSlots.length; i++) {
+                stream.write(mSegments[i]);
+                stream.write(mValues[mSlots[i]]);
+            }
+            stream.write(mSegments[mSlots.length]);
+            stream.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import android.os.SystemClock;
+
+/**
+ * Socket factory that connects sockets itself, timing DNS resolution, TCP connect and, for layered factories, TLS handshake into the
+ * span open on the connecting thread (see {@link Tracer}).
+ */
+public class TimingSocketFactory implements LayeredSocketFactory {
+
+    /**
+     * Factory creating sockets for the scheme. If it is layered, its sockets are layered over a plain connected socket.
+     */
+    private final SocketFactory mDelegate;
+
+    /**
+     * Default constructor.
+     * 
+     * @param delegate Factory of the scheme.
+     */
+    public TimingSocketFactory(SocketFactory delegate) {
+        mDelegate = delegate;
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return mDelegate instanceof LayeredSocketFactory ? new Socket() : mDelegate.createSocket();
+    }
+
+    @Override
+    public Socket connectSocket(Socket socket, String host, int port, InetAddress localAddress, int localPort, HttpParams params)
+            throws IOException, UnknownHostException, ConnectTimeoutException {
+        if (host == null) {
+            throw new IllegalArgumentException("Target host may not be null.");
+        }
+        if (params == null) {
+            throw new IllegalArgumentException("Parameters may not be null.");
+        }
+
+        Socket plainSocket = socket == null ? createSocket() : socket;
+        if (localAddress != null || localPort > 0) {
+            plainSocket.bind(new InetSocketAddress(localAddress, localPort < 0 ? 0 : localPort));
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        InetAddress address = InetAddress.getByName(host);
+        Tracer.addPhase(TraceSpan.PHASE_DNS, SystemClock.elapsedRealtime() - start);
+
+        start = SystemClock.elapsedRealtime();
+        try {
+            plainSocket.connect(new InetSocketAddress(address, port), HttpConnectionParams.getConnectionTimeout(params));
+        } catch (final SocketTimeoutException e) {
+            throw new ConnectTimeoutException("Connect to " + host + "/" + address + " timed out");
+        } finally {
+            Tracer.addPhase(TraceSpan.PHASE_CONNECT, SystemClock.elapsedRealtime() - start);
+        }
+        plainSocket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+
+        if (!(mDelegate instanceof LayeredSocketFactory)) {
+            return plainSocket;
+        }
+        return createSocket(plainSocket, host, port, true);
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            return ((LayeredSocketFactory) mDelegate).createSocket(socket, host, port, autoClose);
+        } finally {
+            Tracer.addPhase(TraceSpan.PHASE_TLS, SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    @Override
+    public boolean isSecure(Socket socket) throws IllegalArgumentException {
+        return mDelegate.isSecure(socket);
+    }
+}
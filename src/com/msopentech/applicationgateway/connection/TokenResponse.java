@@ -0,0 +1,275 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Represents the security token service response: either the security token or the fault reason and detail. The response is read
+ * once into a single buffer. The token is cut out of the raw bytes as is, since it is a signed XML fragment that must be passed on
+ * unchanged. Faults are pulled out of the same buffer with a pull parser.
+ */
+public class TokenResponse {
+
+    /**
+     * Character set of the response.
+     */
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Security token opening tag.
+     */
+    private static final byte[] TOKEN_START = "<wst:RequestedSecurityToken>".getBytes();
+
+    /**
+     * Security token closing tag.
+     */
+    private static final byte[] TOKEN_END = "</wst:RequestedSecurityToken>".getBytes();
+
+    /**
+     * Element path to the fault reason text, starting at the fault element.
+     */
+    private static final String[] FAULT_REASON_PATH = { "Fault", "Reason", "Text" };
+
+    /**
+     * Element path to the fault detail text, starting at the fault element.
+     */
+    private static final String[] FAULT_DETAIL_PATH = { "Fault", "Detail", "error", "internalerror", "text" };
+
+    /**
+     * Initial buffer size used if the response length is unknown.
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Shared pull parser factory. Created lazily.
+     */
+    private static XmlPullParserFactory sParserFactory;
+
+    /**
+     * Security token fragment.
+     */
+    private String mToken;
+
+    /**
+     * Fault reason.
+     */
+    private String mFaultReason;
+
+    /**
+     * Fault detail.
+     */
+    private String mFaultDetail;
+
+    /**
+     * Reads and parses security token service response.
+     * 
+     * @param stream Response stream. Is not closed.
+     * @param length Response length or negative value if unknown.
+     * 
+     * @return Parsed response. Does NOT return <code>null</code>.
+     * 
+     * @throws IOException If the response can not be read.
+     * @throws XmlPullParserException If the response has no token and is not valid XML.
+     */
+    public static TokenResponse parse(InputStream stream, long length) throws IOException, XmlPullParserException {
+        ResponseBuffer buffer = new ResponseBuffer(length > 0 && length < Integer.MAX_VALUE ? (int) length : DEFAULT_BUFFER_SIZE);
+        byte[] chunk = new byte[DEFAULT_BUFFER_SIZE];
+        int read;
+        while ((read = stream.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+
+        TokenResponse response = new TokenResponse();
+        byte[] data = buffer.getBuffer();
+        int count = buffer.size();
+
+        int start = indexOf(data, count, TOKEN_START, 0);
+        int end = start == -1 ? -1 : indexOf(data, count, TOKEN_END, start + TOKEN_START.length);
+        if (end != -1) {
+            response.mToken = normalizeLineBreaks(new String(data, start, end + TOKEN_END.length - start, CHARSET));
+        } else {
+            response.parseFault(new ByteArrayInputStream(data, 0, count));
+        }
+        return response;
+    }
+
+    /**
+     * Returns security token fragment including its enclosing element.
+     * 
+     * @return Token or <code>null</code> if the response does not contain one.
+     */
+    public String getToken() {
+        return mToken;
+    }
+
+    /**
+     * Returns fault reason.
+     * 
+     * @return Reason or <code>null</code> if the response is not a fault or the reason is missing.
+     */
+    public String getFaultReason() {
+        return mFaultReason;
+    }
+
+    /**
+     * Returns fault detail.
+     * 
+     * @return Detail or <code>null</code> if the response is not a fault or the detail is missing.
+     */
+    public String getFaultDetail() {
+        return mFaultDetail;
+    }
+
+    /**
+     * Pulls fault reason and detail out of the response.
+     * 
+     * @param stream Response data.
+     * 
+     * @throws IOException If the data can not be read.
+     * @throws XmlPullParserException If the data is not valid XML.
+     */
+    private void parseFault(InputStream stream) throws IOException, XmlPullParserException {
+        XmlPullParser parser = newParser();
+        parser.setInput(stream, CHARSET);
+
+        List<String> path = new ArrayList<String>();
+        int event = parser.getEventType();
+        while (event != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG) {
+                path.add(parser.getName());
+                if (mFaultReason == null && endsWith(path, FAULT_REASON_PATH)) {
+                    mFaultReason = parser.nextText();
+                    path.remove(path.size() - 1);
+                } else if (mFaultDetail == null && endsWith(path, FAULT_DETAIL_PATH)) {
+                    mFaultDetail = parser.nextText();
+                    path.remove(path.size() - 1);
+                }
+            } else if (event == XmlPullParser.END_TAG) {
+                path.remove(path.size() - 1);
+            }
+            event = parser.next();
+        }
+    }
+
+    /**
+     * Creates namespace aware pull parser with the shared factory.
+     * 
+     * @return New parser.
+     * 
+     * @throws XmlPullParserException If parser can not be created.
+     */
+    private static synchronized XmlPullParser newParser() throws XmlPullParserException {
+        if (sParserFactory == null) {
+            sParserFactory = XmlPullParserFactory.newInstance();
+            sParserFactory.setNamespaceAware(true);
+        }
+        return sParserFactory.newPullParser();
+    }
+
+    /**
+     * Checks whether the current element path ends with the given element names.
+     * 
+     * @param path Names of the open elements.
+     * @param suffix Names to look for.
+     * 
+     * @return <code>true</code> if path ends with suffix.
+     */
+    private static boolean endsWith(List<String> path, String[] suffix) {
+        int offset = path.size() - suffix.length;
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length; i++) {
+            if (!suffix[i].equals(path.get(offset + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the first occurrence of the pattern in the data.
+     * 
+     * @param data Data to search.
+     * @param count Number of valid bytes in the data.
+     * @param pattern Bytes to look for.
+     * @param from Index to start from.
+     * 
+     * @return Index of the pattern or -1 if not found.
+     */
+    private static int indexOf(byte[] data, int count, byte[] pattern, int from) {
+        int last = count - pattern.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces every line break with a single carriage return, the way the token has always been sent to the gateway.
+     * 
+     * @param token Token fragment.
+     * 
+     * @return Token with normalized line breaks.
+     */
+    private static String normalizeLineBreaks(String token) {
+        if (token.indexOf('\n') == -1) {
+            return token;
+        }
+        return token.replace("\r\n", "\r").replace('\n', '\r');
+    }
+
+    /**
+     * Private constructor. Instances are created by {@link #parse(InputStream, long)}.
+     */
+    private TokenResponse() {
+    }
+
+    /**
+     * Output buffer giving access to its data without copying it.
+     */
+    private static class ResponseBuffer extends ByteArrayOutputStream {
+
+        /**
+         * Default constructor.
+         * 
+         * @param size Initial capacity.
+         */
+        ResponseBuffer(int size) {
+            super(size);
+        }
+
+        /**
+         * Returns internal buffer. Only first {@link #size()} bytes are valid.
+         * 
+         * @return Buffer.
+         */
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
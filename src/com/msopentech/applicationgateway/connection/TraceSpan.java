@@ -0,0 +1,236 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+
+/**
+ * Represents one traced operation with the time it spent in each network phase. Created by {@link Tracer#begin(String)}.
+ */
+public class TraceSpan {
+
+    /**
+     * DNS resolution phase.
+     */
+    public static final int PHASE_DNS = 0;
+
+    /**
+     * TCP connect phase.
+     */
+    public static final int PHASE_CONNECT = 1;
+
+    /**
+     * TLS handshake phase.
+     */
+    public static final int PHASE_TLS = 2;
+
+    /**
+     * Phase from sending the request until the response headers are received.
+     */
+    public static final int PHASE_TTFB = 3;
+
+    /**
+     * Response body read phase.
+     */
+    public static final int PHASE_BODY = 4;
+
+    /**
+     * Response parsing phase, excluding body read.
+     */
+    public static final int PHASE_PARSE = 5;
+
+    /**
+     * Phase names used in exported JSON.
+     */
+    static final String[] PHASE_NAMES = { "dns", "connect", "tls", "ttfb", "body", "parse" };
+
+    /**
+     * Source of span identifiers.
+     */
+    private static final AtomicInteger sNextId = new AtomicInteger(1);
+
+    /**
+     * Span identifier.
+     */
+    private final int mId;
+
+    /**
+     * Enclosing span or <code>null</code>.
+     */
+    private final TraceSpan mParent;
+
+    /**
+     * Operation name.
+     */
+    private final String mName;
+
+    /**
+     * Start time (in milliseconds since epoch).
+     */
+    private final long mStartTime;
+
+    /**
+     * Start time (in milliseconds since boot) used to measure duration.
+     */
+    private final long mStartElapsed;
+
+    /**
+     * Time (in milliseconds) spent in each phase.
+     */
+    private final long[] mPhases = new long[PHASE_NAMES.length];
+
+    /**
+     * Total duration (in milliseconds). Set when the span ends.
+     */
+    private volatile long mDuration = -1;
+
+    /**
+     * Last HTTP status code received or zero.
+     */
+    private volatile int mStatus;
+
+    /**
+     * Indicates whether the operation failed.
+     */
+    private volatile boolean mIsFailed;
+
+    /**
+     * Class constructor.
+     * 
+     * @param name Operation name.
+     * @param parent Enclosing span. Can be <code>null</code>.
+     */
+    TraceSpan(String name, TraceSpan parent) {
+        mId = sNextId.getAndIncrement();
+        mName = name;
+        mParent = parent;
+        mStartTime = System.currentTimeMillis();
+        mStartElapsed = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns operation name.
+     * 
+     * @return Name.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns enclosing span.
+     * 
+     * @return Parent span or <code>null</code>.
+     */
+    TraceSpan getParent() {
+        return mParent;
+    }
+
+    /**
+     * Returns total duration.
+     * 
+     * @return Duration in milliseconds or -1 if the span has not ended.
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * Returns time spent in the phase.
+     * 
+     * @param phase Phase, one of <code>PHASE_*</code> constants.
+     * 
+     * @return Time in milliseconds.
+     */
+    public synchronized long getPhase(int phase) {
+        return mPhases[phase];
+    }
+
+    /**
+     * Adds time spent in the phase. Phases may be entered several times, e.g. on retries.
+     * 
+     * @param phase Phase, one of <code>PHASE_*</code> constants.
+     * @param time Time in milliseconds.
+     */
+    public synchronized void addPhase(int phase, long time) {
+        mPhases[phase] += time;
+    }
+
+    /**
+     * Returns total time spent on DNS resolution, connect and TLS handshake.
+     * 
+     * @return Time in milliseconds.
+     */
+    synchronized long getConnectionTime() {
+        return mPhases[PHASE_DNS] + mPhases[PHASE_CONNECT] + mPhases[PHASE_TLS];
+    }
+
+    /**
+     * Sets HTTP status code of the response.
+     * 
+     * @param status Status code.
+     */
+    public void setStatus(int status) {
+        mStatus = status;
+    }
+
+    /**
+     * Marks the operation as failed.
+     */
+    public void setFailed() {
+        mIsFailed = true;
+    }
+
+    /**
+     * Indicates whether the operation failed.
+     * 
+     * @return <code>true</code> if failed.
+     */
+    public boolean isFailed() {
+        return mIsFailed;
+    }
+
+    /**
+     * Stops the duration clock.
+     */
+    void finish() {
+        mDuration = SystemClock.elapsedRealtime() - mStartElapsed;
+    }
+
+    /**
+     * Converts the span to JSON.
+     * 
+     * @return JSON object.
+     * 
+     * @throws JSONException If conversion fails.
+     */
+    synchronized JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("id", mId);
+        if (mParent != null) {
+            json.put("parent", mParent.mId);
+        }
+        json.put("name", mName);
+        json.put("start", mStartTime);
+        json.put("duration", mDuration);
+        json.put("status", mStatus);
+        json.put("failed", mIsFailed);
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            json.put(PHASE_NAMES[i], mPhases[i]);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.connection;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Records latency spans of gateway operations in a bounded in-memory ring. Spans started on a thread nest: network phases are
+ * added to the innermost span open on the calling thread. All methods can be called when no span is open.
+ */
+public class Tracer {
+
+    /**
+     * Span name of security token requests.
+     */
+    public static final String SPAN_TOKEN = "sts";
+
+    /**
+     * Span name of agents list requests.
+     */
+    public static final String SPAN_AGENTS = "agents";
+
+    /**
+     * Span name of session requests.
+     */
+    public static final String SPAN_SESSION = "session";
+
+    /**
+     * Span name of page resources fetched by the smart browser.
+     */
+    public static final String SPAN_BROWSER = "browser";
+
+    /**
+     * Span name prefix of {@link Router} actions.
+     */
+    public static final String SPAN_ACTION_PREFIX = "action.";
+
+    /**
+     * Maximum number of spans kept.
+     */
+    private static final int CAPACITY = 256;
+
+    /**
+     * Ring of completed spans.
+     */
+    private static final TraceSpan[] sSpans = new TraceSpan[CAPACITY];
+
+    /**
+     * Number of spans recorded since start.
+     */
+    private static int sCount;
+
+    /**
+     * Innermost span open on the thread.
+     */
+    private static final ThreadLocal<TraceSpan> sCurrent = new ThreadLocal<TraceSpan>();
+
+    /**
+     * Opens a span on the calling thread. Must be closed with {@link #end(TraceSpan, boolean)} or handed over with
+     * {@link #detach(TraceSpan)} on the same thread.
+     * 
+     * @param name Operation name.
+     * 
+     * @return New span.
+     */
+    public static TraceSpan begin(String name) {
+        TraceSpan span = new TraceSpan(name, sCurrent.get());
+        sCurrent.set(span);
+        return span;
+    }
+
+    /**
+     * Returns the innermost span open on the calling thread.
+     * 
+     * @return Span or <code>null</code>.
+     */
+    public static TraceSpan current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Closes the span on the calling thread without recording it, so that it can be ended later on another thread.
+     * 
+     * @param span Span to detach.
+     */
+    public static void detach(TraceSpan span) {
+        if (span != null && sCurrent.get() == span) {
+            TraceSpan parent = span.getParent();
+            if (parent == null) {
+                sCurrent.remove();
+            } else {
+                sCurrent.set(parent);
+            }
+        }
+    }
+
+    /**
+     * Ends the span and records it. Can be called from any thread.
+     * 
+     * @param span Span to end. Can be <code>null</code>.
+     * @param failed Whether the operation failed.
+     */
+    public static void end(TraceSpan span, boolean failed) {
+        if (span == null || span.getDuration() >= 0) {
+            return;
+        }
+        detach(span);
+        if (failed) {
+            span.setFailed();
+        }
+        span.finish();
+
+        synchronized (sSpans) {
+            sSpans[sCount % CAPACITY] = span;
+            sCount++;
+        }
+    }
+
+    /**
+     * Adds time spent in the phase to the innermost open span.
+     * 
+     * @param phase Phase, one of <code>TraceSpan.PHASE_*</code> constants.
+     * @param time Time in milliseconds.
+     */
+    public static void addPhase(int phase, long time) {
+        TraceSpan span = sCurrent.get();
+        if (span != null) {
+            span.addPhase(phase, time);
+        }
+    }
+
+    /**
+     * Wraps response stream so that time spent reading it is added to the innermost open span as body phase.
+     * 
+     * @param stream Response stream.
+     * 
+     * @return Timed stream or the stream itself if no span is open.
+     */
+    public static InputStream timeBody(InputStream stream) {
+        TraceSpan span = sCurrent.get();
+        return span == null || stream == null ? stream : new TimedInputStream(stream, span, false);
+    }
+
+    /**
+     * Wraps response stream that is read on another thread. Time spent reading it is added to the span as body phase and the span
+     * is ended once the stream is read to the end or closed.
+     * 
+     * @param stream Response stream.
+     * @param span Detached span.
+     * 
+     * @return Timed stream.
+     */
+    public static InputStream timeBody(InputStream stream, TraceSpan span) {
+        return new TimedInputStream(stream, span, true);
+    }
+
+    /**
+     * Marks the start of response parsing in the innermost open span.
+     * 
+     * @return Mark to pass to {@link #endParse(long)}.
+     */
+    public static long beginParse() {
+        TraceSpan span = sCurrent.get();
+        return span == null ? 0 : SystemClock.elapsedRealtime() - span.getPhase(TraceSpan.PHASE_BODY);
+    }
+
+    /**
+     * Adds time spent parsing since the mark, excluding time spent reading the body, to the innermost open span.
+     * 
+     * @param mark Mark returned by {@link #beginParse()}.
+     */
+    public static void endParse(long mark) {
+        TraceSpan span = sCurrent.get();
+        if (span != null) {
+            span.addPhase(TraceSpan.PHASE_PARSE, Math.max(0, SystemClock.elapsedRealtime() - span.getPhase(TraceSpan.PHASE_BODY) - mark));
+        }
+    }
+
+    /**
+     * Returns recorded spans, oldest first.
+     * 
+     * @return Copy of the recorded spans.
+     */
+    public static List<TraceSpan> getSpans() {
+        List<TraceSpan> spans = new ArrayList<TraceSpan>();
+        synchronized (sSpans) {
+            int count = Math.min(sCount, CAPACITY);
+            for (int i = sCount - count; i < sCount; i++) {
+                spans.add(sSpans[i % CAPACITY]);
+            }
+        }
+        return spans;
+    }
+
+    /**
+     * Calculates duration percentiles of the successful recorded spans with the name.
+     * 
+     * @param name Span name.
+     * @param percentiles Percentiles to calculate, each between 0 and 1.
+     * 
+     * @return Durations in milliseconds in the order of the percentiles or <code>null</code> if there are no such spans.
+     */
+    public static long[] getPercentiles(String name, double[] percentiles) {
+        List<TraceSpan> spans = getSpans();
+        long[] durations = new long[spans.size()];
+        int count = 0;
+        for (TraceSpan span : spans) {
+            if (span.getName().equals(name) && !span.isFailed()) {
+                durations[count++] = span.getDuration();
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+
+        Arrays.sort(durations, 0, count);
+        long[] result = new long[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            result[i] = durations[(int) Math.min(count - 1, Math.floor(count * percentiles[i]))];
+        }
+        return result;
+    }
+
+    /**
+     * Returns number of successful recorded spans with the name.
+     * 
+     * @param name Span name.
+     * 
+     * @return Span count.
+     */
+    public static int getCount(String name) {
+        int count = 0;
+        for (TraceSpan span : getSpans()) {
+            if (span.getName().equals(name) && !span.isFailed()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Exports recorded spans as JSON array for offline analysis. Phase durations are in milliseconds, start time in milliseconds
+     * since epoch.
+     * 
+     * @return JSON text.
+     */
+    public static String exportJSON() {
+        JSONArray json = new JSONArray();
+        try {
+            for (TraceSpan span : getSpans()) {
+                json.put(span.toJSON());
+            }
+        } catch (final Exception e) {
+            Log.e(Tracer.class.getSimpleName(), "exportJSON(): Failed. " + e.toString());
+        }
+        return json.toString();
+    }
+
+    /**
+     * Discards recorded spans.
+     */
+    public static void clear() {
+        synchronized (sSpans) {
+            Arrays.fill(sSpans, null);
+            sCount = 0;
+        }
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private Tracer() {
+    }
+
+    /**
+     * Stream adding time spent in read operations to the span.
+     */
+    private static class TimedInputStream extends FilterInputStream {
+
+        /**
+         * Span to add the time to.
+         */
+        private final TraceSpan mSpan;
+
+        /**
+         * Indicates whether the span is ended at the end of the stream.
+         */
+        private final boolean mEndsSpan;
+
+        /**
+         * Default constructor.
+         * 
+         * @param stream Stream to time.
+         * @param span Span to add the time to.
+         * @param endsSpan Whether the span is ended at the end of the stream.
+         */
+        TimedInputStream(InputStream stream, TraceSpan span, boolean endsSpan) {
+            super(stream);
+            mSpan = span;
+            mEndsSpan = endsSpan;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = SystemClock.elapsedRealtime();
+            int result;
+            try {
+                result = super.read();
+            } catch (final IOException e) {
+                onRead(start, false);
+                onEnd(true);
+                throw e;
+            }
+            onRead(start, result == -1);
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long start = SystemClock.elapsedRealtime();
+            int result;
+            try {
+                result = super.read(buffer, offset, count);
+            } catch (final IOException e) {
+                onRead(start, false);
+                onEnd(true);
+                throw e;
+            }
+            onRead(start, result == -1);
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                onEnd(false);
+            }
+        }
+
+        /**
+         * Adds time spent in read operation to the span. Ends the span at the end of the stream if this stream owns it.
+         * 
+         * @param start Start time of the read operation.
+         * @param isEnd Whether the end of the stream is reached or reading failed.
+         */
+        private void onRead(long start, boolean isEnd) {
+            mSpan.addPhase(TraceSpan.PHASE_BODY, SystemClock.elapsedRealtime() - start);
+            if (isEnd) {
+                onEnd(false);
+            }
+        }
+
+        /**
+         * Ends the span if this stream owns it.
+         * 
+         * @param failed Whether reading failed.
+         */
+        private void onEnd(boolean failed) {
+            if (mEndsSpan) {
+                end(mSpan, failed);
+            }
+        }
+    }
+}
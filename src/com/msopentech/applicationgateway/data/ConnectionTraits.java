@@ -44,6 +44,16 @@ public class ConnectionTraits implements Serializable {
      */
     public String error;
 
+    /**
+     * Time (in milliseconds since epoch) the token expires at. Zero if unknown.
+     */
+    public long tokenExpiry;
+
+    /**
+     * Time (in milliseconds since epoch) the session expires at. Zero if unknown.
+     */
+    public long sessionExpiry;
+
     /**
      * Default constructor.
      */
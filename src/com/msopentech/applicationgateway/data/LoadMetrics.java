@@ -0,0 +1,173 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.data;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the requests intercepted in smart browser mode for a page load, a tab, a site or the whole application. Counters are
+ * updated without locking from the threads loading the resources.
+ */
+public class LoadMetrics implements Serializable {
+
+    /**
+     * UID required for serialization.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of requests.
+     */
+    private final AtomicLong mRequests = new AtomicLong();
+
+    /**
+     * Number of requests served without going to the gateway.
+     */
+    private final AtomicLong mCacheHits = new AtomicLong();
+
+    /**
+     * Encoded body bytes received from the gateway, once per gateway response.
+     */
+    private final AtomicLong mNetworkBytes = new AtomicLong();
+
+    /**
+     * Decoded body bytes of the responses that did not come from the cache.
+     */
+    private final AtomicLong mDecodedBytes = new AtomicLong();
+
+    /**
+     * Body bytes served without going to the gateway.
+     */
+    private final AtomicLong mCacheBytes = new AtomicLong();
+
+    /**
+     * Total time (in milliseconds) from the request to the response headers.
+     */
+    private final AtomicLong mHeadersTime = new AtomicLong();
+
+    /**
+     * Number of bodies read to the end.
+     */
+    private final AtomicLong mBodies = new AtomicLong();
+
+    /**
+     * Total time (in milliseconds) from the request to the last body byte of the bodies read to the end.
+     */
+    private final AtomicLong mLastByteTime = new AtomicLong();
+
+    /**
+     * Records the response headers of a request.
+     * 
+     * @param fromCache Indicates whether the response is served without going to the gateway.
+     * @param headersTime Time (in milliseconds) from the request to the response headers.
+     */
+    public void onHeaders(boolean fromCache, long headersTime) {
+        mRequests.incrementAndGet();
+        if (fromCache) {
+            mCacheHits.incrementAndGet();
+        }
+        mHeadersTime.addAndGet(headersTime);
+    }
+
+    /**
+     * Records the body of a request.
+     * 
+     * @param fromCache Indicates whether the response is served without going to the gateway.
+     * @param bytes Number of decoded body bytes read.
+     * @param lastByteTime Time (in milliseconds) from the request to the last body byte or -1 if the body has not been read to the
+     *            end.
+     */
+    public void onBody(boolean fromCache, long bytes, long lastByteTime) {
+        (fromCache ? mCacheBytes : mDecodedBytes).addAndGet(bytes);
+        if (lastByteTime >= 0) {
+            mBodies.incrementAndGet();
+            mLastByteTime.addAndGet(lastByteTime);
+        }
+    }
+
+    /**
+     * Records the encoded body of a gateway response.
+     * 
+     * @param bytes Number of body bytes received from the gateway.
+     */
+    public void onNetworkBody(long bytes) {
+        mNetworkBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Returns the number of requests.
+     * 
+     * @return Request count.
+     */
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * Returns the share of requests served without going to the gateway.
+     * 
+     * @return Percentage (range 0-100).
+     */
+    public int getCacheHitRatio() {
+        long requests = mRequests.get();
+        return requests == 0 ? 0 : (int) (mCacheHits.get() * 100 / requests);
+    }
+
+    /**
+     * Returns the body bytes received from the gateway. Compressed bodies are counted compressed, a body shared by several requests
+     * for the same URL is counted once.
+     * 
+     * @return Byte count.
+     */
+    public long getNetworkBytes() {
+        return mNetworkBytes.get();
+    }
+
+    /**
+     * Returns the decoded body bytes of the responses that did not come from the cache, including requests that shared another
+     * request's body.
+     * 
+     * @return Byte count.
+     */
+    public long getDecodedBytes() {
+        return mDecodedBytes.get();
+    }
+
+    /**
+     * Returns the body bytes served without going to the gateway.
+     * 
+     * @return Byte count.
+     */
+    public long getCacheBytes() {
+        return mCacheBytes.get();
+    }
+
+    /**
+     * Returns the average time from the request to the response headers.
+     * 
+     * @return Time in milliseconds.
+     */
+    public long getAverageHeadersTime() {
+        long requests = mRequests.get();
+        return requests == 0 ? 0 : mHeadersTime.get() / requests;
+    }
+
+    /**
+     * Returns the average time from the request to the last body byte.
+     * 
+     * @return Time in milliseconds.
+     */
+    public long getAverageLastByteTime() {
+        long bodies = mBodies.get();
+        return bodies == 0 ? 0 : mLastByteTime.get() / bodies;
+    }
+}
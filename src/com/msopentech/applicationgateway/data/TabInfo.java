@@ -60,6 +60,16 @@ public class TabInfo {
      */
     private ImageView mRightEdge;
 
+    /**
+     * Request metrics of the tab since it has been opened.
+     */
+    private final LoadMetrics mTabMetrics = new LoadMetrics();
+
+    /**
+     * Request metrics of the current page load.
+     */
+    private volatile LoadMetrics mPageMetrics = new LoadMetrics();
+
     /**
      * Default constructor.
      * 
@@ -170,4 +180,32 @@ public class TabInfo {
     public ImageView getRightEdge() {
         return mRightEdge;
     }
+
+    /**
+     * Retrieves request metrics of the tab since it has been opened.
+     * 
+     * @return Tab {@linkplain LoadMetrics}.
+     */
+    public LoadMetrics getTabMetrics() {
+        return mTabMetrics;
+    }
+
+    /**
+     * Retrieves request metrics of the current page load.
+     * 
+     * @return Page {@linkplain LoadMetrics}.
+     */
+    public LoadMetrics getPageMetrics() {
+        return mPageMetrics;
+    }
+
+    /**
+     * Starts request metrics of a new page load.
+     * 
+     * @return New page {@linkplain LoadMetrics}.
+     */
+    public LoadMetrics startPageMetrics() {
+        mPageMetrics = new LoadMetrics();
+        return mPageMetrics;
+    }
 }
\ No newline at end of file
@@ -32,6 +32,16 @@ public class URLInfo implements Serializable{
      */
     private String mPageName;
 
+    /**
+     * Time (in milliseconds since the epoch) the URL has been visited or bookmarked, 0 if unknown.
+     */
+    private long mTime;
+
+    /**
+     * Number of times the URL has been visited or bookmarked. 0 in items stored before it has been counted.
+     */
+    private int mVisitCount;
+
     /**
      * A class constructor.
      * 
@@ -41,6 +51,7 @@ public class URLInfo implements Serializable{
     public URLInfo(String urlAddress, String pageName) {
         mUrlAddress = urlAddress;
         mPageName = pageName;
+        mVisitCount = 1;
     }
 
     /**
@@ -76,4 +87,40 @@ public class URLInfo implements Serializable{
     public void setUrlAddress(String url) {
         mUrlAddress = url;
     }
+
+    /**
+     * Returns the time the URL has been visited or bookmarked.
+     * 
+     * @return Time in milliseconds since the epoch, 0 if unknown.
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * Sets the time the URL has been visited or bookmarked.
+     * 
+     * @param time Time in milliseconds since the epoch.
+     */
+    public void setTime(long time) {
+        mTime = time;
+    }
+
+    /**
+     * Returns the number of times the URL has been visited or bookmarked.
+     * 
+     * @return Visit count, at least 1.
+     */
+    public int getVisitCount() {
+        return Math.max(1, mVisitCount);
+    }
+
+    /**
+     * Sets the number of times the URL has been visited or bookmarked.
+     * 
+     * @param visitCount Visit count.
+     */
+    public void setVisitCount(int visitCount) {
+        mVisitCount = visitCount;
+    }
 }
@@ -0,0 +1,288 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compact binary encoding of {@linkplain URLInfo} items, used instead of Java serialization. Strings are written as their UTF-8
+ * length followed by the UTF-8 bytes, numbers as variable-length integers. The scheme and host of a URL are written once per stream
+ * and referred to by index afterwards, so a codec instance remembers the hosts seen so far: use one instance per stream and read the
+ * stream in the order it has been written.
+ */
+public class URLInfoCodec {
+
+    /**
+     * Version of the encoding. Streams should store it to detect data written by other versions.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Flag of an item having a page title.
+     */
+    private static final int FLAG_TITLE = 1;
+
+    /**
+     * Flag of an item having a time.
+     */
+    private static final int FLAG_TIME = 2;
+
+    /**
+     * Flag of an item visited more than once.
+     */
+    private static final int FLAG_VISITS = 4;
+
+    /**
+     * Maximum length (in bytes) of a string. Longer lengths mean the data is corrupt.
+     */
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    /**
+     * Hosts in the order they have been seen.
+     */
+    private final List<String> mHosts = new ArrayList<String>();
+
+    /**
+     * Indexes of the hosts in {@link #mHosts}.
+     */
+    private final HashMap<String, Integer> mHostIndexes = new HashMap<String, Integer>();
+
+    /**
+     * Writes the item.
+     * 
+     * @param out Stream to write to.
+     * @param info Item. Its URL must not be <code>null</code>.
+     * 
+     * @throws IOException If writing fails.
+     */
+    public void write(DataOutput out, URLInfo info) throws IOException {
+        String title = info.getPageName();
+        long time = info.getTime();
+        int visitCount = info.getVisitCount();
+        out.writeByte((title == null ? 0 : FLAG_TITLE) | (time == 0 ? 0 : FLAG_TIME) | (visitCount == 1 ? 0 : FLAG_VISITS));
+        writeUrl(out, info.getUrlAddress());
+        if (title != null) {
+            writeString(out, title);
+        }
+        if (time != 0) {
+            writeVarLong(out, time);
+        }
+        if (visitCount != 1) {
+            writeVarLong(out, visitCount);
+        }
+    }
+
+    /**
+     * Reads the item written by {@link #write(DataOutput, URLInfo)}.
+     * 
+     * @param in Stream to read from.
+     * 
+     * @return Item.
+     * 
+     * @throws IOException If reading fails or the data is corrupt.
+     */
+    public URLInfo read(DataInput in) throws IOException {
+        int flags = in.readUnsignedByte();
+        URLInfo info = new URLInfo(readUrl(in), (flags & FLAG_TITLE) == 0 ? null : readString(in));
+        if ((flags & FLAG_TIME) != 0) {
+            info.setTime(readVarLong(in));
+        }
+        if ((flags & FLAG_VISITS) != 0) {
+            long visitCount = readVarLong(in);
+            if (visitCount < 1 || visitCount > Integer.MAX_VALUE) {
+                throw new IOException("Invalid visit count " + visitCount);
+            }
+            info.setVisitCount((int) visitCount);
+        }
+        return info;
+    }
+
+    /**
+     * Writes the URL as the index of its host followed by the rest of the URL. A host written for the first time is written in full
+     * instead of the index.
+     * 
+     * @param out Stream to write to.
+     * @param url URL.
+     * 
+     * @throws IOException If writing fails.
+     */
+    public void writeUrl(DataOutput out, String url) throws IOException {
+        int hostEnd = getHostEnd(url);
+        String host = url.substring(0, hostEnd);
+        Integer index = mHostIndexes.get(host);
+        if (index == null) {
+            // 0 stands for a new host, written in full.
+            writeVarLong(out, 0);
+            writeString(out, host);
+            addHost(host);
+        } else {
+            writeVarLong(out, index + 1);
+        }
+        writeString(out, url.substring(hostEnd));
+    }
+
+    /**
+     * Reads the URL written by {@link #writeUrl(DataOutput, String)}.
+     * 
+     * @param in Stream to read from.
+     * 
+     * @return URL.
+     * 
+     * @throws IOException If reading fails or the data is corrupt.
+     */
+    public String readUrl(DataInput in) throws IOException {
+        long reference = readVarLong(in);
+        String host;
+        if (reference == 0) {
+            host = readString(in);
+            addHost(host);
+        } else if (reference <= mHosts.size()) {
+            host = mHosts.get((int) reference - 1);
+        } else {
+            throw new IOException("Unknown host " + reference);
+        }
+        return host + readString(in);
+    }
+
+    /**
+     * Returns the number of hosts seen so far.
+     * 
+     * @return Host count.
+     */
+    public int getHostCount() {
+        return mHosts.size();
+    }
+
+    /**
+     * Forgets the hosts seen after the given number of hosts, e.g. when the data they have been written with has been discarded.
+     * 
+     * @param count Number of hosts to keep.
+     */
+    public void truncateHosts(int count) {
+        while (mHosts.size() > count) {
+            mHostIndexes.remove(mHosts.remove(mHosts.size() - 1));
+        }
+    }
+
+    /**
+     * Writes the string as its UTF-8 length followed by the UTF-8 bytes. Unlike {@link DataOutput#writeUTF(String)} the length is
+     * not limited to 64 KB, which long URLs may exceed.
+     * 
+     * @param out Stream to write to.
+     * @param value String.
+     * 
+     * @throws IOException If writing fails.
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads the string written by {@link #writeString(DataOutput, String)}.
+     * 
+     * @param in Stream to read from.
+     * 
+     * @return String.
+     * 
+     * @throws IOException If reading fails or the length is invalid.
+     */
+    public static String readString(DataInput in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Writes the number in 7-bit groups, least significant first, the high bit of every byte but the last one set. Small numbers
+     * take one byte, times in milliseconds six.
+     * 
+     * @param out Stream to write to.
+     * @param value Number. Negative numbers take ten bytes.
+     * 
+     * @throws IOException If writing fails.
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads the number written by {@link #writeVarLong(DataOutput, long)}.
+     * 
+     * @param in Stream to read from.
+     * 
+     * @return Number.
+     * 
+     * @throws IOException If reading fails or the number is malformed.
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number");
+    }
+
+    /**
+     * Remembers the host.
+     * 
+     * @param host Host.
+     */
+    private void addHost(String host) {
+        mHostIndexes.put(host, mHosts.size());
+        mHosts.add(host);
+    }
+
+    /**
+     * Finds where the scheme and host of the URL end.
+     * 
+     * @param url URL.
+     * 
+     * @return Index of the first character of the path, query or fragment, 0 if the URL has no scheme.
+     */
+    private static int getHostEnd(String url) {
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd <= 0) {
+            return 0;
+        }
+        for (int i = 0; i < schemeEnd; i++) {
+            char c = url.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '+' && c != '-' && c != '.') {
+                return 0;
+            }
+        }
+        for (int i = schemeEnd + 3; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return url.length();
+    }
+}
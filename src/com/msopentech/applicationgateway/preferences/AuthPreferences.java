@@ -63,6 +63,16 @@ public class AuthPreferences {
      * Preference key to get boolean for whether we are using smart browser.
      */	
     private static String USE_SMART_BROWSER_KEY = "use_smart_browser";
+
+    /**
+     * Preference key to get boolean for whether connections are warmed up while sign-in screen is shown.
+     */	
+    private static String WARM_UP_CONNECTIONS_KEY = "warm_up_connections";
+
+    /**
+     * Preference key to get boolean for whether likely next pages are loaded in advance in smart browser mode.
+     */	
+    private static String PREFETCH_PAGES_KEY = "prefetch_pages";
     
     /**
      * Static default shared preferences instance.
@@ -248,6 +258,64 @@ public class AuthPreferences {
         }
         return false;
     }
+
+    /**
+     * Stores preferred indicator as to whether or not connections are warmed up while sign-in screen is shown.
+     * 
+     * @param boolean warm up connections.
+     */
+    public static void storeWarmUpConnections(Boolean warmUpConnections){
+        try {
+            SharedPreferences.Editor editor = mPreferences.edit();
+            editor.putBoolean(WARM_UP_CONNECTIONS_KEY, warmUpConnections);
+            editor.commit();
+        } catch (final Exception e) {
+            Utility.showAlertDialog(AuthPreferences.class.getSimpleName() + ".storeWarmUpConnections(): Failed. " + e.toString(), ApplicationGateway.getAppContext());
+        }
+    }
+
+    /**
+     * Returns preferred indicator as to whether or not connections are warmed up while sign-in screen is shown.
+     * 
+     * @return boolean warm up connections.
+     */
+    public static Boolean loadWarmUpConnections(){
+        try {
+            return mPreferences.getBoolean(WARM_UP_CONNECTIONS_KEY, true);
+        } catch (final Exception e) {
+            Utility.showAlertDialog(AuthPreferences.class.getSimpleName() + ".loadWarmUpConnections(): Failed. " + e.toString(), ApplicationGateway.getAppContext());
+        }
+        return true;
+    }
+
+    /**
+     * Stores preferred indicator as to whether or not likely next pages are loaded in advance in smart browser mode.
+     * 
+     * @param boolean prefetch pages.
+     */
+    public static void storePrefetchPages(Boolean prefetchPages){
+        try {
+            SharedPreferences.Editor editor = mPreferences.edit();
+            editor.putBoolean(PREFETCH_PAGES_KEY, prefetchPages);
+            editor.commit();
+        } catch (final Exception e) {
+            Utility.showAlertDialog(AuthPreferences.class.getSimpleName() + ".storePrefetchPages(): Failed. " + e.toString(), ApplicationGateway.getAppContext());
+        }
+    }
+
+    /**
+     * Returns preferred indicator as to whether or not likely next pages are loaded in advance in smart browser mode.
+     * 
+     * @return boolean prefetch pages.
+     */
+    public static Boolean loadPrefetchPages(){
+        try {
+            return mPreferences.getBoolean(PREFETCH_PAGES_KEY, false);
+        } catch (final Exception e) {
+            Utility.showAlertDialog(AuthPreferences.class.getSimpleName() + ".loadPrefetchPages(): Failed. " + e.toString(), ApplicationGateway.getAppContext());
+        }
+        return false;
+    }
     
     /**
      * Private constructor to prevent creating new instance of the class.
@@ -10,10 +10,9 @@
  */
 package com.msopentech.applicationgateway.preferences;
 
-import java.util.HashMap;
 import java.util.Map;
 
-import android.text.TextUtils;
+import android.content.Context;
 
 import com.msopentech.applicationgateway.ApplicationGateway;
 import com.msopentech.applicationgateway.data.URLCollection;
@@ -21,7 +20,8 @@ import com.msopentech.applicationgateway.utils.LocalPersistence;
 import com.msopentech.applicationgateway.utils.Utility;
 
 /**
- * Implements bookmarks preferences.
+ * Implements bookmarks preferences. Bookmarks used to be stored as a serialized {@linkplain Map} of {@linkplain URLCollection} by
+ * Agent ID, they are now kept by {@link PersistenceManager} and the file is only read once to move them.
  */
 public class BookmarksPreferences {
 
@@ -30,63 +30,32 @@ public class BookmarksPreferences {
      */
     private static final String FILENAME = "com.msopentech.applicationgateway.bookmarks";
 
-    /**
-     * Stores a bookmarks {@linkplain URLCollection} in a file.
-     * 
-     * @param boormarks A {@linkplain URLCollection} which contains bookmarks.
-     * @param agentId Proxy Agent ID.
-     */
-    public static void storeBookmarks(URLCollection agentBookmarks, String agentId){
-        try{
-            if(agentBookmarks == null || TextUtils.isEmpty(agentId)) return;
-
-            Map<String, URLCollection> bookmarks = loadBookmarks();
-            if(bookmarks == null) bookmarks = new HashMap<String, URLCollection>();
-            bookmarks.put(agentId, agentBookmarks);            
-            LocalPersistence.writeObjectToFile(ApplicationGateway.getAppContext(), bookmarks, FILENAME);
-        } catch(Exception e) {
-            Utility.showAlertDialog(e.toString(), ApplicationGateway.getAppContext());
-        }
-    }
-
-    /**
-     * Returns a bookmarks {@linkplain URLCollection} for a specific Agent from from a file.
-     * 
-     * @param agentId Proxy Agent ID.
-     * 
-     * @return Initialized {@linkplain URLCollection} instance. In case of exception returns <code>null</code>.
-     */
-    public static URLCollection loadBookmarks(String agentId) {
-        URLCollection agentBookmarks = null;
-        try{
-            if(TextUtils.isEmpty(agentId)) return null;
-
-            Map<String, URLCollection> bookmarks = loadBookmarks();
-            if(bookmarks != null && !bookmarks.isEmpty()) {
-                agentBookmarks = bookmarks.get(agentId);
-            }
-        } catch(Exception e) {
-            Utility.showAlertDialog(e.toString(), ApplicationGateway.getAppContext());
-        }
-        return agentBookmarks;
-    }
-
     /**
      * Returns a bookmarks {@linkplain Map} from from a file.
      * 
-     * @return Initialized {@linkplain Map} instance. In case of exception returns <code>null</code>.
-     */    
+     * @return Initialized {@linkplain Map} instance. In case of exception or if there is no file returns <code>null</code>.
+     */
     @SuppressWarnings("unchecked")
     public static Map<String, URLCollection> loadBookmarks() {
         Map<String, URLCollection> bookmarks = null;
         try{
-            bookmarks = (Map<String, URLCollection>) LocalPersistence.readObjectFromFile(ApplicationGateway.getAppContext(), FILENAME);
+            Context context = ApplicationGateway.getAppContext();
+            if (context.getFileStreamPath(FILENAME).exists()) {
+                bookmarks = (Map<String, URLCollection>) LocalPersistence.readObjectFromFile(context, FILENAME);
+            }
         } catch(Exception e) {
             Utility.showAlertDialog(e.toString(), ApplicationGateway.getAppContext());
         }
         return bookmarks;
     }
 
+    /**
+     * Deletes the bookmarks file once its content is stored elsewhere.
+     */
+    public static void deleteBookmarks() {
+        ApplicationGateway.getAppContext().deleteFile(FILENAME);
+    }
+
     /**
      *  A private constructor to prevent creating new instance of the class.
      */
@@ -10,13 +10,16 @@
  */
 package com.msopentech.applicationgateway.preferences;
 
+import android.content.Context;
+
 import com.msopentech.applicationgateway.ApplicationGateway;
 import com.msopentech.applicationgateway.data.URLCollection;
 import com.msopentech.applicationgateway.utils.LocalPersistence;
 import com.msopentech.applicationgateway.utils.Utility;
 
 /**
- * Implements history preferences.
+ * Implements history preferences. History used to be stored as a serialized {@linkplain URLCollection}, it is now kept by
+ * {@link PersistenceManager} and the file is only read once to move it.
  */
 public class HistoryPreferences {
 
@@ -25,34 +28,31 @@ public class HistoryPreferences {
      */
     private static final String FILENAME = "com.msopentech.applicationgateway.history";
 
-    /**
-     * Stores a history {@linkplain URLCollection} in a file.
-     * 
-     * @param boormarks A {@linkplain URLCollection} which contains history.
-     */
-    public static void storeHistory(URLCollection bookmarks){
-        try{
-            LocalPersistence.writeObjectToFile(ApplicationGateway.getAppContext(), bookmarks, FILENAME);
-        } catch(Exception e) {
-            Utility.showAlertDialog(e.toString(), ApplicationGateway.getAppContext());
-        }
-    }
-
     /**
      * Returns a history {@linkplain URLCollection} from from a file.
      * 
-     * @return Initialized {@linkplain URLCollection} instance. In case of exception returns <code>null</code>.
+     * @return Initialized {@linkplain URLCollection} instance. In case of exception or if there is no file returns <code>null</code>.
      */
     public static URLCollection loadHistory() {
         URLCollection history = null;
         try{
-            history = (URLCollection)LocalPersistence.readObjectFromFile(ApplicationGateway.getAppContext(), FILENAME);
+            Context context = ApplicationGateway.getAppContext();
+            if (context.getFileStreamPath(FILENAME).exists()) {
+                history = (URLCollection)LocalPersistence.readObjectFromFile(context, FILENAME);
+            }
         } catch(Exception e) {
             Utility.showAlertDialog(e.toString(), ApplicationGateway.getAppContext());
         }
         return history;
     }
 
+    /**
+     * Deletes the history file once its content is stored elsewhere.
+     */
+    public static void deleteHistory() {
+        ApplicationGateway.getAppContext().deleteFile(FILENAME);
+    }
+
     /**
      *  A private constructor to prevent creating new instance of the class.
      */
@@ -10,16 +10,22 @@
  */
 package com.msopentech.applicationgateway.preferences;
 
-import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
+import android.text.TextUtils;
+import android.util.Log;
+
 import com.msopentech.applicationgateway.ApplicationGateway;
 import com.msopentech.applicationgateway.data.URLCollection;
 import com.msopentech.applicationgateway.data.URLInfo;
 import com.msopentech.applicationgateway.utils.Utility;
 
 /**
- * Implements a wrapper for the user's data. 
+ * Implements a wrapper for the user's data. History and bookmarks are indexed by URL, so a URL is stored once and adding it again
+ * makes it the newest record and counts another visit (see {@link URLInfo#getVisitCount()}). Every change is appended to a log instead of rewriting the stored collection.
  */
 public class PersistenceManager {
     /**
@@ -37,14 +43,24 @@ public class PersistenceManager {
     }
 
     /**
-     * A memory storage for bookmarks.
+     * Name of the history log.
+     */
+    private static final String HISTORY_LOG = "history";
+
+    /**
+     * Prefix of the bookmarks log names, followed by the agent ID.
+     */
+    private static final String BOOKMARKS_LOG_PREFIX = "bookmarks:";
+
+    /**
+     * A storage for bookmarks of the current agent.
      */
-    private static Vector<URLInfo> sBookmarks;
+    private static RecordStore sBookmarks;
 
     /**
-     * A memory storage for history.
+     * A storage for history.
      */
-    private static Vector<URLInfo> sHistory;
+    private static RecordStore sHistory;
 
     /**
      * A composite storage for history and bookmarks used for suggestions.
@@ -76,38 +92,114 @@ public class PersistenceManager {
     public static void initialize(String agentId) {
         try {
             sAgentId = agentId;
-            URLCollection bookmarksContainer = BookmarksPreferences.loadBookmarks(sAgentId);
-            URLCollection historyContainer = HistoryPreferences.loadHistory();
-            if (bookmarksContainer == null) {
-                sBookmarks = new Vector<URLInfo>();
-            } else {
-                sBookmarks = new Vector<URLInfo>(Arrays.asList(bookmarksContainer.getData()));
+            if (sHistory == null) {
+                sHistory = new RecordStore(HISTORY_LOG);
+                migrateSerializedContent(sHistory.load());
             }
 
-            if (historyContainer == null) {
-                sHistory = new Vector<URLInfo>();
-            } else {
-                sHistory = new Vector<URLInfo>(Arrays.asList(historyContainer.getData()));
+            // Bookmarks without an agent are not persisted.
+            if (sBookmarks != null) {
+                sBookmarks.flush();
             }
+            sBookmarks = new RecordStore(TextUtils.isEmpty(sAgentId) ? null : BOOKMARKS_LOG_PREFIX + sAgentId);
+            sBookmarks.load();
 
-            if (!sBookmarks.isEmpty()) {
-                for (int i = 0; i < sBookmarks.size(); i++) {
-                    sSuggestionsStorage.add(sBookmarks.elementAt(i).getUrlAddress());
+            Set<String> urls = new HashSet<String>();
+            sSuggestionsStorage.clear();
+            for (URLInfo record : sBookmarks.toArray()) {
+                if (urls.add(record.getUrlAddress())) {
+                    sSuggestionsStorage.add(record.getUrlAddress());
                 }
             }
-
-            if (!sHistory.isEmpty()) {
-                String url;
-                for (int i = 0; i < sHistory.size(); i++) {
-                    url = sHistory.elementAt(i).getUrlAddress();
-                    if (!sSuggestionsStorage.contains(url)) sSuggestionsStorage.add(url);
+            for (URLInfo record : sHistory.toArray()) {
+                if (urls.add(record.getUrlAddress())) {
+                    sSuggestionsStorage.add(record.getUrlAddress());
                 }
             }
+            if (sHost != null) {
+                sHost.onSuggestionsListChanged();
+            }
         } catch (final Exception e) {
             Utility.showAlertDialog(PersistenceManager.class.getSimpleName() + ".static block: Failed. " + e.toString(), ApplicationGateway.getAppContext());
         }
     }
 
+    /**
+     * Moves history and bookmarks of all agents stored as serialized collections into the logs. A serialized file is deleted once
+     * its content is written, so it is read only once. Content already stored in a log is not replaced.
+     * 
+     * @param hasHistoryLog Indicates whether the history log exists.
+     * 
+     * @throws Exception If loading fails.
+     */
+    private static void migrateSerializedContent(boolean hasHistoryLog) throws Exception {
+        URLCollection historyContainer = HistoryPreferences.loadHistory();
+        if (historyContainer != null) {
+            if (!hasHistoryLog) {
+                sHistory.reset(historyContainer.getData());
+            }
+            if (sHistory.flush()) {
+                HistoryPreferences.deleteHistory();
+            }
+        }
+
+        Map<String, URLCollection> bookmarks = BookmarksPreferences.loadBookmarks();
+        if (bookmarks != null) {
+            boolean isMoved = true;
+            for (Map.Entry<String, URLCollection> agentBookmarks : bookmarks.entrySet()) {
+                RecordStore store = new RecordStore(BOOKMARKS_LOG_PREFIX + agentBookmarks.getKey());
+                if (agentBookmarks.getValue() != null && !store.load()) {
+                    store.reset(agentBookmarks.getValue().getData());
+                    isMoved &= store.flush();
+                }
+            }
+            if (isMoved) {
+                BookmarksPreferences.deleteBookmarks();
+            }
+        }
+    }
+
+    /**
+     * Sets the time changes wait to be written, so that a burst of changes is written at once. Defaults to
+     * {@value RecordStore#DEFAULT_WRITE_DELAY} ms.
+     * 
+     * @param delay Time in milliseconds. 0 writes every change right away.
+     */
+    public static void setWriteDelay(long delay) {
+        RecordStore.setWriteDelay(delay);
+    }
+
+    /**
+     * Writes the pending changes of history and bookmarks and waits for the write to finish. Called when the user leaves an
+     * activity, as the process may be killed afterwards.
+     */
+    public static void flush() {
+        try {
+            sHistory.flush();
+            sBookmarks.flush();
+        } catch (final Exception e) {
+            Log.e(PersistenceManager.class.getSimpleName(), "flush(): Failed. " + e.toString());
+        }
+    }
+
+    /**
+     * Returns the number of changes made to history and bookmarks.
+     * 
+     * @return Change count.
+     */
+    public static long getChangeCount() {
+        return RecordStore.getChangeCount();
+    }
+
+    /**
+     * Returns the number of writes the changes to history and bookmarks have been merged into.
+     * 
+     * @return Write count.
+     */
+    public static long getWriteCount() {
+        return RecordStore.getWriteCount();
+    }
+
     /**
      * The incoming URL may have a prefix like "www", "wap" or some other. It must be deleted before adding the record. The worst case may
      * be like http://www.yandex.net.ru/. WebViewClient always adds '/' after the URL.
@@ -154,32 +246,32 @@ public class PersistenceManager {
      */
     public static void addRecord(ContentType what, URLInfo data) {
         try {
+            String urlToAdd = data.getUrlAddress();
+            if (urlToAdd == null || urlToAdd.isEmpty()) {
+                return;
+            }
+            data.setTime(System.currentTimeMillis());
+
             switch (what) {
                 case HISTORY: {
-                    String urlToAdd = data.getUrlAddress();
-                    if(urlToAdd == null || urlToAdd.isEmpty()) {
-                        return;
-                    }
-        
                     String formattedUrl = handleUrlPrefix(urlToAdd);
         
-                    if (!sHistory.isEmpty() && formattedUrl.equals(sHistory.elementAt(sHistory.size() - 1).getUrlAddress())) {
+                    if (sHistory.isLast(formattedUrl)) {
                         return;
                     }
                     
                     data.setUrlAddress(formattedUrl);
-                    sHistory.add(data);
+                    sHistory.put(data);
                     break;
                 }
                 case BOOKMARKS: {
-                    sBookmarks.add(data);
+                    sBookmarks.put(data);
                     break;
                 }
                 default: {
                     return;
                 }
             }
-            updateRecordsInFile(what);
             updateSuggestionsStorage(data.getUrlAddress(), false);
         } catch (final Exception e) {
             Utility.showAlertDialog(PersistenceManager.class.getSimpleName() + ".addRecord(): Failed. " + e.toString(), ApplicationGateway.getAppContext());
@@ -197,13 +289,11 @@ public class PersistenceManager {
         try {
             switch (what) {
                 case HISTORY: {
-                    values = new URLInfo[sHistory.size()];
-                    sHistory.toArray(values);
+                    values = sHistory.toArray();
                     break;
                 }
                 case BOOKMARKS: {
-                    values = new URLInfo[sBookmarks.size()];
-                    sBookmarks.toArray(values);
+                    values = sBookmarks.toArray();
                     break;
                 }
             }
@@ -214,13 +304,17 @@ public class PersistenceManager {
     }
 
     /**
-     * Updates the storage ensuring it always has unique items.
+     * Updates the storage ensuring it always has unique items. A deleted url is kept while the other storage still has it.
      * 
      * @param url A new url.
      * @param onDeletion false to add an item, true to delete it.
      */
     private static void updateSuggestionsStorage(String url, boolean onDeletion) {
         try {
+            if (onDeletion && (sHistory.contains(url) || sBookmarks.contains(url))) {
+                return;
+            }
+
             int elementIndex = sSuggestionsStorage.indexOf(url);
 
             if (onDeletion) {
@@ -258,18 +352,17 @@ public class PersistenceManager {
         try {
             switch (what) {
                 case HISTORY: {
-                    sHistory.remove(url);
+                    sHistory.remove(url.getUrlAddress());
                     break;
                 }
                 case BOOKMARKS: {
-                    sBookmarks.remove(url);
+                    sBookmarks.remove(url.getUrlAddress());
                     break;
                 }
                 default: {
                     return;
                 }
             }
-            updateRecordsInFile(what);
             updateSuggestionsStorage(url.getUrlAddress(), true);
         } catch (final Exception e) {
             Utility.showAlertDialog(PersistenceManager.class.getSimpleName() + ".deleteRecordByUrl(): Failed. " + e.toString(), ApplicationGateway.getAppContext());
@@ -292,14 +385,17 @@ public class PersistenceManager {
      */
     public static void dropContent(ContentType what) {
         try {
-            Vector<URLInfo> affectedStorage;
+            RecordStore affectedStorage;
+            RecordStore otherStorage;
             switch (what) {
                 case HISTORY: {
                     affectedStorage = sHistory;
+                    otherStorage = sBookmarks;
                     break;
                 }
                 case BOOKMARKS: {
                     affectedStorage = sBookmarks;
+                    otherStorage = sHistory;
                     break;
                 }
                 default: {
@@ -307,45 +403,27 @@ public class PersistenceManager {
                 }
             }
 
-            String url;
-            int elementIndex;
-            for (int i = 0; i < affectedStorage.size(); i++) {
-                url = affectedStorage.elementAt(i).getUrlAddress();
-                elementIndex = sSuggestionsStorage.indexOf(url);
-                if (elementIndex != -1) {
-                    sSuggestionsStorage.remove(elementIndex);
+            Set<String> deleted = new HashSet<String>();
+            for (URLInfo record : affectedStorage.toArray()) {
+                if (!otherStorage.contains(record.getUrlAddress())) {
+                    deleted.add(record.getUrlAddress());
                 }
             }
+            if (!deleted.isEmpty()) {
+                // Single pass, removing the urls one by one would shift the rest of the storage every time.
+                Vector<String> kept = new Vector<String>(sSuggestionsStorage.size());
+                for (String url : sSuggestionsStorage) {
+                    if (!deleted.contains(url)) {
+                        kept.add(url);
+                    }
+                }
+                sSuggestionsStorage.clear();
+                sSuggestionsStorage.addAll(kept);
+            }
             affectedStorage.clear();
             sHost.onSuggestionsListChanged();
-            updateRecordsInFile(what);
         } catch (final Exception e) {
             Utility.showAlertDialog(PersistenceManager.class.getSimpleName() + ".dropContent(): Failed. " + e.toString(), ApplicationGateway.getAppContext());
         }
     }
-
-    /**
-     * Updates the data in the file when it becomes "dirty".
-     */
-    private static void updateRecordsInFile(ContentType what) {
-        try {
-            URLInfo[] values;
-            switch (what) {
-                case HISTORY: {
-                    values = new URLInfo[sHistory.size()];
-                    sHistory.toArray(values);
-                    HistoryPreferences.storeHistory(new URLCollection(values));
-                    break;
-                }
-                case BOOKMARKS: {
-                    values = new URLInfo[sBookmarks.size()];
-                    sBookmarks.toArray(values);
-                    BookmarksPreferences.storeBookmarks(new URLCollection(values), sAgentId);
-                    break;
-                }
-            }
-        } catch (final Exception e) {
-            Utility.showAlertDialog(PersistenceManager.class.getSimpleName() + ".updateRecordsInFile(): Failed. " + e.toString(), ApplicationGateway.getAppContext());
-        }
-    }
 }
@@ -0,0 +1,703 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.preferences;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.msopentech.applicationgateway.ApplicationGateway;
+import com.msopentech.applicationgateway.data.URLInfo;
+import com.msopentech.applicationgateway.data.URLInfoCodec;
+
+/**
+ * Keeps history or bookmarks records indexed by URL and persists the changes as records appended to a log file, so that a change
+ * never rewrites the whole collection. Changes are written behind: the ones made within the write delay are merged and written
+ * together with a single sync, a change overriding an earlier pending change of the same URL replaces it. The log is replayed on
+ * load and compacted in the background once it holds many more records than there are live ones. All file operations run on one
+ * background thread. Not thread safe, must be used from the main thread.
+ */
+class RecordStore {
+
+    /**
+     * Name of the directory (in the application files directory) the logs are kept in.
+     */
+    private static final String DIRECTORY_NAME = "records";
+
+    /**
+     * Value the log starts with, followed by {@link URLInfoCodec#VERSION}.
+     */
+    private static final int MAGIC = 0x4147524C;
+
+    /**
+     * Log record adding a URL or replacing its title. The URL becomes the newest record.
+     */
+    private static final int OP_PUT = 1;
+
+    /**
+     * Log record removing a URL.
+     */
+    private static final int OP_REMOVE = 2;
+
+    /**
+     * Log record removing all URLs.
+     */
+    private static final int OP_CLEAR = 3;
+
+    /**
+     * Number of log records below which the log is never compacted.
+     */
+    private static final int COMPACTION_THRESHOLD = 256;
+
+    /**
+     * Suffix of the compacted log being written.
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Default time (in milliseconds) changes wait to be written, so that a burst of changes is written at once.
+     */
+    static final long DEFAULT_WRITE_DELAY = 2000;
+
+    /**
+     * Pending change removing a URL.
+     */
+    private static final URLInfo REMOVED = new URLInfo(null, null);
+
+    /**
+     * Thread the logs are read and written on.
+     */
+    private static final ScheduledExecutorService sExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, RecordStore.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Number of changes made to the persisted stores.
+     */
+    private static final AtomicLong sChanges = new AtomicLong();
+
+    /**
+     * Number of writes to the logs.
+     */
+    private static final AtomicLong sWrites = new AtomicLong();
+
+    /**
+     * Time (in milliseconds) changes wait to be written.
+     */
+    private static volatile long sWriteDelay = DEFAULT_WRITE_DELAY;
+
+    /**
+     * Records by URL, oldest first.
+     */
+    private final LinkedHashMap<String, URLInfo> mRecords = new LinkedHashMap<String, URLInfo>();
+
+    /**
+     * Log file or <code>null</code> if the records are kept in memory only.
+     */
+    private final File mFile;
+
+    /**
+     * URL of the newest record or <code>null</code> if unknown.
+     */
+    private String mLastUrl;
+
+    /**
+     * Number of records in the log, including the ones overridden by later records.
+     */
+    private int mLogRecords;
+
+    /**
+     * Changes not written yet by URL, oldest first. {@link #REMOVED} stands for a removal. Also guards the rest of the pending state.
+     */
+    private final LinkedHashMap<String, URLInfo> mPending = new LinkedHashMap<String, URLInfo>();
+
+    /**
+     * Indicates whether the log has to be cleared before the pending changes are written.
+     */
+    private boolean mIsClearPending;
+
+    /**
+     * Records the log has to be rewritten with before the pending changes are written or <code>null</code> if it is not compacted.
+     */
+    private URLInfo[] mPendingSnapshot;
+
+    /**
+     * Indicates whether the pending changes are scheduled to be written.
+     */
+    private boolean mIsWriteScheduled;
+
+    /**
+     * Indicates whether a write has failed, so the log may have lost changes and has to be rewritten.
+     */
+    private volatile boolean mIsWriteFailed;
+
+    /**
+     * Writes the pending changes.
+     */
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    /**
+     * Length (in bytes) of the valid part of the log. Anything past it is left over from an interrupted write and is overwritten by
+     * the next record. Only accessed on the background thread.
+     */
+    private long mValidLength;
+
+    /**
+     * Codec of the records in the log, knows the hosts written to the valid part of the log. Only accessed on the background thread.
+     */
+    private URLInfoCodec mCodec;
+
+    /**
+     * Default constructor.
+     * 
+     * @param name Log name or <code>null</code> to keep the records in memory only. Any string can be used, it is hashed into the
+     *            file name.
+     */
+    RecordStore(String name) {
+        mFile = name == null ? null : new File(new File(ApplicationGateway.getAppContext().getFilesDir(), DIRECTORY_NAME), toFileName(name));
+    }
+
+    /**
+     * Returns the log file.
+     * 
+     * @return Log file or <code>null</code> if the records are kept in memory only.
+     */
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Sets the time changes wait to be written. Longer delays merge more changes into a write, but more changes are lost if the
+     * process is killed before {@link #flush()}.
+     * 
+     * @param delay Time in milliseconds.
+     */
+    static void setWriteDelay(long delay) {
+        sWriteDelay = Math.max(0, delay);
+    }
+
+    /**
+     * Returns the number of changes made to the persisted stores.
+     * 
+     * @return Change count.
+     */
+    static long getChangeCount() {
+        return sChanges.get();
+    }
+
+    /**
+     * Returns the number of writes to the logs.
+     * 
+     * @return Write count.
+     */
+    static long getWriteCount() {
+        return sWrites.get();
+    }
+
+    /**
+     * Replays the log. Pending changes of other stores using the same log must be flushed first (see {@link #flush()}).
+     * 
+     * @return <code>true</code> if the log exists, <code>false</code> if the records have never been stored.
+     * 
+     * @throws Exception If reading fails.
+     */
+    boolean load() throws Exception {
+        if (mFile == null) {
+            return false;
+        }
+        return sExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return replay();
+            }
+        }).get();
+    }
+
+    /**
+     * Replaces all records and rewrites the log, e.g. to store records loaded from elsewhere.
+     * 
+     * @param records Records, oldest first. A later record with the same URL replaces the earlier one and adds up their visits.
+     */
+    void reset(URLInfo[] records) {
+        mRecords.clear();
+        mLastUrl = null;
+        for (URLInfo record : records) {
+            if (record != null && record.getUrlAddress() != null) {
+                index(record);
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Adds the record as the newest one, replacing the record with the same URL. The visits of the replaced record are added to the
+     * visits of the record.
+     * 
+     * @param record Record.
+     * 
+     * @return Replaced record or <code>null</code> if the URL has not been stored.
+     */
+    URLInfo put(URLInfo record) {
+        URLInfo previous = index(record);
+        enqueue(record.getUrlAddress(), record);
+        return previous;
+    }
+
+    /**
+     * Removes the record with the URL.
+     * 
+     * @param url URL.
+     * 
+     * @return Removed record or <code>null</code> if the URL is not stored.
+     */
+    URLInfo remove(String url) {
+        URLInfo previous = mRecords.remove(url);
+        if (previous == null) {
+            return null;
+        }
+        if (url.equals(mLastUrl)) {
+            mLastUrl = null;
+        }
+        enqueue(url, REMOVED);
+        return previous;
+    }
+
+    /**
+     * Removes all records.
+     */
+    void clear() {
+        if (mRecords.isEmpty()) {
+            return;
+        }
+        mRecords.clear();
+        mLastUrl = null;
+        enqueue(null, null);
+    }
+
+    /**
+     * Checks whether the URL is stored.
+     * 
+     * @param url URL.
+     * 
+     * @return <code>true</code> if there is a record with the URL.
+     */
+    boolean contains(String url) {
+        return mRecords.containsKey(url);
+    }
+
+    /**
+     * Checks whether the URL is the newest record.
+     * 
+     * @param url URL.
+     * 
+     * @return <code>true</code> if the record with the URL has been added last and not removed since.
+     */
+    boolean isLast(String url) {
+        return url.equals(mLastUrl);
+    }
+
+    /**
+     * Returns all records.
+     * 
+     * @return Records, oldest first.
+     */
+    URLInfo[] toArray() {
+        return mRecords.values().toArray(new URLInfo[mRecords.size()]);
+    }
+
+    /**
+     * Makes the record the newest one, replacing the record with the same URL and adding up their visits.
+     * 
+     * @param record Record.
+     * 
+     * @return Replaced record or <code>null</code> if the URL has not been stored.
+     */
+    private URLInfo index(URLInfo record) {
+        String url = record.getUrlAddress();
+        URLInfo previous = mRecords.remove(url);
+        if (previous != null) {
+            record.setVisitCount(previous.getVisitCount() + record.getVisitCount());
+        }
+        mRecords.put(url, record);
+        mLastUrl = url;
+        return previous;
+    }
+
+    /**
+     * Writes the pending changes now and waits for the write to finish.
+     * 
+     * @return <code>true</code> if all changes are written.
+     * 
+     * @throws Exception If waiting fails.
+     */
+    boolean flush() throws Exception {
+        if (mFile == null) {
+            return true;
+        }
+        if (mIsWriteFailed) {
+            compact();
+        }
+        sExecutor.submit(mWriteTask).get();
+        return !mIsWriteFailed;
+    }
+
+    /**
+     * Adds the change to the pending ones and schedules them to be written. The log is compacted instead if it has grown too much or
+     * the last write has failed.
+     * 
+     * @param url URL or <code>null</code> to clear the log.
+     * @param record Added record, {@link #REMOVED} or <code>null</code> to clear the log.
+     */
+    private void enqueue(String url, URLInfo record) {
+        if (mFile == null) {
+            return;
+        }
+        sChanges.incrementAndGet();
+        if (mIsWriteFailed || (++mLogRecords > COMPACTION_THRESHOLD && mLogRecords > 2 * mRecords.size())) {
+            compact();
+            return;
+        }
+        synchronized (mPending) {
+            if (url == null) {
+                mPending.clear();
+                mIsClearPending = true;
+            } else {
+                mPending.remove(url);
+                mPending.put(url, record);
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * Replaces the pending changes with rewriting the log with the live records. The new log replaces the old one only once it is
+     * completely written.
+     */
+    private void compact() {
+        if (mFile == null) {
+            return;
+        }
+        URLInfo[] records = toArray();
+        mLogRecords = records.length;
+        mIsWriteFailed = false;
+        synchronized (mPending) {
+            mPending.clear();
+            mIsClearPending = false;
+            mPendingSnapshot = records;
+            schedule();
+        }
+    }
+
+    /**
+     * Schedules the pending changes to be written unless they are already. Must be called while holding the pending changes lock.
+     */
+    private void schedule() {
+        if (!mIsWriteScheduled) {
+            mIsWriteScheduled = true;
+            sExecutor.schedule(mWriteTask, sWriteDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the pending changes with a single sync. Runs on the background thread.
+     */
+    private void write() {
+        URLInfo[] snapshot;
+        boolean isClearPending;
+        List<Map.Entry<String, URLInfo>> changes;
+        synchronized (mPending) {
+            snapshot = mPendingSnapshot;
+            isClearPending = mIsClearPending;
+            changes = new ArrayList<Map.Entry<String, URLInfo>>(mPending.entrySet());
+            mPendingSnapshot = null;
+            mIsClearPending = false;
+            mPending.clear();
+            mIsWriteScheduled = false;
+        }
+        if (snapshot == null && !isClearPending && changes.isEmpty()) {
+            return;
+        }
+
+        sWrites.incrementAndGet();
+        int hostCount = mCodec == null ? 0 : mCodec.getHostCount();
+        try {
+            if (snapshot != null) {
+                writeSnapshot(snapshot);
+                hostCount = mCodec.getHostCount();
+            }
+            if (!isClearPending && changes.isEmpty()) {
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (mValidLength == 0) {
+                writeHeader(out);
+                hostCount = 0;
+            }
+            if (isClearPending) {
+                writeRecord(out, OP_CLEAR, null, null);
+            }
+            for (Map.Entry<String, URLInfo> change : changes) {
+                if (change.getValue() == REMOVED) {
+                    writeRecord(out, OP_REMOVE, change.getKey(), null);
+                } else {
+                    writeRecord(out, OP_PUT, change.getKey(), change.getValue());
+                }
+            }
+            writeAt(bytes.toByteArray());
+        } catch (final Exception e) {
+            // Hosts of the records not written must be written in full again.
+            if (mCodec != null) {
+                mCodec.truncateHosts(hostCount);
+            }
+            // The changes are still in memory, the next change rewrites the log with them.
+            mIsWriteFailed = true;
+            Log.e(RecordStore.class.getSimpleName(), "write(): Failed. " + e.toString());
+        }
+    }
+
+    /**
+     * Reads the log into the index. Reading stops at the first incomplete or corrupt record. Runs on the background thread.
+     * 
+     * @return <code>true</code> if the log exists.
+     * 
+     * @throws IOException If reading fails.
+     */
+    private boolean replay() throws IOException {
+        mRecords.clear();
+        mLastUrl = null;
+        mLogRecords = 0;
+        mValidLength = 0;
+        mCodec = null;
+        if (!mFile.exists()) {
+            return false;
+        }
+
+        byte[] log = new byte[(int) mFile.length()];
+        DataInputStream file = new DataInputStream(new FileInputStream(mFile));
+        try {
+            file.readFully(log);
+        } finally {
+            file.close();
+        }
+
+        ByteArrayInputStream bytes = new ByteArrayInputStream(log);
+        DataInputStream in = new DataInputStream(bytes);
+        URLInfoCodec codec = new URLInfoCodec();
+        int hostCount = 0;
+        long validLength = 0;
+        try {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != URLInfoCodec.VERSION) {
+                Log.e(RecordStore.class.getSimpleName(), "replay(): Unknown format of " + mFile.getName());
+                return true;
+            }
+            validLength = log.length - bytes.available();
+            while (bytes.available() > 0) {
+                int op = in.readByte();
+                switch (op) {
+                    case OP_PUT: {
+                        // The record holds the visits of the records it has replaced.
+                        URLInfo record = codec.read(in);
+                        mRecords.remove(record.getUrlAddress());
+                        mRecords.put(record.getUrlAddress(), record);
+                        mLastUrl = record.getUrlAddress();
+                        break;
+                    }
+                    case OP_REMOVE: {
+                        String url = codec.readUrl(in);
+                        mRecords.remove(url);
+                        if (url.equals(mLastUrl)) {
+                            mLastUrl = null;
+                        }
+                        break;
+                    }
+                    case OP_CLEAR: {
+                        mRecords.clear();
+                        mLastUrl = null;
+                        break;
+                    }
+                    default: {
+                        throw new IOException("Unknown record " + op);
+                    }
+                }
+                mLogRecords++;
+                hostCount = codec.getHostCount();
+                validLength = log.length - bytes.available();
+            }
+        } catch (final IOException e) {
+            // The rest is overwritten by the next record.
+            Log.d(RecordStore.class.getSimpleName(), "replay(): Log truncated. " + e.toString());
+            codec.truncateHosts(hostCount);
+        }
+
+        mValidLength = validLength;
+        mCodec = codec;
+        return true;
+    }
+
+    /**
+     * Writes the bytes at the end of the valid part of the log, cutting off anything left over from an interrupted write. Runs on
+     * the background thread.
+     * 
+     * @param bytes Bytes.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private void writeAt(byte[] bytes) throws IOException {
+        File directory = mFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(mValidLength);
+            file.write(bytes);
+            file.setLength(mValidLength + bytes.length);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        mValidLength += bytes.length;
+    }
+
+    /**
+     * Writes a log containing the records only and replaces the current log with it. Runs on the background thread.
+     * 
+     * @param records Records, oldest first.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private void writeSnapshot(URLInfo[] records) throws IOException {
+        File directory = mFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        File temp = new File(directory, mFile.getName() + TEMP_SUFFIX);
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        // The current log and its codec stay in use until the new log replaces it.
+        URLInfoCodec previous = mCodec;
+        boolean isReplaced = false;
+        try {
+            try {
+                writeHeader(out);
+                for (URLInfo record : records) {
+                    writeRecord(out, OP_PUT, record.getUrlAddress(), record);
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                temp.delete();
+                throw new IOException("Failed to rename " + temp.getName());
+            }
+            isReplaced = true;
+        } finally {
+            if (!isReplaced) {
+                mCodec = previous;
+            }
+        }
+        mValidLength = mFile.length();
+    }
+
+    /**
+     * Writes the beginning of the log and starts a new codec for its records.
+     * 
+     * @param out Stream to write to.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(URLInfoCodec.VERSION);
+        mCodec = new URLInfoCodec();
+    }
+
+    /**
+     * Writes a log record.
+     * 
+     * @param out Stream to write to.
+     * @param op Record type.
+     * @param url URL or <code>null</code> if not needed by the type.
+     * @param record Added record or <code>null</code> if not needed by the type.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private void writeRecord(DataOutputStream out, int op, String url, URLInfo record) throws IOException {
+        out.writeByte(op);
+        if (op == OP_PUT) {
+            mCodec.write(out, record);
+        } else if (op == OP_REMOVE) {
+            mCodec.writeUrl(out, url);
+        }
+    }
+
+    /**
+     * Hashes the log name into a file name, so that any string can be used as a name.
+     * 
+     * @param name Log name.
+     * 
+     * @return File name.
+     */
+    private static String toFileName(String name) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(name.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2 + 4);
+            for (byte value : digest) {
+                hex.append(Character.forDigit((value >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(value & 0xF, 16));
+            }
+            return hex.append(".log").toString();
+        } catch (final Exception e) {
+            // MD5 and UTF-8 are always available.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Streams a response body to its reader (WebView) and hands every chunk read to the attached stages, e.g. to store it in a cache.
+ * Chunks are passed in the reader's own buffer without copying, so memory use does not depend on the body size. Stages run on the
+ * reader's thread, so a slow stage slows the reader down instead of making data pile up in memory.
+ */
+public class BodyPipeline extends InputStream {
+
+    /**
+     * Consumer of the body chunks.
+     */
+    public interface Stage {
+
+        /**
+         * Receives the bytes read. The buffer is only valid during the call.
+         * 
+         * @param buffer Bytes read.
+         * @param offset Offset of the first byte.
+         * @param count Number of bytes.
+         * 
+         * @throws IOException If the stage fails. The stage is aborted and detached, reading goes on.
+         */
+        void onData(byte[] buffer, int offset, int count) throws IOException;
+
+        /**
+         * Called once the body has been read to the end.
+         */
+        void onEnd();
+
+        /**
+         * Called if the body is not read to the end, because the stream is closed early or reading fails.
+         */
+        void onAbort();
+
+        /**
+         * Checks whether the rest of the body has to be read if the stream is closed early.
+         * 
+         * @return <code>true</code> if the stage needs the whole body.
+         */
+        boolean needsRemainder();
+    }
+
+    /**
+     * Body stream.
+     */
+    private final InputStream mSource;
+
+    /**
+     * Attached stages.
+     */
+    private final List<Stage> mStages = new ArrayList<Stage>(2);
+
+    /**
+     * Buffer of single byte reads.
+     */
+    private final byte[] mSingleByte = new byte[1];
+
+    /**
+     * Indicates whether the stages have been ended or aborted.
+     */
+    private boolean mIsDone;
+
+    /**
+     * Default constructor.
+     * 
+     * @param source Body stream.
+     */
+    public BodyPipeline(InputStream source) {
+        mSource = source;
+    }
+
+    /**
+     * Attaches the stage. Stages must be attached before the body is read.
+     * 
+     * @param stage Stage or <code>null</code> to attach nothing.
+     * 
+     * @return This pipeline.
+     */
+    public BodyPipeline addStage(Stage stage) {
+        if (stage != null) {
+            mStages.add(stage);
+        }
+        return this;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(mSingleByte, 0, 1);
+        return read < 0 ? read : mSingleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read;
+        try {
+            read = mSource.read(buffer, offset, count);
+        } catch (final IOException e) {
+            abort();
+            throw e;
+        }
+
+        if (read < 0) {
+            end();
+        } else if (read > 0) {
+            dispatch(buffer, offset, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        if (mStages.isEmpty() || mIsDone) {
+            return mSource.skip(count);
+        }
+
+        // Skipped bytes are still passed to the stages.
+        byte[] buffer = BufferPool.acquire();
+        try {
+            int read = read(buffer, 0, (int) Math.min(count, buffer.length));
+            return read < 0 ? 0 : read;
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mSource.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!mIsDone && needsRemainder()) {
+                byte[] buffer = BufferPool.acquire();
+                try {
+                    while (read(buffer, 0, buffer.length) >= 0) {
+                    }
+                } finally {
+                    BufferPool.release(buffer);
+                }
+            }
+        } finally {
+            abort();
+            mSource.close();
+        }
+    }
+
+    /**
+     * Passes the bytes read to the stages, detaching the failed ones.
+     * 
+     * @param buffer Bytes read.
+     * @param offset Offset of the first byte.
+     * @param count Number of bytes.
+     */
+    private void dispatch(byte[] buffer, int offset, int count) {
+        for (int i = 0; i < mStages.size(); i++) {
+            Stage stage = mStages.get(i);
+            try {
+                stage.onData(buffer, offset, count);
+            } catch (final IOException e) {
+                Log.d(BodyPipeline.class.getSimpleName(), "dispatch(): Stage failed. " + e.toString());
+                mStages.remove(i--);
+                stage.onAbort();
+            }
+        }
+    }
+
+    /**
+     * Checks whether any stage needs the rest of the body.
+     * 
+     * @return <code>true</code> if the body has to be read to the end.
+     */
+    private boolean needsRemainder() {
+        for (Stage stage : mStages) {
+            if (stage.needsRemainder()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ends the stages once the body is read to the end.
+     */
+    private void end() {
+        if (mIsDone) {
+            return;
+        }
+        mIsDone = true;
+        for (Stage stage : mStages) {
+            stage.onEnd();
+        }
+    }
+
+    /**
+     * Aborts the stages unless they have been ended already.
+     */
+    private void abort() {
+        if (mIsDone) {
+            return;
+        }
+        mIsDone = true;
+        for (Stage stage : mStages) {
+            stage.onAbort();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed-size byte buffers used to move response bodies, so that streaming does not allocate a buffer per response.
+ */
+public class BufferPool {
+
+    /**
+     * Size (in bytes) of pooled buffers.
+     */
+    public static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Maximum number of buffers kept in the pool. Buffers released over the limit are left to the garbage collector.
+     */
+    private static final int MAX_POOLED_BUFFERS = 32;
+
+    /**
+     * Free buffers.
+     */
+    private static final ConcurrentLinkedQueue<byte[]> sBuffers = new ConcurrentLinkedQueue<byte[]>();
+
+    /**
+     * Number of free buffers.
+     */
+    private static final AtomicInteger sCount = new AtomicInteger();
+
+    /**
+     * Takes a buffer from the pool or allocates a new one if the pool is empty.
+     * 
+     * @return Buffer of {@link #BUFFER_SIZE} bytes. Its content is undefined.
+     */
+    public static byte[] acquire() {
+        byte[] buffer = sBuffers.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        sCount.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool. The buffer must not be used afterwards.
+     * 
+     * @param buffer Buffer returned by {@link #acquire()}.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        if (sCount.incrementAndGet() > MAX_POOLED_BUFFERS) {
+            sCount.decrementAndGet();
+            return;
+        }
+        sBuffers.offer(buffer);
+    }
+
+    /**
+     * Private constructor to prevent creating new instance of the class.
+     */
+    private BufferPool() {
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered output stream taking its buffer from {@link BufferPool} and returning it on close.
+ */
+public class PooledOutputStream extends FilterOutputStream {
+
+    /**
+     * Buffer. <code>null</code> once the stream is closed.
+     */
+    private byte[] mBuffer = BufferPool.acquire();
+
+    /**
+     * Number of buffered bytes.
+     */
+    private int mCount;
+
+    /**
+     * Default constructor.
+     * 
+     * @param out Stream to write to.
+     */
+    public PooledOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+        ensureOpen();
+        if (mCount == mBuffer.length) {
+            flushBuffer();
+        }
+        mBuffer[mCount++] = (byte) value;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        ensureOpen();
+        if (count >= mBuffer.length) {
+            // Large writes go straight through.
+            flushBuffer();
+            out.write(buffer, offset, count);
+            return;
+        }
+        if (count > mBuffer.length - mCount) {
+            flushBuffer();
+        }
+        System.arraycopy(buffer, offset, mBuffer, mCount, count);
+        mCount += count;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mBuffer == null) {
+            return;
+        }
+        try {
+            flushBuffer();
+        } finally {
+            BufferPool.release(mBuffer);
+            mBuffer = null;
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the buffered bytes.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            int count = mCount;
+            mCount = 0;
+            out.write(mBuffer, 0, count);
+        }
+    }
+
+    /**
+     * Checks that the stream is not closed.
+     * 
+     * @throws IOException If the stream is closed.
+     */
+    private void ensureOpen() throws IOException {
+        if (mBuffer == null) {
+            throw new IOException("Stream closed.");
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rewrites regular URLs into 'cloudified' ones (<code>&lt;browser URL&gt;&lt;session ID&gt;/&lt;scheme&gt;/&lt;host and path&gt;</code>)
+ * and back for a router and browser mode. Prefixes of an instance never change, so a URL is always rewritten against one
+ * consistent pair of prefixes even if the router changes meanwhile. Each rewrite scans the URL once and builds the result in a
+ * per-thread buffer, so the only allocation is the resulting string. Recent rewrites are remembered for the current session, so
+ * URLs converted again and again while a page loads are only looked up.
+ */
+public class UrlRewriter {
+
+    /**
+     * "http://" scheme prefix of regular URLs.
+     */
+    private static final String HTTP_PREFIX = "http://";
+
+    /**
+     * "https://" scheme prefix of regular URLs.
+     */
+    private static final String HTTPS_PREFIX = "https://";
+
+    /**
+     * Scheme segment of 'cloudified' HTTP URLs.
+     */
+    private static final String HTTP_SEGMENT = "http/";
+
+    /**
+     * Scheme segment of 'cloudified' HTTPS URLs.
+     */
+    private static final String HTTPS_SEGMENT = "https/";
+
+    /**
+     * Capacity (in characters) over which the per-thread buffer is not kept.
+     */
+    private static final int MAX_BUFFER_CAPACITY = 8 * 1024;
+
+    /**
+     * Maximum number of rewrites remembered in each direction.
+     */
+    private static final int MEMO_SIZE = 256;
+
+    /**
+     * Per-thread buffer the URLs are built in.
+     */
+    private static final ThreadLocal<StringBuilder> sBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * Router URL, e.g. <code>https://appgateway.windows.net/</code>.
+     */
+    private final String mRouterPrefix;
+
+    /**
+     * Prefix of 'cloudified' URLs, i.e. the router URL followed by the path of the browser mode.
+     */
+    private final String mBrowserUrl;
+
+    /**
+     * Indicates whether rewrites are remembered.
+     */
+    private final boolean mIsMemoizing;
+
+    /**
+     * Rewrites remembered for the current session. Replaced as a whole when the session changes.
+     */
+    private volatile Memo mMemo = new Memo(null);
+
+    /**
+     * Default constructor.
+     * 
+     * @param routerPrefix Router URL.
+     * @param browserUrl Prefix of 'cloudified' URLs of the browser mode.
+     */
+    public UrlRewriter(String routerPrefix, String browserUrl) {
+        this(routerPrefix, browserUrl, true);
+    }
+
+    /**
+     * Creates a rewriter that optionally builds every URL anew, so the rewriting itself can be measured.
+     * 
+     * @param routerPrefix Router URL.
+     * @param browserUrl Prefix of 'cloudified' URLs of the browser mode.
+     * @param isMemoizing Indicates whether rewrites are remembered.
+     */
+    UrlRewriter(String routerPrefix, String browserUrl, boolean isMemoizing) {
+        mRouterPrefix = routerPrefix;
+        mBrowserUrl = browserUrl;
+        mIsMemoizing = isMemoizing;
+    }
+
+    /**
+     * Returns the prefix of 'cloudified' URLs.
+     * 
+     * @return Browser URL.
+     */
+    public String getBrowserUrl() {
+        return mBrowserUrl;
+    }
+
+    /**
+     * Converts regular URL to a 'cloudified' one. URLs pointing to the router itself (returned by scripts of the proxied pages) are
+     * resolved against the original URL first.
+     * 
+     * @param url URL to convert.
+     * @param sessionID ID of the current active session.
+     * @param originalUrl URL the router-relative URLs are resolved against.
+     * 
+     * @return 'Cloudified' URL. Returns incoming URL without changes if it is 'cloudified' already or if session ID is <code>null</code>.
+     */
+    public String toCloud(String url, String sessionID, String originalUrl) {
+        if (sessionID == null || url.startsWith(mBrowserUrl)) {
+            return url;
+        }
+        if (!mIsMemoizing || url.startsWith(mRouterPrefix)) {
+            // Router-relative URLs depend on the original URL, not remembered.
+            return buildCloud(url, sessionID, originalUrl);
+        }
+
+        Memo memo = mMemo;
+        if (!sessionID.equals(memo.mSessionID)) {
+            memo = new Memo(sessionID);
+            mMemo = memo;
+        }
+        String cloudUrl = memo.get(memo.mToCloud, url);
+        if (cloudUrl == null) {
+            cloudUrl = buildCloud(url, sessionID, originalUrl);
+            memo.put(memo.mToCloud, url, cloudUrl);
+            if (isInvertible(url)) {
+                memo.put(memo.mToNormal, cloudUrl, url);
+            }
+        }
+        return cloudUrl;
+    }
+
+    /**
+     * Converts 'cloudified' URL to a regular one.
+     * 
+     * @param url URL to convert.
+     * 
+     * @return Regular URL. Returns incoming URL without changes if it is not 'cloudified' or has no scheme segment.
+     */
+    public String toNormal(String url) {
+        if (!url.startsWith(mBrowserUrl)) {
+            return url;
+        }
+        if (!mIsMemoizing) {
+            return buildNormal(url);
+        }
+
+        Memo memo = mMemo;
+        String normalUrl = memo.get(memo.mToNormal, url);
+        if (normalUrl == null) {
+            normalUrl = buildNormal(url);
+            memo.put(memo.mToNormal, url, normalUrl);
+            // URLs of other sessions are converted too, only those of the current one convert back to the same URL.
+            if (memo.mSessionID != null && isInvertible(normalUrl) && url.startsWith(mBrowserUrl + memo.mSessionID + "/")) {
+                memo.put(memo.mToCloud, normalUrl, url);
+            }
+        }
+        return normalUrl;
+    }
+
+    /**
+     * Builds the 'cloudified' URL.
+     * 
+     * @param url Regular URL.
+     * @param sessionID ID of the current active session.
+     * @param originalUrl URL the router-relative URLs are resolved against.
+     * 
+     * @return 'Cloudified' URL.
+     */
+    private String buildCloud(String url, String sessionID, String originalUrl) {
+        StringBuilder out = obtainBuffer();
+        out.append(mBrowserUrl).append(sessionID).append('/');
+        if (url.startsWith(mRouterPrefix)) {
+            if (originalUrl == null) {
+                return url;
+            }
+            // The resolved URL is assembled in place and its scheme rewritten afterwards.
+            int start = out.length();
+            out.append(originalUrl);
+            if (!originalUrl.endsWith("/")) {
+                out.append('/');
+            }
+            out.append(url, mRouterPrefix.length(), url.length());
+            if (regionMatches(out, start, HTTPS_PREFIX)) {
+                out.replace(start, start + HTTPS_PREFIX.length(), HTTPS_SEGMENT);
+            } else if (regionMatches(out, start, HTTP_PREFIX)) {
+                out.replace(start, start + HTTP_PREFIX.length(), HTTP_SEGMENT);
+            } else {
+                out.insert(start, HTTP_SEGMENT);
+            }
+            return release(out);
+        }
+
+        if (url.startsWith(HTTPS_PREFIX)) {
+            out.append(HTTPS_SEGMENT).append(url, HTTPS_PREFIX.length(), url.length());
+        } else if (url.startsWith(HTTP_PREFIX)) {
+            out.append(HTTP_SEGMENT).append(url, HTTP_PREFIX.length(), url.length());
+        } else {
+            out.append(HTTP_SEGMENT).append(url);
+        }
+        return release(out);
+    }
+
+    /**
+     * Builds the regular URL.
+     * 
+     * @param url 'Cloudified' URL.
+     * 
+     * @return Regular URL or the incoming URL if it has no scheme segment.
+     */
+    private String buildNormal(String url) {
+        // The session ID is never empty, so its first character is skipped when looking for its end.
+        int sessionEnd = mBrowserUrl.length() + 1 > url.length() ? -1 : url.indexOf('/', mBrowserUrl.length() + 1);
+        if (sessionEnd < 0) {
+            return url;
+        }
+        int schemeStart = sessionEnd + 1;
+        int schemeEnd = url.indexOf('/', schemeStart);
+        if (schemeEnd < 0) {
+            return url.substring(schemeStart);
+        }
+
+        StringBuilder out = obtainBuffer();
+        out.append(url, schemeStart, schemeEnd).append("://").append(url, schemeEnd + 1, url.length());
+        return release(out);
+    }
+
+    /**
+     * Checks whether the regular URL converts to the 'cloudified' one and back unchanged, so both directions can be remembered.
+     * 
+     * @param url Regular URL.
+     * 
+     * @return <code>true</code> if the URL has an HTTP(S) scheme and does not point to the router.
+     */
+    private boolean isInvertible(String url) {
+        return (url.startsWith(HTTP_PREFIX) || url.startsWith(HTTPS_PREFIX)) && !url.startsWith(mRouterPrefix);
+    }
+
+    /**
+     * Checks whether the buffer contains the prefix at the offset.
+     * 
+     * @param buffer Buffer to check.
+     * @param offset Offset of the prefix.
+     * @param prefix Prefix to look for.
+     * 
+     * @return <code>true</code> if the prefix is found.
+     */
+    private static boolean regionMatches(StringBuilder buffer, int offset, String prefix) {
+        if (buffer.length() - offset < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the empty per-thread buffer.
+     * 
+     * @return Buffer.
+     */
+    private static StringBuilder obtainBuffer() {
+        StringBuilder buffer = sBuffer.get();
+        buffer.setLength(0);
+        return buffer;
+    }
+
+    /**
+     * Returns the content of the buffer. Buffers grown too large are not kept.
+     * 
+     * @param buffer Per-thread buffer.
+     * 
+     * @return Buffer content.
+     */
+    private static String release(StringBuilder buffer) {
+        String result = buffer.toString();
+        if (buffer.capacity() > MAX_BUFFER_CAPACITY) {
+            sBuffer.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Rewrites remembered for a session, in both directions.
+     */
+    private static class Memo {
+
+        /**
+         * Session the rewrites belong to.
+         */
+        final String mSessionID;
+
+        /**
+         * 'Cloudified' URLs by regular URL.
+         */
+        final LinkedHashMap<String, String> mToCloud = createMap();
+
+        /**
+         * Regular URLs by 'cloudified' URL.
+         */
+        final LinkedHashMap<String, String> mToNormal = createMap();
+
+        /**
+         * Default constructor.
+         * 
+         * @param sessionID Session the rewrites belong to.
+         */
+        Memo(String sessionID) {
+            mSessionID = sessionID;
+        }
+
+        /**
+         * Looks the rewrite up.
+         * 
+         * @param map Rewrites of one direction.
+         * @param url URL to rewrite.
+         * 
+         * @return Remembered rewrite or <code>null</code>.
+         */
+        synchronized String get(LinkedHashMap<String, String> map, String url) {
+            return map.get(url);
+        }
+
+        /**
+         * Remembers the rewrite.
+         * 
+         * @param map Rewrites of one direction.
+         * @param url Rewritten URL.
+         * @param result Rewrite.
+         */
+        synchronized void put(LinkedHashMap<String, String> map, String url, String result) {
+            map.put(url, result);
+        }
+
+        /**
+         * Creates the map of rewrites of one direction, forgetting the least recently used ones over {@link #MEMO_SIZE}.
+         * 
+         * @return Empty map.
+         */
+        private static LinkedHashMap<String, String> createMap() {
+            return new LinkedHashMap<String, String>(MEMO_SIZE, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MEMO_SIZE;
+                }
+            };
+        }
+    }
+}
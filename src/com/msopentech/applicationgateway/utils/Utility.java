@@ -17,6 +17,8 @@ import com.msopentech.applicationgateway.connection.Router;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.text.Spannable;
 import android.text.Spanned;
 import android.text.method.LinkMovementMethod;
@@ -99,4 +101,21 @@ public class Utility {
             Log.d(Utility.class.getSimpleName(), "showToastNotification(): Failed.", e);
         }
     }
+
+    /**
+     * Checks whether the device has a network connection.
+     * 
+     * @return <code>True</code> if a network is connected or connecting, <code>false</code> otherwise.
+     */
+    public static boolean isNetworkAvailable() {
+        try {
+            ConnectivityManager manager = (ConnectivityManager) ApplicationGateway.getAppContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo network = manager == null ? null : manager.getActiveNetworkInfo();
+            return network != null && network.isConnectedOrConnecting();
+        } catch (final Exception e) {
+            Log.d(Utility.class.getSimpleName(), "isNetworkAvailable(): Failed.", e);
+            // Assume the network is there; the request itself reports the failure.
+            return true;
+        }
+    }
 }
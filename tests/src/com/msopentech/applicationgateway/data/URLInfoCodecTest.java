@@ -0,0 +1,237 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link URLInfoCodec} reads back what it writes, refers to repeated hosts by index and rejects torn or corrupt data.
+ */
+public class URLInfoCodecTest extends TestCase {
+
+    public void testRoundTrip() throws IOException {
+        StringBuilder longUrl = new StringBuilder("http://intranet.contoso.com/search?q=");
+        while (longUrl.length() < 70 * 1024) {
+            longUrl.append("%C3%9Cbersicht+");
+        }
+        URLInfo[] items = { item("http://intranet.contoso.com/", "Intranet", 1371945600000L, 1),
+                item("https://intranet.contoso.com/sites/finance/default.aspx", null, 0, 1),
+                item("http://intranet.contoso.com:8080/", "Contoso \u00dcbersicht \u65e5\u672c", 1, 7),
+                item("intranet.contoso.com/home.htm", "Typed without scheme", 0, Integer.MAX_VALUE),
+                item("about:blank", "", Long.MAX_VALUE, 2), item("http://reports", null, 0, 1),
+                item("http://reports?id=1#top", null, 0, 1), item(longUrl.toString(), "Long", 0, 1) };
+
+        URLInfo[] read = readAll(writeAll(new URLInfoCodec(), items), items.length);
+        for (int i = 0; i < items.length; i++) {
+            assertEquals(items[i].getUrlAddress(), read[i].getUrlAddress());
+            assertEquals(items[i].getPageName(), read[i].getPageName());
+            assertEquals(items[i].getTime(), read[i].getTime());
+            assertEquals(items[i].getVisitCount(), read[i].getVisitCount());
+        }
+    }
+
+    public void testHostInterning() throws IOException {
+        URLInfoCodec codec = new URLInfoCodec();
+        byte[] first = write(codec, "https://intranet.contoso.com/sites/finance/");
+        byte[] second = write(codec, "https://intranet.contoso.com/sites/teams/");
+        byte[] other = write(codec, "http://intranet.contoso.com/sites/teams/");
+
+        // The host is written in full once, then referred to by index. A different scheme is a different host.
+        assertEquals(0, first[0]);
+        assertEquals(1, second[0]);
+        assertEquals(0, other[0]);
+        assertEquals(2 + "/sites/teams/".length(), second.length);
+        assertEquals(2, codec.getHostCount());
+
+        URLInfoCodec reader = new URLInfoCodec();
+        assertEquals("https://intranet.contoso.com/sites/finance/", reader.readUrl(input(first)));
+        assertEquals("https://intranet.contoso.com/sites/teams/", reader.readUrl(input(second)));
+        assertEquals("http://intranet.contoso.com/sites/teams/", reader.readUrl(input(other)));
+    }
+
+    public void testTruncateHosts() throws IOException {
+        URLInfoCodec codec = new URLInfoCodec();
+        write(codec, "https://intranet.contoso.com/");
+        write(codec, "https://portal.contoso.com/");
+
+        // The record that introduced the second host has been discarded, so the host is written in full again.
+        codec.truncateHosts(1);
+        assertEquals(1, codec.getHostCount());
+        assertEquals(1, write(codec, "https://intranet.contoso.com/a")[0]);
+        assertEquals(0, write(codec, "https://portal.contoso.com/b")[0]);
+        assertEquals(2, write(codec, "https://portal.contoso.com/c")[0]);
+    }
+
+    public void testTornTail() throws IOException {
+        URLInfo[] items = { item("http://intranet.contoso.com/", "Intranet", 1371945600000L, 3),
+                item("http://intranet.contoso.com/sites/", "Sites", 1371945600001L, 1) };
+        byte[] data = writeAll(new URLInfoCodec(), items);
+
+        for (int length = 0; length < data.length; length++) {
+            URLInfoCodec codec = new URLInfoCodec();
+            DataInputStream in = input(Arrays.copyOf(data, length));
+            try {
+                codec.read(in);
+                codec.read(in);
+                fail("Read torn data of length " + length);
+            } catch (EOFException e) {
+                // Expected.
+            }
+        }
+    }
+
+    public void testUnknownHost() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        URLInfoCodec.writeVarLong(out, 3);
+        URLInfoCodec.writeString(out, "/");
+        try {
+            new URLInfoCodec().readUrl(input(bytes.toByteArray()));
+            fail();
+        } catch (IOException e) {
+            assertFalse(e instanceof EOFException);
+        }
+    }
+
+    public void testCorruptLengthAndVisits() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        URLInfoCodec.writeVarLong(new DataOutputStream(bytes), Integer.MAX_VALUE);
+        try {
+            URLInfoCodec.readString(input(bytes.toByteArray()));
+            fail();
+        } catch (IOException e) {
+            assertFalse(e instanceof EOFException);
+        }
+
+        URLInfo item = item("http://intranet.contoso.com/", null, 0, 2);
+        byte[] data = writeAll(new URLInfoCodec(), new URLInfo[] { item });
+        // The visit count is the last byte, 0 is invalid.
+        data[data.length - 1] = 0;
+        try {
+            new URLInfoCodec().read(input(data));
+            fail();
+        } catch (IOException e) {
+            assertFalse(e instanceof EOFException);
+        }
+    }
+
+    public void testVarLong() throws IOException {
+        long[] values = { 0, 1, 127, 128, 16383, 16384, 1371945600000L, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE };
+        int[] lengths = { 1, 1, 1, 2, 2, 3, 6, 5, 9, 10, 10 };
+        for (int i = 0; i < values.length; i++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            URLInfoCodec.writeVarLong(new DataOutputStream(bytes), values[i]);
+            assertEquals(lengths[i], bytes.size());
+            assertEquals(values[i], URLInfoCodec.readVarLong(input(bytes.toByteArray())));
+        }
+
+        byte[] malformed = new byte[11];
+        Arrays.fill(malformed, (byte) 0x80);
+        try {
+            URLInfoCodec.readVarLong(input(malformed));
+            fail();
+        } catch (IOException e) {
+            assertFalse(e instanceof EOFException);
+        }
+    }
+
+    /**
+     * Creates an item.
+     * 
+     * @param url URL.
+     * @param title Page title or <code>null</code>.
+     * @param time Time or 0.
+     * @param visitCount Visit count.
+     * 
+     * @return Item.
+     */
+    private static URLInfo item(String url, String title, long time, int visitCount) {
+        URLInfo item = new URLInfo(url, title);
+        item.setTime(time);
+        item.setVisitCount(visitCount);
+        return item;
+    }
+
+    /**
+     * Writes the items into a stream.
+     * 
+     * @param codec Codec.
+     * @param items Items.
+     * 
+     * @return Stream bytes.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private static byte[] writeAll(URLInfoCodec codec, URLInfo[] items) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (URLInfo item : items) {
+            codec.write(out, item);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the items from a stream with a new codec.
+     * 
+     * @param data Stream bytes.
+     * @param count Number of items.
+     * 
+     * @return Items.
+     * 
+     * @throws IOException If reading fails.
+     */
+    private static URLInfo[] readAll(byte[] data, int count) throws IOException {
+        URLInfoCodec codec = new URLInfoCodec();
+        DataInputStream in = input(data);
+        URLInfo[] items = new URLInfo[count];
+        for (int i = 0; i < count; i++) {
+            items[i] = codec.read(in);
+        }
+        assertEquals(0, in.available());
+        return items;
+    }
+
+    /**
+     * Writes the URL alone.
+     * 
+     * @param codec Codec.
+     * @param url URL.
+     * 
+     * @return Bytes written.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private static byte[] write(URLInfoCodec codec, String url) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        codec.writeUrl(new DataOutputStream(bytes), url);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Wraps the bytes into a stream.
+     * 
+     * @param data Bytes.
+     * 
+     * @return Stream.
+     */
+    private static DataInputStream input(byte[] data) {
+        return new DataInputStream(new ByteArrayInputStream(data));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.preferences;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.msopentech.applicationgateway.data.URLCollection;
+import com.msopentech.applicationgateway.data.URLInfo;
+import com.msopentech.applicationgateway.utils.LocalPersistence;
+
+/**
+ * Measures saving and loading 10,000 history records with {@link RecordStore} against the Java serialization of a
+ * {@link URLCollection} it replaced, see {@link LocalPersistence}. Warmup iterations run first, then measured iterations; the time
+ * of every measured iteration, the best one and the file sizes are logged. Nothing is asserted, timings depend on the device.
+ */
+public class RecordStoreBenchmark extends AndroidTestCase {
+
+    /**
+     * Log tag.
+     */
+    private static final String TAG = RecordStoreBenchmark.class.getSimpleName();
+
+    /**
+     * Number of records.
+     */
+    private static final int RECORD_COUNT = 10000;
+
+    /**
+     * Number of distinct hosts of the records.
+     */
+    private static final int HOST_COUNT = 40;
+
+    /**
+     * Number of iterations run before measuring.
+     */
+    private static final int WARMUP_ITERATIONS = 2;
+
+    /**
+     * Number of measured iterations.
+     */
+    private static final int MEASUREMENT_ITERATIONS = 5;
+
+    /**
+     * Name of the serialized file and of the log.
+     */
+    private static final String NAME = RecordStoreBenchmark.class.getSimpleName();
+
+    /**
+     * Records.
+     */
+    private URLInfo[] mRecords;
+
+    /**
+     * Sink the results are consumed into.
+     */
+    private int mSink;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        RecordStore.setWriteDelay(0);
+        mRecords = createRecords(new Random(RECORD_COUNT));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteFile(NAME);
+        new RecordStore(NAME).getFile().delete();
+        RecordStore.setWriteDelay(RecordStore.DEFAULT_WRITE_DELAY);
+        super.tearDown();
+    }
+
+    public void testSerialization() throws Exception {
+        run("save serialized", new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                LocalPersistence.writeObjectToFile(getContext(), new URLCollection(mRecords), NAME);
+                return null;
+            }
+        });
+        run("load serialized", new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                mSink += ((URLCollection) LocalPersistence.readObjectFromFile(getContext(), NAME)).getData().length;
+                return null;
+            }
+        });
+        Log.i(TAG, "serialized: " + getContext().getFileStreamPath(NAME).length() + " bytes");
+    }
+
+    public void testRecordStore() throws Exception {
+        run("save log", new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                RecordStore store = new RecordStore(NAME);
+                store.reset(mRecords);
+                store.flush();
+                return null;
+            }
+        });
+        run("load log", new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                RecordStore store = new RecordStore(NAME);
+                store.load();
+                mSink += store.toArray().length;
+                return null;
+            }
+        });
+        Log.i(TAG, "log: " + new RecordStore(NAME).getFile().length() + " bytes");
+    }
+
+    /**
+     * Runs the warmup and measured iterations and logs the timings.
+     * 
+     * @param name Benchmark name.
+     * @param iteration Iteration.
+     * 
+     * @throws Exception If an iteration fails.
+     */
+    private void run(String name, Callable<Object> iteration) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration.call();
+        }
+        StringBuilder timings = new StringBuilder();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            iteration.call();
+            long time = (System.nanoTime() - start) / 1000;
+            best = Math.min(best, time);
+            timings.append(i == 0 ? "" : ", ").append(time);
+        }
+        Log.i(TAG, name + ": best " + best + " us, iterations " + timings + " us (sink " + mSink + ")");
+    }
+
+    /**
+     * Creates history records: pages of a few intranet hosts with titles, visit times and visit counts.
+     * 
+     * @param random Random source.
+     * 
+     * @return Records, oldest first.
+     */
+    private static URLInfo[] createRecords(Random random) {
+        URLInfo[] records = new URLInfo[RECORD_COUNT];
+        long time = 1371945600000L;
+        for (int i = 0; i < records.length; i++) {
+            int host = random.nextInt(HOST_COUNT);
+            String url = (host % 3 == 0 ? "https://" : "http://") + "site" + host + ".contoso.com/sites/team" + random.nextInt(50)
+                    + "/Pages/page" + i + ".aspx" + (random.nextInt(4) == 0 ? "?id=" + random.nextInt(100000) : "");
+            records[i] = new URLInfo(url, random.nextInt(10) == 0 ? null : "Team site page " + i + " - Contoso Intranet");
+            time += random.nextInt(60000);
+            records[i].setTime(time);
+            records[i].setVisitCount(1 + random.nextInt(random.nextInt(10) == 0 ? 50 : 2));
+        }
+        return records;
+    }
+}
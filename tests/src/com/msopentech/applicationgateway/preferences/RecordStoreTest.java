@@ -0,0 +1,192 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.preferences;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+import com.msopentech.applicationgateway.data.URLInfo;
+import com.msopentech.applicationgateway.data.URLInfoCodec;
+
+/**
+ * Checks {@link RecordStore} replays its log, survives a torn tail and replaces logs of another format.
+ */
+public class RecordStoreTest extends TestCase {
+
+    /**
+     * Value the log starts with.
+     */
+    private static final int MAGIC = 0x4147524C;
+
+    /**
+     * Log name of the test.
+     */
+    private String mName;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        RecordStore.setWriteDelay(0);
+        mName = RecordStoreTest.class.getSimpleName() + "." + getName() + "." + System.nanoTime();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new RecordStore(mName).getFile().delete();
+        RecordStore.setWriteDelay(RecordStore.DEFAULT_WRITE_DELAY);
+        super.tearDown();
+    }
+
+    public void testReplay() throws Exception {
+        RecordStore store = new RecordStore(mName);
+        assertFalse(store.load());
+        store.put(record("http://intranet.contoso.com/", "Intranet", 1000));
+        store.put(record("https://portal.contoso.com/", null, 0));
+        store.put(record("http://intranet.contoso.com/sites/", "Sites", 2000));
+        store.put(record("http://intranet.contoso.com/", "Intranet home", 3000));
+        assertTrue(store.flush());
+        store.remove("http://intranet.contoso.com/sites/");
+        store.put(record("http://reports/q3.aspx", "Q3", 4000));
+        assertTrue(store.flush());
+
+        RecordStore loaded = new RecordStore(mName);
+        assertTrue(loaded.load());
+        assertRecords(store.toArray(), loaded.toArray());
+        assertEquals(3, loaded.toArray().length);
+        assertEquals(2, loaded.toArray()[1].getVisitCount());
+        assertTrue(loaded.isLast("http://reports/q3.aspx"));
+    }
+
+    public void testTornTail() throws Exception {
+        RecordStore store = new RecordStore(mName);
+        store.load();
+        store.put(record("http://intranet.contoso.com/", "Intranet", 1000));
+        store.put(record("http://intranet.contoso.com/sites/", "Sites", 2000));
+        assertTrue(store.flush());
+        // The record introduces a host the next records refer to.
+        store.put(record("https://portal.contoso.com/", "Portal", 3000));
+        assertTrue(store.flush());
+
+        // The last write is interrupted.
+        setLength(store.getFile(), store.getFile().length() - 1);
+        RecordStore torn = new RecordStore(mName);
+        assertTrue(torn.load());
+        assertEquals(2, torn.toArray().length);
+
+        // The torn record is overwritten, so its host is written again.
+        torn.put(record("https://portal.contoso.com/news/", "News", 4000));
+        assertTrue(torn.flush());
+        RecordStore loaded = new RecordStore(mName);
+        assertTrue(loaded.load());
+        assertRecords(torn.toArray(), loaded.toArray());
+
+        // Garbage after the last record is ignored and overwritten as well.
+        RandomAccessFile file = new RandomAccessFile(store.getFile(), "rw");
+        try {
+            file.seek(file.length());
+            file.write(new byte[] { 1, 9, (byte) 0xFF, 0x7F });
+        } finally {
+            file.close();
+        }
+        loaded = new RecordStore(mName);
+        assertTrue(loaded.load());
+        assertRecords(torn.toArray(), loaded.toArray());
+        loaded.put(record("http://intranet.contoso.com/", "Intranet", 5000));
+        assertTrue(loaded.flush());
+        RecordStore reloaded = new RecordStore(mName);
+        assertTrue(reloaded.load());
+        assertRecords(loaded.toArray(), reloaded.toArray());
+    }
+
+    public void testUnknownFormat() throws Exception {
+        RecordStore store = new RecordStore(mName);
+        store.getFile().getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(store.getFile()));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(URLInfoCodec.VERSION + 1);
+            out.writeByte(1);
+        } finally {
+            out.close();
+        }
+
+        // A log of another version is not read, it is overwritten by the next change.
+        assertTrue(store.load());
+        assertEquals(0, store.toArray().length);
+        store.put(record("http://intranet.contoso.com/", "Intranet", 1000));
+        assertTrue(store.flush());
+        DataInputStream in = new DataInputStream(new FileInputStream(store.getFile()));
+        try {
+            assertEquals(MAGIC, in.readInt());
+            assertEquals(URLInfoCodec.VERSION, in.readUnsignedByte());
+        } finally {
+            in.close();
+        }
+        RecordStore loaded = new RecordStore(mName);
+        assertTrue(loaded.load());
+        assertRecords(store.toArray(), loaded.toArray());
+    }
+
+    /**
+     * Creates a record.
+     * 
+     * @param url URL.
+     * @param title Page title or <code>null</code>.
+     * @param time Time.
+     * 
+     * @return Record.
+     */
+    private static URLInfo record(String url, String title, long time) {
+        URLInfo record = new URLInfo(url, title);
+        record.setTime(time);
+        return record;
+    }
+
+    /**
+     * Checks the records are the same.
+     * 
+     * @param expected Expected records.
+     * @param actual Actual records.
+     */
+    private static void assertRecords(URLInfo[] expected, URLInfo[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getUrlAddress(), actual[i].getUrlAddress());
+            assertEquals(expected[i].getPageName(), actual[i].getPageName());
+            assertEquals(expected[i].getTime(), actual[i].getTime());
+            assertEquals(expected[i].getVisitCount(), actual[i].getVisitCount());
+        }
+    }
+
+    /**
+     * Cuts the file.
+     * 
+     * @param file File.
+     * @param length New length.
+     * 
+     * @throws IOException If writing fails.
+     */
+    private static void setLength(File file, long length) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(length);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.utils;
+
+/**
+ * URL conversion as implemented by EnterpriseBrowserActivity before {@link UrlRewriter} replaced it, kept as the reference the
+ * rewriter is compared with. The static prefixes of the activity are passed to the constructor instead; error reporting through
+ * dialogs is left out, the URL is returned as before.
+ */
+class LegacyUrlRewriter {
+
+    /**
+     * Token of HTTP URLs.
+     */
+    private static final String HTTP_TOKEN_ATTRIBUTE = "http";
+
+    /**
+     * Token of HTTPS URLs.
+     */
+    private static final String HTTPS_TOKEN_ATTRIBUTE = "https";
+
+    /**
+     * "http://" prefix.
+     */
+    private static final String HTTP_PREFIX_ATTRIBUTE = "http://";
+
+    /**
+     * "https://" prefix.
+     */
+    private static final String HTTPS_PREFIX_ATTRIBUTE = "https://";
+
+    /**
+     * Router URL.
+     */
+    private final String CLOUD_CONNECTION_HOST_PREFIX;
+
+    /**
+     * Prefix of 'cloudified' URLs.
+     */
+    private final String CLOUD_BROWSER_URL;
+
+    /**
+     * Default constructor.
+     * 
+     * @param routerPrefix Router URL.
+     * @param browserUrl Prefix of 'cloudified' URLs of the browser mode.
+     */
+    LegacyUrlRewriter(String routerPrefix, String browserUrl) {
+        CLOUD_CONNECTION_HOST_PREFIX = routerPrefix;
+        CLOUD_BROWSER_URL = browserUrl;
+    }
+
+    /**
+     * Converts regular URL to a 'cloudified' one.
+     * 
+     * @param url URL to convert.
+     * @param sessionID ID of the current active session.
+     * @param originalUrl URL the router-relative URLs are resolved against.
+     * 
+     * @return 'Cloudified' URL.
+     */
+    String toCloud(String url, String sessionID, String originalUrl) {
+        try {
+            if (!url.startsWith(CLOUD_BROWSER_URL) && sessionID != null) {
+                boolean http = true;
+
+                if (url.startsWith(CLOUD_CONNECTION_HOST_PREFIX)) { // Special case for JS and other possible returned URLs which we need to fixup
+                    url = url.substring(CLOUD_CONNECTION_HOST_PREFIX.length());
+                    if (!originalUrl.endsWith("/"))
+                        url = originalUrl + '/' + url;
+                    else
+                        url = originalUrl + url;
+                }
+
+                if (url.startsWith(HTTPS_PREFIX_ATTRIBUTE)) {
+                    http = false;
+                }
+
+                if (url.startsWith(HTTPS_PREFIX_ATTRIBUTE)) {
+                    url = url.substring(HTTPS_PREFIX_ATTRIBUTE.length());
+                } else if (url.startsWith(HTTP_PREFIX_ATTRIBUTE)) {
+                    url = url.substring(HTTP_PREFIX_ATTRIBUTE.length());
+                }
+
+                if (http) {
+                    url = CLOUD_BROWSER_URL + sessionID + "/" + HTTP_TOKEN_ATTRIBUTE + "/" + url;
+                } else {
+                    url = CLOUD_BROWSER_URL + sessionID + "/" + HTTPS_TOKEN_ATTRIBUTE + "/" + url;
+                }
+            }
+            return url;
+        } catch (final Exception e) {
+        }
+        return url;
+    }
+
+    /**
+     * Converts 'cloudified' URL to a regular one.
+     * 
+     * @param url URL to convert.
+     * 
+     * @return Regular URL.
+     */
+    String toNormal(String url) {
+        try {
+            if (!url.startsWith(CLOUD_BROWSER_URL)) {
+                return url;
+            }
+
+            int charactersToCutOff = CLOUD_BROWSER_URL.length() + 1;
+
+            String str = url.substring(charactersToCutOff);
+
+            int realAddressIndex = str.indexOf('/');
+            if (realAddressIndex == -1) {
+                return url;
+            }
+
+            realAddressIndex++;
+
+            if (realAddressIndex > str.length()) return null;
+
+            str = str.substring(realAddressIndex);
+
+            return str.replaceFirst("/", "://");
+        } catch (final Exception e) {
+        }
+
+        return url;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates URL corpora for the URL rewriting tests and benchmarks. The URLs are synthetic, not captured traffic: intranet-style
+ * documents and the resources they load, over HTTP and HTTPS, with ports, encoded paths, queries and fragments, plus URLs scripts
+ * return relative to the router. Generation is seeded, so every run sees the same corpus.
+ */
+class UrlCorpus {
+
+    /**
+     * Default router URL.
+     */
+    static final String ROUTER_PREFIX = "https://appgateway.windows.net/";
+
+    /**
+     * Prefix of 'cloudified' URLs of the browser mode.
+     */
+    static final String BROWSER_URL = ROUTER_PREFIX + "connect/browser/";
+
+    /**
+     * Prefix of 'cloudified' URLs of the smart browser mode.
+     */
+    static final String SMART_BROWSER_URL = ROUTER_PREFIX + "connect/smartbrowser/";
+
+    /**
+     * Hosts of the intranet.
+     */
+    private static final String[] HOSTS = { "intranet.contoso.com", "portal.contoso.com", "sharepoint.corp.contoso.com",
+            "hr.contoso.local:8443", "tfs.contoso.com:8080", "Wiki.Contoso.com", "10.12.0.41", "reports" };
+
+    /**
+     * Path segments.
+     */
+    private static final String[] SEGMENTS = { "sites", "teams", "finance", "_layouts", "15", "Shared%20Documents", "Lists", "Pages",
+            "Forms", "images", "scripts", "styles", "%C3%9Cbersicht", "2013", "projects", "q3" };
+
+    /**
+     * Documents.
+     */
+    private static final String[] DOCUMENTS = { "default.aspx", "AllItems.aspx", "index.html", "home.htm", "", "report.aspx" };
+
+    /**
+     * Resources loaded by documents.
+     */
+    private static final String[] RESOURCES = { "app.js", "jquery-1.8.2.min.js", "core.css", "site.css", "logo.png", "spinner.gif",
+            "fonts/segoeui.woff", "init.js", "sprite.png", "favicon.ico" };
+
+    /**
+     * Queries.
+     */
+    private static final String[] QUERIES = { "", "", "", "?id=1234", "?v=15.0.4420.1017", "?q=quarterly+report&page=2",
+            "?Source=http%3A%2F%2Fintranet.contoso.com%2Fsites%2Ffinance", "?RootFolder=%2Fsites%2Fteams&View={A1B2C3D4-0000}" };
+
+    /**
+     * Fragments.
+     */
+    private static final String[] FRAGMENTS = { "", "", "", "", "#top", "#section-2" };
+
+    /**
+     * Session IDs the 'cloudified' URLs are made with.
+     */
+    static final String[] SESSION_IDS = { "5f0c3a3e-8b1d-4d2c-9a57-0e6b6c2f7d11", "c1e9f8aa-0d44-4b6e-8f3a-2a9d1e7c5b30" };
+
+    /**
+     * Random source.
+     */
+    private final Random mRandom;
+
+    /**
+     * Default constructor.
+     * 
+     * @param seed Seed of the generator.
+     */
+    UrlCorpus(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Generates regular URLs as they are requested while pages load: distinct URLs are requested with a skewed frequency, the way
+     * the documents and the shared scripts and styles of a site are.
+     * 
+     * @param distinct Number of distinct URLs.
+     * @param count Number of URLs.
+     * 
+     * @return URLs.
+     */
+    List<String> normalUrls(int distinct, int count) {
+        List<String> pool = new ArrayList<String>(distinct);
+        for (int i = 0; i < distinct; i++) {
+            pool.add(normalUrl());
+        }
+        List<String> urls = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            double skew = mRandom.nextDouble();
+            urls.add(pool.get((int) (skew * skew * distinct)));
+        }
+        return urls;
+    }
+
+    /**
+     * Generates a regular URL.
+     * 
+     * @return URL with HTTP or HTTPS scheme, without scheme or relative to the router.
+     */
+    String normalUrl() {
+        StringBuilder url = new StringBuilder();
+        int kind = mRandom.nextInt(20);
+        if (kind < 11) {
+            url.append("http://");
+        } else if (kind < 18) {
+            url.append("https://");
+        } else if (kind < 19) {
+            // Typed without a scheme.
+        } else {
+            // Returned by scripts of the proxied pages relative to the router.
+            url.append(ROUTER_PREFIX);
+            appendPath(url);
+            return url.toString();
+        }
+        url.append(pick(HOSTS)).append('/');
+        appendPath(url);
+        return url.toString();
+    }
+
+    /**
+     * Generates the original URL router-relative URLs are resolved against.
+     * 
+     * @return Document URL.
+     */
+    String originalUrl() {
+        return (mRandom.nextBoolean() ? "http://" : "https://") + pick(HOSTS) + (mRandom.nextBoolean() ? "/" : "/sites");
+    }
+
+    /**
+     * Appends the path, query and fragment of a document or resource.
+     * 
+     * @param url URL being built.
+     */
+    private void appendPath(StringBuilder url) {
+        int depth = mRandom.nextInt(5);
+        for (int i = 0; i < depth; i++) {
+            url.append(pick(SEGMENTS)).append('/');
+        }
+        url.append(mRandom.nextInt(3) == 0 ? pick(DOCUMENTS) : pick(RESOURCES));
+        url.append(pick(QUERIES)).append(pick(FRAGMENTS));
+    }
+
+    /**
+     * Picks a random element.
+     * 
+     * @param values Values.
+     * 
+     * @return Value.
+     */
+    private String pick(String[] values) {
+        return values[mRandom.nextInt(values.length)];
+    }
+}
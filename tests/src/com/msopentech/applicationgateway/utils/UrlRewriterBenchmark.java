@@ -0,0 +1,174 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.utils;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Measures {@link UrlRewriter} against the conversion it replaced, see {@link LegacyUrlRewriter}, on a URL corpus. Structured the
+ * way JMH runs benchmarks: warmup iterations first, then measured iterations, each converting the whole corpus, with the results
+ * consumed so the conversions are not optimized away. The rewriting itself is measured with a rewriter that remembers nothing, the
+ * remembered rewrites a page load mostly hits are measured separately. The average time per conversion of every measured iteration
+ * and of the best one is logged, followed by the allocations per conversion counted in one more iteration; nothing is asserted,
+ * results depend on the device.
+ */
+public class UrlRewriterBenchmark extends TestCase {
+
+    /**
+     * Log tag.
+     */
+    private static final String TAG = UrlRewriterBenchmark.class.getSimpleName();
+
+    /**
+     * Number of URLs converted by an iteration.
+     */
+    private static final int CORPUS_SIZE = 20000;
+
+    /**
+     * Number of distinct URLs.
+     */
+    private static final int DISTINCT_URLS = 400;
+
+    /**
+     * Seed of the URL corpus.
+     */
+    private static final long SEED = 20130611L;
+
+    /**
+     * Number of iterations run before measuring.
+     */
+    private static final int WARMUP_ITERATIONS = 5;
+
+    /**
+     * Number of measured iterations.
+     */
+    private static final int MEASUREMENT_ITERATIONS = 10;
+
+    /**
+     * Sink the results are consumed into.
+     */
+    private int mSink;
+
+    public void testToCloud() {
+        UrlCorpus corpus = new UrlCorpus(SEED);
+        final List<String> urls = corpus.normalUrls(DISTINCT_URLS, CORPUS_SIZE);
+        final String originalUrl = corpus.originalUrl();
+        final String session = UrlCorpus.SESSION_IDS[0];
+        final LegacyUrlRewriter legacy = new LegacyUrlRewriter(UrlCorpus.ROUTER_PREFIX, UrlCorpus.BROWSER_URL);
+        final UrlRewriter builder = new UrlRewriter(UrlCorpus.ROUTER_PREFIX, UrlCorpus.BROWSER_URL, false);
+        final UrlRewriter rewriter = new UrlRewriter(UrlCorpus.ROUTER_PREFIX, UrlCorpus.BROWSER_URL);
+
+        run("toCloud legacy", urls.size(), new Runnable() {
+            @Override
+            public void run() {
+                for (String url : urls) {
+                    mSink += legacy.toCloud(url, session, originalUrl).length();
+                }
+            }
+        });
+        run("toCloud rewriter", urls.size(), new Runnable() {
+            @Override
+            public void run() {
+                for (String url : urls) {
+                    mSink += builder.toCloud(url, session, originalUrl).length();
+                }
+            }
+        });
+        run("toCloud rewriter remembered", urls.size(), new Runnable() {
+            @Override
+            public void run() {
+                for (String url : urls) {
+                    mSink += rewriter.toCloud(url, session, originalUrl).length();
+                }
+            }
+        });
+    }
+
+    public void testToNormal() {
+        UrlCorpus corpus = new UrlCorpus(SEED);
+        List<String> urls = corpus.normalUrls(DISTINCT_URLS, CORPUS_SIZE);
+        String originalUrl = corpus.originalUrl();
+        String session = UrlCorpus.SESSION_IDS[0];
+        final LegacyUrlRewriter legacy = new LegacyUrlRewriter(UrlCorpus.ROUTER_PREFIX, UrlCorpus.BROWSER_URL);
+        final UrlRewriter builder = new UrlRewriter(UrlCorpus.ROUTER_PREFIX, UrlCorpus.BROWSER_URL, false);
+        final UrlRewriter rewriter = new UrlRewriter(UrlCorpus.ROUTER_PREFIX, UrlCorpus.BROWSER_URL);
+        final String[] cloudUrls = new String[urls.size()];
+        for (int i = 0; i < cloudUrls.length; i++) {
+            cloudUrls[i] = legacy.toCloud(urls.get(i), session, originalUrl);
+        }
+        // The rewriter sees the session the way the browser does, by converting a URL to a 'cloudified' one first.
+        rewriter.toCloud(urls.get(0), session, originalUrl);
+
+        run("toNormal legacy", cloudUrls.length, new Runnable() {
+            @Override
+            public void run() {
+                for (String url : cloudUrls) {
+                    mSink += legacy.toNormal(url).length();
+                }
+            }
+        });
+        run("toNormal rewriter", cloudUrls.length, new Runnable() {
+            @Override
+            public void run() {
+                for (String url : cloudUrls) {
+                    mSink += builder.toNormal(url).length();
+                }
+            }
+        });
+        run("toNormal rewriter remembered", cloudUrls.length, new Runnable() {
+            @Override
+            public void run() {
+                for (String url : cloudUrls) {
+                    mSink += rewriter.toNormal(url).length();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the warmup and measured iterations and logs the timings, then counts the allocations of one more iteration. Counting
+     * slows the allocations down, so it is kept out of the measured iterations.
+     * 
+     * @param name Benchmark name.
+     * @param operations Number of conversions per iteration.
+     * @param iteration Iteration.
+     */
+    private void run(String name, int operations, Runnable iteration) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration.run();
+        }
+        StringBuilder timings = new StringBuilder();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            iteration.run();
+            long perOperation = (System.nanoTime() - start) / operations;
+            best = Math.min(best, perOperation);
+            timings.append(i == 0 ? "" : ", ").append(perOperation);
+        }
+        Log.i(TAG, name + ": best " + best + " ns/op, iterations " + timings + " ns/op (sink " + mSink + ")");
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            iteration.run();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        Log.i(TAG, name + ": " + (float) Debug.getThreadAllocCount() / operations + " allocations/op, "
+                + (float) Debug.getThreadAllocSize() / operations + " bytes/op");
+    }
+}
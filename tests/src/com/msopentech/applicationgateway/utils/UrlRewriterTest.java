@@ -0,0 +1,154 @@
+/*
+ *  Copyright (c) Microsoft Open Technologies
+ *  All rights reserved. 
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0  
+ *  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT 
+ *  LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, 
+ *  MERCHANTABLITY OR NON-INFRINGEMENT. 
+ *  See the Apache Version 2.0 License for specific language governing permissions and limitations under the License.
+ */
+package com.msopentech.applicationgateway.utils;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link UrlRewriter} converts URLs the way the conversion it replaced did, see {@link LegacyUrlRewriter}.
+ */
+public class UrlRewriterTest extends TestCase {
+
+    /**
+     * Number of URLs converted by each test.
+     */
+    private static final int CORPUS_SIZE = 5000;
+
+    /**
+     * Number of distinct URLs, more than the rewriter remembers.
+     */
+    private static final int DISTINCT_URLS = 1000;
+
+    /**
+     * Seed of the URL corpus.
+     */
+    private static final long SEED = 20130611L;
+
+    /**
+     * Router URL other than the default one.
+     */
+    private static final String CUSTOM_ROUTER_PREFIX = "https://gateway.contoso.com:4443/";
+
+    public void testToCloudBrowser() {
+        assertToCloud(UrlCorpus.ROUTER_PREFIX, UrlCorpus.BROWSER_URL);
+    }
+
+    public void testToCloudSmartBrowser() {
+        assertToCloud(UrlCorpus.ROUTER_PREFIX, UrlCorpus.SMART_BROWSER_URL);
+    }
+
+    public void testToCloudCustomRouter() {
+        assertToCloud(CUSTOM_ROUTER_PREFIX, CUSTOM_ROUTER_PREFIX + "connect/browser/");
+    }
+
+    public void testToNormalBrowser() {
+        assertToNormal(UrlCorpus.ROUTER_PREFIX, UrlCorpus.BROWSER_URL);
+    }
+
+    public void testToNormalSmartBrowser() {
+        assertToNormal(UrlCorpus.ROUTER_PREFIX, UrlCorpus.SMART_BROWSER_URL);
+    }
+
+    public void testToNormalCustomRouter() {
+        assertToNormal(CUSTOM_ROUTER_PREFIX, CUSTOM_ROUTER_PREFIX + "connect/browser/");
+    }
+
+    public void testToCloudWithoutSession() {
+        UrlRewriter rewriter = new UrlRewriter(UrlCorpus.ROUTER_PREFIX, UrlCorpus.BROWSER_URL);
+        String url = "http://intranet.contoso.com/default.aspx";
+        assertSame(url, rewriter.toCloud(url, null, null));
+    }
+
+    public void testMalformedCloudUrls() {
+        UrlRewriter rewriter = new UrlRewriter(UrlCorpus.ROUTER_PREFIX, UrlCorpus.BROWSER_URL);
+        LegacyUrlRewriter legacy = new LegacyUrlRewriter(UrlCorpus.ROUTER_PREFIX, UrlCorpus.BROWSER_URL);
+        String session = UrlCorpus.SESSION_IDS[0];
+        String[] urls = { UrlCorpus.BROWSER_URL, UrlCorpus.BROWSER_URL + session, UrlCorpus.BROWSER_URL + session + "/",
+                UrlCorpus.BROWSER_URL + session + "/http", UrlCorpus.BROWSER_URL + session + "/http/",
+                UrlCorpus.BROWSER_URL + session + "//intranet.contoso.com/" };
+        for (String url : urls) {
+            assertEquals(url, legacy.toNormal(url), rewriter.toNormal(url));
+        }
+    }
+
+    /**
+     * Converts the corpus to 'cloudified' URLs with both implementations, switching sessions halfway through. Every URL is
+     * converted twice, so remembered conversions are checked as well. The rewriter that remembers nothing is checked too.
+     * 
+     * @param routerPrefix Router URL.
+     * @param browserUrl Prefix of 'cloudified' URLs.
+     */
+    private static void assertToCloud(String routerPrefix, String browserUrl) {
+        UrlCorpus corpus = new UrlCorpus(SEED);
+        List<String> urls = corpus.normalUrls(DISTINCT_URLS, CORPUS_SIZE);
+        UrlRewriter rewriter = new UrlRewriter(routerPrefix, browserUrl);
+        UrlRewriter builder = new UrlRewriter(routerPrefix, browserUrl, false);
+        LegacyUrlRewriter legacy = new LegacyUrlRewriter(routerPrefix, browserUrl);
+
+        for (int i = 0; i < urls.size(); i++) {
+            String url = toRouter(urls.get(i), routerPrefix);
+            String session = UrlCorpus.SESSION_IDS[i * 2 / urls.size()];
+            String originalUrl = corpus.originalUrl();
+            String expected = legacy.toCloud(url, session, originalUrl);
+            assertEquals(url, expected, rewriter.toCloud(url, session, originalUrl));
+            assertEquals(url, expected, rewriter.toCloud(url, session, originalUrl));
+            assertEquals(url, expected, builder.toCloud(url, session, originalUrl));
+            // Already 'cloudified' URLs are left alone.
+            assertEquals(url, expected, rewriter.toCloud(expected, session, originalUrl));
+        }
+    }
+
+    /**
+     * Converts 'cloudified' URLs of both sessions, and regular URLs passed through, back with both implementations. Some of them
+     * are converted to 'cloudified' URLs first, so the conversions remembered then are checked as well. The rewriter that
+     * remembers nothing is checked too.
+     * 
+     * @param routerPrefix Router URL.
+     * @param browserUrl Prefix of 'cloudified' URLs.
+     */
+    private static void assertToNormal(String routerPrefix, String browserUrl) {
+        UrlCorpus corpus = new UrlCorpus(SEED);
+        List<String> urls = corpus.normalUrls(DISTINCT_URLS, CORPUS_SIZE);
+        UrlRewriter rewriter = new UrlRewriter(routerPrefix, browserUrl);
+        UrlRewriter builder = new UrlRewriter(routerPrefix, browserUrl, false);
+        LegacyUrlRewriter legacy = new LegacyUrlRewriter(routerPrefix, browserUrl);
+
+        for (int i = 0; i < urls.size(); i++) {
+            String url = toRouter(urls.get(i), routerPrefix);
+            String session = UrlCorpus.SESSION_IDS[i % 2];
+            String cloudUrl = legacy.toCloud(url, session, corpus.originalUrl());
+            if (i % 3 == 0 && !url.startsWith(routerPrefix)) {
+                rewriter.toCloud(url, session, null);
+            }
+            assertEquals(cloudUrl, legacy.toNormal(cloudUrl), rewriter.toNormal(cloudUrl));
+            assertEquals(cloudUrl, legacy.toNormal(cloudUrl), rewriter.toNormal(cloudUrl));
+            assertEquals(cloudUrl, legacy.toNormal(cloudUrl), builder.toNormal(cloudUrl));
+            assertEquals(url, legacy.toNormal(url), rewriter.toNormal(url));
+        }
+    }
+
+    /**
+     * Moves router-relative corpus URLs to the router under test.
+     * 
+     * @param url Corpus URL.
+     * @param routerPrefix Router URL.
+     * 
+     * @return URL.
+     */
+    static String toRouter(String url, String routerPrefix) {
+        if (url.startsWith(UrlCorpus.ROUTER_PREFIX)) {
+            return routerPrefix + url.substring(UrlCorpus.ROUTER_PREFIX.length());
+        }
+        return url;
+    }
+}